@@ -1,12 +1,16 @@
 package warrenfalk.reedsolomon;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import warrenfalk.util.math.GaloisField;
 import warrenfalk.util.math.MatrixR;
 
 /**
  * <p>A Reed-Solomon coder</p>
+ * <p>Coders for recovering from a particular set of missing symbols are kept in a bounded cache, since building one
+ * means inverting a matrix, and the same few failure scenarios tend to repeat.</p>
  * @author Warren Falk
  */
 public class ReedSolomonCodingDomain {
@@ -17,6 +21,12 @@ public class ReedSolomonCodingDomain {
 	final int checksumMask;
 	final GaloisField gf;
 	private final Coder checksumCoder;
+	/** the most recovery coders to keep */
+	final int maxCoders;
+	final ConcurrentHashMap<Long,Coder> coders = new ConcurrentHashMap<Long,Coder>();
+	/** the number of recovery coders to keep by default */
+	public final static int DEFAULT_MAX_CODERS = 256;
+	final static ConcurrentHashMap<Long,ReedSolomonCodingDomain> shared = new ConcurrentHashMap<Long,ReedSolomonCodingDomain>();
 	
 	/**
 	 * Prepares a new Reed-Solomon coding domain that fits the specified parameters.
@@ -32,11 +42,13 @@ public class ReedSolomonCodingDomain {
 	 * @param dataSize the number of symbols in each code word that carry the data
 	 * @param checksumSize the number of symbols in each code word that carry the checksum data
 	 * @param gf the Galois field to use
+	 * @param maxCoders the most recovery coders to keep cached
 	 */
-	public ReedSolomonCodingDomain(int dataSize, int checksumSize, GaloisField gf) {
+	public ReedSolomonCodingDomain(int dataSize, int checksumSize, GaloisField gf, int maxCoders) {
 		if (gf.size <= dataSize + checksumSize)
 			throw new IllegalArgumentException("Specified an inadequate GaloisField for code word size of " + (dataSize + checksumSize));
 		this.gf = gf;
+		this.maxCoders = maxCoders;
 		this.dataSize = dataSize;
 		this.checksumSize = checksumSize;
 		this.dataMask = (1 << dataSize) - 1;
@@ -81,10 +93,32 @@ public class ReedSolomonCodingDomain {
 		checksumCoder = new Coder(dataMask);
 	}
 	
+	public ReedSolomonCodingDomain(int dataSize, int checksumSize, GaloisField gf) {
+		this(dataSize, checksumSize, gf, DEFAULT_MAX_CODERS);
+	}
+	
 	public ReedSolomonCodingDomain(int dataSize, int checksumSize) {
 		this(dataSize, checksumSize, GaloisField.GF256);
 	}
 	
+	/**
+	 * Gets a coding domain over GF256 for the specified parameters, shared with everyone else asking for the same, so that its coders are too
+	 * @param dataSize
+	 * @param checksumSize
+	 * @return the shared coding domain
+	 */
+	public static ReedSolomonCodingDomain getShared(int dataSize, int checksumSize) {
+		Long key = ((long)dataSize << 32) | checksumSize;
+		ReedSolomonCodingDomain domain = shared.get(key);
+		if (domain == null) {
+			domain = new ReedSolomonCodingDomain(dataSize, checksumSize);
+			ReedSolomonCodingDomain existing = shared.putIfAbsent(key, domain);
+			if (existing != null)
+				domain = existing;
+		}
+		return domain;
+	}
+	
 	interface SymbolCoder {
 		void calc(int[] symbols);
 	}
@@ -291,14 +325,54 @@ public class ReedSolomonCodingDomain {
 	}
 	
 	/**
-	 * Creates a new coder capable of coding when only the specified symbols are valid
+	 * Gets a coder capable of coding when only the specified symbols are valid, creating it if it isn't cached
 	 * @param validMask a bitmask specifying which symbols are valid
-	 * @return a new coder
+	 * @return the coder
 	 */
 	public Coder createCoder(long validMask) {
+		validMask &= dataMask | checksumMask;
 		if (validMask == dataMask)
 			return checksumCoder;
-		return new Coder(validMask);
+		Long key = validMask;
+		Coder coder = coders.get(key);
+		if (coder != null)
+			return coder;
+		coder = new Coder(validMask);
+		if (coders.size() >= maxCoders) {
+			// make room by evicting any one
+			Iterator<Long> i = coders.keySet().iterator();
+			if (i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+		Coder existing = coders.putIfAbsent(key, coder);
+		return existing != null ? existing : coder;
+	}
+	
+	/**
+	 * Creates the coders for every scenario of up to <code>checksumSize</code> invalid symbols, as far as the cache allows,
+	 * so that recovery never waits for a coder to be built
+	 * @return the number of coders cached
+	 */
+	public int precomputeCoders() {
+		long all = dataMask | checksumMask;
+		for (int invalid = 1; invalid <= checksumSize; invalid++) {
+			// each combination of <invalid> invalid symbols in turn, as the next larger mask with as many bits
+			for (long invalidMask = (1L << invalid) - 1; 0 == (invalidMask & ~all); ) {
+				if (coders.size() >= maxCoders)
+					return coders.size();
+				// all data valid is just checksumming
+				if (0 != (invalidMask & dataMask))
+					createCoder(all & ~invalidMask);
+				long lowest = invalidMask & -invalidMask;
+				long ripple = invalidMask + lowest;
+				if (ripple == 0)
+					break;
+				invalidMask = (((ripple ^ invalidMask) >>> 2) / lowest) | ripple;
+			}
+		}
+		return coders.size();
 	}
 	
 }
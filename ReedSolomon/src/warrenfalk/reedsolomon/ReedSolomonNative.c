@@ -9,17 +9,22 @@ jclass byteBufferClass = 0;
 jmethodID byteBufferArrayMethod;
 jmethodID byteBufferArrayOffsetMethod;
 
-unsigned char ** getMappedColumns(int columnCount, unsigned char **ppColumns, JNIEnv* env, jintArray recoveryMap)
+unsigned char ** getMappedColumns(int columnCount, unsigned char **ppColumns, jint *pSizes, jint *pMappedSizes, JNIEnv* env, jintArray recoveryMap)
 {
-	if (!recoveryMap)
+	if (!recoveryMap) {
+		for (int i = 0; i < columnCount; i++)
+			pMappedSizes[i] = pSizes[i];
 		return ppColumns;
-	jint *map = (jint*)malloc(sizeof(jint) * columnCount);
+	}
 	unsigned char **ppMapped = (unsigned char**)malloc(sizeof(unsigned char*) * columnCount);
-	map = (*env)->GetIntArrayElements(env, recoveryMap, 0);
+	jint *map = (*env)->GetIntArrayElements(env, recoveryMap, 0);
 	int mapCount = (*env)->GetArrayLength(env, recoveryMap);
-	for (int i = 0; i < columnCount; i++)
-		 ppMapped[i] = (i < mapCount) ? ppColumns[map[i]] : ppColumns[i];
-	(*env)->ReleaseIntArrayElements(env, recoveryMap, map, 0);
+	for (int i = 0; i < columnCount; i++) {
+		int mapped = (i < mapCount) ? map[i] : i;
+		ppMapped[i] = ppColumns[mapped];
+		pMappedSizes[i] = pSizes[mapped];
+	}
+	(*env)->ReleaseIntArrayElements(env, recoveryMap, map, JNI_ABORT);
 	return ppMapped;
 }
 
@@ -59,8 +64,9 @@ JNIEXPORT jint JNICALL Java_warrenfalk_reedsolomon_ReedSolomonNative_nativeCalc
 		if (0 != ((uint64_t)ppColumns[i] % 16))
 			unaligned = 1;
 	}
-	// calculate the mapped columns if a recovery map was passed in
-	ppMappedColumns = getMappedColumns(columnCount, ppColumns, env, recoveryMap);
+	// calculate the mapped columns (and their sizes) if a recovery map was passed in
+	jint *pMappedSizes = (jint*)malloc(sizeof(jint) * columnCount);
+	ppMappedColumns = getMappedColumns(columnCount, ppColumns, pColumnSizes, pMappedSizes, env, recoveryMap);
 
 	// get the matrix address
 	unsigned char *pMatrix = (*env)->GetDirectBufferAddress(env, matrix);
@@ -83,7 +89,7 @@ JNIEXPORT jint JNICALL Java_warrenfalk_reedsolomon_ReedSolomonNative_nativeCalc
 	// detect jagged calculations (where columns are not of equal height, we can't use the SSE algorithm for these)
 	int jagged = 0;
 	for (int i = 0; i < dataSize; i++)
-		if (pColumnSizes[i] < height)
+		if (pMappedSizes[i] < height)
 			jagged = 1;
 
 	// begin with a return value of zero bytes calculated
@@ -108,7 +114,7 @@ JNIEXPORT jint JNICALL Java_warrenfalk_reedsolomon_ReedSolomonNative_nativeCalc
 					// the checksum is equal to the gf sum of the gf products of each data symbol by the corresponding value in the coding matrix
 					for (int k = 0; k < dataSize; k++) {
 						// get the data byte
-						unsigned char datum = (position < pColumnSizes[k]) ? ppColumns[k][position] : 0;
+						unsigned char datum = (position < pMappedSizes[k]) ? ppMappedColumns[k][position] : 0;
 						if (datum == 0)
 							continue; // if datum is zero, the product is zero, and xor is a noop, so just skip it
 						// get the coding matrix byte
@@ -178,7 +184,8 @@ JNIEXPORT jint JNICALL Java_warrenfalk_reedsolomon_ReedSolomonNative_nativeCalc
 			}
 		}
 	}
-	// free the lengths array
+	// free the lengths arrays
+	free(pMappedSizes);
 	(*env)->ReleaseIntArrayElements(env, lengths, pColumnSizes, 0);
 	// free the column pointers
 	free(ppColumns);
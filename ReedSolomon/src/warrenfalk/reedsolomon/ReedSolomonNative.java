@@ -6,6 +6,7 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.WeakHashMap;
 
 import warrenfalk.util.math.GaloisField;
 import warrenfalk.util.math.MatrixR;
@@ -22,21 +23,37 @@ public class ReedSolomonNative {
 	final int[] recoveryMap;
 	
 	static int state;
+	/** the buffers of tables and matrices which are the same for many helpers, by the array or matrix they were made from */
+	final static WeakHashMap<Object,ByteBuffer> sharedBuffers = new WeakHashMap<Object,ByteBuffer>();
 	final static String LIB = "reedsolomon";
 	
 	private ReedSolomonNative(int dataSize, int checksumSize, MatrixR codingMatrix, MatrixR recoveryMatrix, int[] recoveryMap, GaloisField gf) {
 		this.dataSize = dataSize;
 		this.checksumSize = checksumSize;
-		this.codingMatrixBuffer = matrixToBuffer(codingMatrix);
+		// the coding matrix and field tables are only ever read, so every helper of a domain or field can use the same copy
+		this.codingMatrixBuffer = sharedBuffer(codingMatrix);
 		this.recoveryMatrixBuffer = matrixToBuffer(recoveryMatrix);
-		this.gflogBuffer = intsToBytesBuffer(gf.log);
-		this.gfinvlogBuffer = intsToBytesBuffer(gf.invlog);
+		this.gflogBuffer = sharedBuffer(gf.log);
+		this.gfinvlogBuffer = sharedBuffer(gf.invlog);
 		this.gfbits = gf.bits;
 		this.gfprimitive = gf.primitive;
 		this.recoveryMap = recoveryMap;
 	}
 	
-	private ByteBuffer intsToBytesBuffer(int[] bytes) {
+	private static ByteBuffer sharedBuffer(Object source) {
+		if (source == null)
+			return null;
+		synchronized (sharedBuffers) {
+			ByteBuffer buffer = sharedBuffers.get(source);
+			if (buffer == null) {
+				buffer = (source instanceof MatrixR) ? matrixToBuffer((MatrixR)source) : intsToBytesBuffer((int[])source);
+				sharedBuffers.put(source, buffer);
+			}
+			return buffer;
+		}
+	}
+	
+	private static ByteBuffer intsToBytesBuffer(int[] bytes) {
 		if (bytes == null)
 			return null;
 		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
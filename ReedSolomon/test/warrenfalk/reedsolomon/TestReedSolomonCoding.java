@@ -146,6 +146,33 @@ public class TestReedSolomonCoding {
 		
 	}
 
+	@Test
+	public void testCoderCache() {
+		ReedSolomonCodingDomain domain = new ReedSolomonCodingDomain(4, 2, GaloisField.GF256, 1000);
+		long validMask = 0x3E;
+		Coder coder = domain.createCoder(validMask);
+		assertSame("cached coder", coder, domain.createCoder(validMask));
+		assertSame("bits beyond the code word are ignored", coder, domain.createCoder(validMask | 0x100));
+		assertSame("all data valid is the checksum coder", domain.getChecksumCoder(), domain.createCoder(0x0F));
+		
+		// every scenario with at least one data symbol and at most two symbols missing
+		assertEquals("precomputed coders", 6 + 15 - 3, domain.precomputeCoders());
+		assertSame("precomputing keeps cached coders", coder, domain.createCoder(validMask));
+		
+		ReedSolomonCodingDomain bounded = new ReedSolomonCodingDomain(4, 2, GaloisField.GF256, 4);
+		assertEquals("precomputed coders within bound", 4, bounded.precomputeCoders());
+		for (long mask = 0x3F; mask > 0; mask--)
+			if (Long.bitCount(mask) >= 4)
+				bounded.createCoder(mask);
+		assertTrue("cache is bounded", bounded.coders.size() <= 4);
+		
+		// every combination of one to three of nine symbols missing, less those of only checksum symbols
+		ReedSolomonCodingDomain wider = new ReedSolomonCodingDomain(6, 3, GaloisField.GF256, 1000);
+		assertEquals("precomputed coders of a wider code word", (9 + 36 + 84) - (3 + 3 + 1), wider.precomputeCoders());
+		
+		assertSame("shared domain", ReedSolomonCodingDomain.getShared(4, 2), ReedSolomonCodingDomain.getShared(4, 2));
+	}
+	
 	private void assertContentEqual(String message, ByteBuffer expected, ByteBuffer actual) {
 		assertTrue(message + ", comparing limits", actual.limit() >= expected.limit());
 		int limit = Math.min(expected.limit(), actual.limit());
@@ -0,0 +1,167 @@
+package warrenfalk.meldfs;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import warrenfalk.fuselaj.FilesystemException;
+import warrenfalk.fuselaj.FuselajFs;
+import warrenfalk.fuselaj.Stat;
+
+/**
+ * A short-lived cache of file attributes, filled while listing directories so that the burst of getattr calls
+ * that usually follows a readdir can be answered from memory.
+ * <p>Attributes are kept in a fixed ring of <code>Stat</code> slots carved out of a single direct buffer; a new entry
+ * takes over the oldest slot, so the cache never grows.  Entries also expire after a short time to live.</p>
+ * <p>As in the namespace index, invalidations bump a stamp per hash of the path, and attributes read before an
+ * invalidation of their path are discarded rather than cached.</p>
+ * @author warren
+ */
+public class AttributeCache {
+	final static int STAT_SIZE = 0x100;
+	final static int STAMPS = 1024;
+
+	final int capacity;
+	final long ttlNanos;
+	final Stat[] stats;
+	final Path[] keys;
+	final int[] sources;
+	final long[] expirations;
+	final ConcurrentHashMap<Path,Integer> slots;
+	final AtomicInteger nextSlot = new AtomicInteger();
+	final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+	final AtomicLong prefetched = new AtomicLong();
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong discarded = new AtomicLong();
+
+	public AttributeCache(int capacity, long ttlMillis) {
+		this.capacity = capacity;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.stats = new Stat[capacity];
+		this.keys = new Path[capacity];
+		this.sources = new int[capacity];
+		this.expirations = new long[capacity];
+		this.slots = new ConcurrentHashMap<Path,Integer>();
+		ByteBuffer slab = ByteBuffer.allocateDirect(capacity * STAT_SIZE);
+		for (int i = 0; i < capacity; i++) {
+			slab.limit((i + 1) * STAT_SIZE).position(i * STAT_SIZE);
+			stats[i] = new Stat(slab.slice());
+		}
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0 && ttlNanos > 0;
+	}
+
+	/**
+	 * Copies the cached attributes for <code>vpath</code> into <code>stat</code>
+	 * @param vpath
+	 * @param stat
+	 * @return the index of the source the attributes came from, or -1 if not cached
+	 */
+	public int get(Path vpath, Stat stat) {
+		if (slots.isEmpty())
+			return -1;
+		Integer slot = slots.get(vpath);
+		if (slot != null) {
+			int s = slot.intValue();
+			synchronized (stats[s]) {
+				if (vpath.equals(keys[s]) && System.nanoTime() - expirations[s] < 0) {
+					stat.copyFrom(stats[s]);
+					hits.incrementAndGet();
+					return sources[s];
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return -1;
+	}
+
+	/** Returns the current stamp of <code>vpath</code>, which must be taken before the sources are looked at for a <code>load()</code> */
+	public long getStamp(Path vpath) {
+		return stamps.get(vpath.hashCode() & (STAMPS - 1));
+	}
+
+	/**
+	 * Reads the attributes of <code>realPath</code> directly into a cache slot for <code>vpath</code>, unless
+	 * <code>vpath</code> is invalidated before they can be cached
+	 * @param vpath the virtual path
+	 * @param source the index of the source holding the freshest version
+	 * @param realPath the location of the freshest version
+	 * @param stamp the value of <code>getStamp(vpath)</code> taken before the sources were looked at
+	 * @return the modification time of <code>realPath</code> in milliseconds
+	 * @throws FilesystemException
+	 */
+	public long load(Path vpath, int source, Path realPath, long stamp) throws FilesystemException {
+		int s = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % capacity;
+		synchronized (stats[s]) {
+			if (keys[s] != null)
+				slots.remove(keys[s], s);
+			keys[s] = null;
+			FuselajFs.os_lstat(realPath, stats[s]);
+			keys[s] = vpath;
+			sources[s] = source;
+			expirations[s] = System.nanoTime() + ttlNanos;
+			slots.put(vpath, s);
+			// an invalidation either bumped the stamp before this check or removes the entry after it was put
+			if (getStamp(vpath) != stamp) {
+				slots.remove(vpath, s);
+				keys[s] = null;
+				discarded.incrementAndGet();
+			}
+			else {
+				prefetched.incrementAndGet();
+			}
+			return MeldFs.modTimeOf(stats[s]);
+		}
+	}
+
+	/** Drops the cached attributes of <code>vpath</code> */
+	public void invalidate(Path vpath) {
+		stamps.incrementAndGet(vpath.hashCode() & (STAMPS - 1));
+		if (!slots.isEmpty())
+			slots.remove(vpath);
+	}
+
+	/** Drops the cached attributes of <code>vpath</code> and everything beneath it */
+	public void invalidateTree(Path vpath) {
+		bumpAll();
+		if (slots.isEmpty())
+			return;
+		for (Iterator<Path> i = slots.keySet().iterator(); i.hasNext(); )
+			if (i.next().startsWith(vpath))
+				i.remove();
+	}
+
+	/** Drops everything */
+	public void clear() {
+		bumpAll();
+		slots.clear();
+	}
+
+	private void bumpAll() {
+		for (int i = 0; i < STAMPS; i++)
+			stamps.incrementAndGet(i);
+	}
+
+	public void printStatistics(PrintStream out) {
+		long prefetched = this.prefetched.get();
+		long hits = this.hits.get();
+		long misses = this.misses.get();
+		out.println("attribute prefetch: " + prefetched + " prefetched, " + discarded.get() + " discarded, " + hits + " hits, " + misses + " misses, "
+				+ percent(hits, prefetched) + " of prefetched used, " + percent(hits, hits + misses) + " of lookups hit");
+	}
+
+	private static String percent(long part, long whole) {
+		if (whole == 0)
+			return "-";
+		return (Math.floor(1000.0 * part / whole) / 10.0) + "%";
+	}
+}
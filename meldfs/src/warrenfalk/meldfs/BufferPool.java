@@ -0,0 +1,58 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers with a bound on the total number ever allocated.
+ * <p>Direct buffers are expensive to allocate and are only freed by the garbage collector, so they are recycled
+ * here instead.  When the budget is used up, <code>acquire()</code> returns null rather than waiting, and the caller
+ * is expected to do without.</p>
+ * @author warren
+ */
+public class BufferPool {
+	final int bufferSize;
+	final int maxBuffers;
+	final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize the size of each buffer
+	 * @param budget the most bytes to allocate in total
+	 */
+	public BufferPool(int bufferSize, long budget) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = (int)Math.min(Integer.MAX_VALUE, budget / bufferSize);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/** Returns a cleared buffer, or null if the budget is used up */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer != null) {
+			buffer.clear();
+			return buffer;
+		}
+		for (;;) {
+			int count = allocated.get();
+			if (count >= maxBuffers)
+				return null;
+			if (allocated.compareAndSet(count, count + 1))
+				return ByteBuffer.allocateDirect(bufferSize);
+		}
+	}
+
+	/** Returns a buffer to the pool; it must not be used again by the caller */
+	public void release(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+
+	/** Returns the number of buffers currently handed out */
+	public int getInUse() {
+		return allocated.get() - free.size();
+	}
+}
@@ -0,0 +1,313 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Open channels kept across open and release, so that a hot file can be opened again without looking it up on the
+ * sources or opening it again.
+ * <p>Channels are keyed by virtual path and open options, and reference counted: a channel is only closed once it
+ * has been evicted and every handle using it has been released.  Entries are evicted least recently used first when
+ * there are too many, when they have been unused for the idle time, and when the path is removed or renamed.  An entry
+ * is not handed out once it reaches the maximum age, which bounds how long a file replaced directly on the sources can
+ * go unnoticed.</p>
+ * <p>The entries are also indexed by virtual path, in path order, so that invalidating a path or a tree only visits
+ * the entries for it.</p>
+ * <p>Opens which change the file (create, truncate) or depend on how it was opened (append) are not cached.</p>
+ * @author warren
+ */
+public class ChannelCache {
+	final int maxEntries;
+	final long idleNanos;
+	final long maxAgeNanos;
+	final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	/** the entries in <code>entries</code> by virtual path */
+	final TreeMap<Path,ArrayList<Entry>> byPath = new TreeMap<Path,ArrayList<Entry>>();
+	/** the mappings of the cached channels, dropped when the channels are closed, or null */
+	final MappedReads mappings;
+	long hits;
+	long misses;
+
+	public ChannelCache(int maxEntries, long idleMillis, long maxAgeMillis) {
+		this(maxEntries, idleMillis, maxAgeMillis, null);
+	}
+
+	public ChannelCache(int maxEntries, long idleMillis, long maxAgeMillis, MappedReads mappings) {
+		this.maxEntries = maxEntries;
+		this.idleNanos = idleMillis * 1000000L;
+		this.maxAgeNanos = maxAgeMillis * 1000000L;
+		this.mappings = mappings;
+	}
+
+	final static class Key {
+		final Path vpath;
+		final Set<? extends OpenOption> options;
+
+		Key(Path vpath, Set<? extends OpenOption> options) {
+			this.vpath = vpath;
+			this.options = options;
+		}
+
+		@Override
+		public int hashCode() {
+			return vpath.hashCode() * 31 + options.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return vpath.equals(other.vpath) && options.equals(other.options);
+		}
+	}
+
+	/** A cached channel */
+	public final static class Entry {
+		final Key key;
+		final FileChannel channel;
+		final long opened;
+		int references;
+		long lastReleased;
+		boolean evicted;
+
+		Entry(Key key, FileChannel channel, long opened) {
+			this.key = key;
+			this.channel = channel;
+			this.opened = opened;
+		}
+
+		public FileChannel getChannel() {
+			return channel;
+		}
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/** Returns true if channels opened with <code>options</code> may be cached */
+	public static boolean isCacheable(Set<? extends OpenOption> options) {
+		return !options.contains(StandardOpenOption.APPEND)
+				&& !options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+				&& !options.contains(StandardOpenOption.CREATE)
+				&& !options.contains(StandardOpenOption.CREATE_NEW)
+				&& !options.contains(StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * Takes a reference to the cached channel for <code>vpath</code> and <code>options</code>
+	 * @return the entry, or null if there is none
+	 */
+	public Entry acquire(Path vpath, Set<? extends OpenOption> options) {
+		long now = System.nanoTime();
+		ArrayList<Entry> closing = null;
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(new Key(vpath, options));
+			if (entry != null && now - entry.opened >= maxAgeNanos) {
+				closing = new ArrayList<Entry>();
+				evict(entry, closing);
+				entry = null;
+			}
+			if (entry != null) {
+				entry.references++;
+				hits++;
+			}
+			else {
+				misses++;
+			}
+		}
+		close(closing);
+		return entry;
+	}
+
+	/**
+	 * Adds a newly opened channel to the cache, with one reference taken, evicting the least recently used unreferenced
+	 * entries if there are too many
+	 */
+	public Entry add(Path vpath, Set<? extends OpenOption> options, FileChannel channel) {
+		Key key = new Key(vpath, options);
+		Entry entry = new Entry(key, channel, System.nanoTime());
+		entry.references = 1;
+		ArrayList<Entry> closing = new ArrayList<Entry>();
+		synchronized (this) {
+			Entry existing = entries.put(key, entry);
+			if (existing != null) {
+				// another open of the same file got there first; let the newer channel replace it
+				unindex(existing);
+				existing.evicted = true;
+				if (existing.references == 0)
+					closing.add(existing);
+			}
+			index(entry);
+			Iterator<Entry> i = entries.values().iterator();
+			while (entries.size() > maxEntries && i.hasNext()) {
+				Entry eldest = i.next();
+				if (eldest.references > 0)
+					continue;
+				i.remove();
+				unindex(eldest);
+				eldest.evicted = true;
+				closing.add(eldest);
+			}
+		}
+		close(closing);
+		return entry;
+	}
+
+	/** Drops a reference taken by <code>acquire()</code> or <code>add()</code> */
+	public void release(Entry entry) {
+		boolean close;
+		synchronized (this) {
+			entry.references--;
+			entry.lastReleased = System.nanoTime();
+			close = entry.evicted && entry.references == 0;
+		}
+		if (close)
+			close(entry);
+	}
+
+	/** Evicts the entries for <code>vpath</code> */
+	public void invalidate(Path vpath) {
+		ArrayList<Entry> closing = null;
+		synchronized (this) {
+			ArrayList<Entry> evicting = byPath.get(vpath);
+			if (evicting == null)
+				return;
+			closing = new ArrayList<Entry>();
+			for (Entry entry : new ArrayList<Entry>(evicting))
+				evict(entry, closing);
+		}
+		close(closing);
+	}
+
+	/** Evicts the entries for <code>vpath</code> and everything beneath it */
+	public void invalidateTree(Path vpath) {
+		ArrayList<Entry> closing = null;
+		synchronized (this) {
+			if (byPath.isEmpty())
+				return;
+			closing = new ArrayList<Entry>();
+			// everything beneath sorts after the path and before the path followed by the character after the separator
+			Map<Path,ArrayList<Entry>> range = vpath.toString().length() == 0 ? byPath : byPath.subMap(vpath, true, FileSystems.getDefault().getPath(vpath.toString() + (char)('/' + 1)), false);
+			ArrayList<Entry> evicting = new ArrayList<Entry>();
+			for (Map.Entry<Path,ArrayList<Entry>> entry : range.entrySet())
+				if (entry.getKey().startsWith(vpath))
+					evicting.addAll(entry.getValue());
+			for (Entry entry : evicting)
+				evict(entry, closing);
+		}
+		close(closing);
+	}
+
+	public void invalidateAll() {
+		ArrayList<Entry> closing = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Entry entry : entries.values()) {
+				entry.evicted = true;
+				if (entry.references == 0)
+					closing.add(entry);
+			}
+			entries.clear();
+			byPath.clear();
+		}
+		close(closing);
+	}
+
+	/** Starts a background thread which evicts entries left unused for the idle time */
+	public void start() {
+		Thread thread = new Thread("MeldFs Channel Cache") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(Math.max(1, idleNanos / 2000000L));
+						evictIdle();
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void evictIdle() {
+		long now = System.nanoTime();
+		ArrayList<Entry> closing = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+				Entry entry = i.next();
+				if (entry.references == 0 && (now - entry.lastReleased >= idleNanos || now - entry.opened >= maxAgeNanos)) {
+					i.remove();
+					unindex(entry);
+					entry.evicted = true;
+					closing.add(entry);
+				}
+			}
+		}
+		close(closing);
+	}
+
+	/** Removes an entry, adding it to <code>closing</code> if nothing is using it */
+	private void evict(Entry entry, ArrayList<Entry> closing) {
+		if (entries.get(entry.key) == entry) {
+			entries.remove(entry.key);
+			unindex(entry);
+		}
+		entry.evicted = true;
+		if (entry.references == 0)
+			closing.add(entry);
+	}
+
+	private void index(Entry entry) {
+		ArrayList<Entry> list = byPath.get(entry.key.vpath);
+		if (list == null)
+			byPath.put(entry.key.vpath, list = new ArrayList<Entry>(1));
+		list.add(entry);
+	}
+
+	private void unindex(Entry entry) {
+		ArrayList<Entry> list = byPath.get(entry.key.vpath);
+		if (list != null && list.remove(entry) && list.isEmpty())
+			byPath.remove(entry.key.vpath);
+	}
+
+	private void close(ArrayList<Entry> closing) {
+		if (closing == null)
+			return;
+		for (Entry entry : closing)
+			close(entry);
+	}
+
+	private void close(Entry entry) {
+		if (mappings != null)
+			mappings.invalidate(entry.channel);
+		try {
+			entry.channel.close();
+		}
+		catch (IOException ioe) {
+			// FileChannel doesn't buffer, so nothing is lost
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized String getStatistics() {
+		return entries.size() + " channels cached, " + hits + " hits, " + misses + " misses";
+	}
+}
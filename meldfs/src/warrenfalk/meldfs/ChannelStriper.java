@@ -6,6 +6,7 @@ import java.nio.channels.ScatteringByteChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -21,10 +22,19 @@ public class ChannelStriper {
 	AtomicInteger currentWriters;
 	long writeStartTime;
 	long totalWriteTime;
+	final ThreadFactory threadFactory;
 	
 	final static ExecutorService threadPool = Executors.newCachedThreadPool();
 
 	public ChannelStriper(StripeCoder stripeCoder, int blockSize, int dataSources, int checksumSources, int ringBufferSize) {
+		this(stripeCoder, blockSize, dataSources, checksumSources, ringBufferSize, Executors.defaultThreadFactory());
+	}
+	
+	/**
+	 * @param threadFactory creates the column writer threads for each stripe operation
+	 */
+	public ChannelStriper(StripeCoder stripeCoder, int blockSize, int dataSources, int checksumSources, int ringBufferSize, ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
 		this.blockSize = blockSize;
 		this.dataSources = dataSources;
 		this.checksumSources = checksumSources;
@@ -138,7 +148,7 @@ public class ChannelStriper {
 			final int column = i;
 			final GatheringByteChannel output = outputs[column];
 			final StripeFrameFifo writeQueue = writeQueues[i];
-			Thread writer = new Thread("Striper Writer [" + column + "]") {
+			Thread writer = threadFactory.newThread(new Runnable() {
 				public void run() {
 					long start, end;
 					try {
@@ -178,7 +188,8 @@ public class ChannelStriper {
 						status.cancel();
 					}
 				}
-			};
+			});
+			writer.setName("Striper Writer [" + column + "]");
 			writers[i] = writer;
 		}
 
@@ -0,0 +1,316 @@
+package warrenfalk.meldfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import warrenfalk.fuselaj.DirBuffer;
+import warrenfalk.fuselaj.FilesystemException;
+import warrenfalk.fuselaj.FuselajFs;
+import warrenfalk.fuselaj.Stat;
+
+/**
+ * A resumable listing of a virtual directory.
+ * <p>If only one source has a copy of the directory, its entries are streamed straight from that source.
+ * Otherwise the names in each copy are read and sorted, and the sorted runs are merged, so that a name found on
+ * several sources is listed once and the sources it was found on are known without touching the sources again.
+ * The merge holds at most <code>maxNames</code> names, and is dropped when the cursor is closed.  Beyond that, the
+ * copies are streamed one source after another instead, and an entry is skipped if it also exists in a copy on an
+ * earlier source.</p>
+ * <p>The offset of each entry is its ordinal in the listing, so a listing can be resumed at the offset the kernel
+ * asks for.  Resuming anywhere but where the last fill left off restarts the listing and skips forward.  The merged
+ * runs are kept across such restarts so that offsets stay stable, but a restart from the beginning reads the
+ * sources again.</p>
+ * <p>If attribute prefetch is enabled, the attributes of each entry whose sources are known (i.e. merged, or streamed
+ * from the only copy) are read into the attribute cache as it is listed, and its location is recorded in the
+ * namespace index and catalog.</p>
+ * <p>Striped files in the directory are listed last, unless a regular file of the same name was listed.</p>
+ * @author warren
+ */
+public class DirectoryCursor implements Closeable {
+	final MeldFs meldfs;
+	final Path vdir;
+	final int maxNames;
+	/** the copy of the directory on each source, or null where there is none */
+	Path[] realDirs;
+	/** the number of sources with a copy of the directory */
+	int copies;
+	/** the sorted names in each copy of the directory, or null if the copies are being streamed */
+	String[][] runs;
+	/** the index of the next name in each run */
+	int[] heads;
+	/** index of the source currently being streamed */
+	int source;
+	DirectoryStream<Path> stream;
+	Iterator<Path> iterator;
+	/** number of entries consumed so far */
+	long position;
+	/** the next entry, if it has been read but not yet consumed */
+	String pending;
+	/** the names of the striped files, once the sources have all been listed */
+	Iterator<String> stripedNames;
+
+	public DirectoryCursor(MeldFs meldfs, Path vdir) {
+		this(meldfs, vdir, meldfs.readdirMergeMax);
+	}
+
+	public DirectoryCursor(MeldFs meldfs, Path vdir, int maxNames) {
+		this.meldfs = meldfs;
+		this.vdir = vdir;
+		this.maxNames = maxNames;
+	}
+
+	/**
+	 * Fills <code>dirBuffer</code> with entries starting at its position until it is full or the listing is exhausted
+	 * @param dirBuffer
+	 * @throws FilesystemException
+	 */
+	public synchronized void fill(DirBuffer dirBuffer) throws FilesystemException {
+		long offset = dirBuffer.getPosition();
+		if (offset != position)
+			seek(offset);
+		for (;;) {
+			String name = peek();
+			if (name == null)
+				return;
+			if (dirBuffer.putDir(name, position + 1))
+				return;
+			pending = null;
+			position++;
+		}
+	}
+
+	/** Moves the cursor so that the next entry consumed is the one at <code>offset</code> */
+	void seek(long offset) throws FilesystemException {
+		if (offset < position)
+			restart(offset == 0);
+		while (position < offset) {
+			if (peek() == null)
+				return;
+			pending = null;
+			position++;
+		}
+	}
+
+	private void restart(boolean reread) {
+		closeStream();
+		source = 0;
+		position = 0;
+		pending = null;
+		stripedNames = null;
+		if (reread) {
+			realDirs = null;
+			runs = null;
+			heads = null;
+		}
+		else if (heads != null) {
+			Arrays.fill(heads, 0);
+		}
+	}
+
+	/** Returns the next entry without consuming it, or null if there are no more */
+	String peek() throws FilesystemException {
+		if (pending != null)
+			return pending;
+		if (position == 0)
+			return pending = ".";
+		if (position == 1)
+			return pending = "..";
+		if (realDirs == null)
+			open();
+		String name = runs != null ? nextMerged() : nextStreamed();
+		if (name != null)
+			return pending = name;
+		if (meldfs.stripes != null) {
+			if (stripedNames == null)
+				stripedNames = meldfs.stripes.names(vdir).iterator();
+			while (stripedNames.hasNext()) {
+				name = stripedNames.next();
+				if (!isListed(name))
+					return pending = name;
+			}
+		}
+		return null;
+	}
+
+	private void open() throws FilesystemException {
+		realDirs = meldfs.getRealDirectories(vdir);
+		copies = 0;
+		for (Path realDir : realDirs)
+			if (realDir != null)
+				copies++;
+		if (copies > 1)
+			runs = readRuns();
+		if (runs != null)
+			heads = new int[runs.length];
+	}
+
+	/** Reads the sorted names of each copy of the directory, or returns null if there are more than <code>maxNames</code> */
+	private String[][] readRuns() {
+		String[][] runs = new String[realDirs.length][];
+		int total = 0;
+		ArrayList<String> names = new ArrayList<String>();
+		for (int i = 0; i < realDirs.length; i++) {
+			if (realDirs[i] == null)
+				continue;
+			names.clear();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(realDirs[i])) {
+				for (Path entry : stream) {
+					String name = entry.getFileName().toString();
+					if (meldfs.isHidden(vdir, name))
+						continue;
+					if (++total > maxNames)
+						return null;
+					names.add(name);
+				}
+			}
+			catch (IOException ioe) {
+				meldfs.getSource(i).handleReadException(ioe);
+			}
+			catch (DirectoryIteratorException die) {
+				meldfs.getSource(i).handleReadException(die.getCause());
+			}
+			runs[i] = names.toArray(new String[names.size()]);
+			Arrays.sort(runs[i]);
+		}
+		return runs;
+	}
+
+	/** Returns the least name at the head of any run, advancing every run it heads, or null if the runs are exhausted */
+	private String nextMerged() {
+		String least = null;
+		for (int i = 0; i < runs.length; i++) {
+			String[] run = runs[i];
+			if (run == null || heads[i] == run.length)
+				continue;
+			if (least == null || run[heads[i]].compareTo(least) < 0)
+				least = run[heads[i]];
+		}
+		if (least == null)
+			return null;
+		long mask = 0;
+		for (int i = 0; i < runs.length; i++) {
+			String[] run = runs[i];
+			if (run != null && heads[i] < run.length && least.equals(run[heads[i]])) {
+				heads[i]++;
+				mask |= 1L << i;
+			}
+		}
+		prefetch(least, mask);
+		return least;
+	}
+
+	/** Returns the next name streamed from the copies of the directory that should be listed, or null if there are no more */
+	private String nextStreamed() {
+		while (source < realDirs.length) {
+			try {
+				if (iterator == null) {
+					if (realDirs[source] == null) {
+						source++;
+						continue;
+					}
+					stream = Files.newDirectoryStream(realDirs[source]);
+					iterator = stream.iterator();
+				}
+				while (iterator.hasNext()) {
+					String name = iterator.next().getFileName().toString();
+					if (meldfs.isHidden(vdir, name))
+						continue;
+					if (copies == 1) {
+						prefetch(name, 1L << source);
+						return name;
+					}
+					if (!isListedEarlier(name))
+						return name;
+				}
+			}
+			catch (IOException ioe) {
+				meldfs.getSource(source).handleReadException(ioe);
+			}
+			catch (DirectoryIteratorException die) {
+				meldfs.getSource(source).handleReadException(die.getCause());
+			}
+			closeStream();
+			source++;
+		}
+		return null;
+	}
+
+	/** Returns true if <code>name</code> is in a copy of the directory on a source before the one being streamed */
+	private boolean isListedEarlier(String name) {
+		for (int i = 0; i < source; i++)
+			if (realDirs[i] != null && Files.exists(realDirs[i].resolve(name), LinkOption.NOFOLLOW_LINKS))
+				return true;
+		return false;
+	}
+
+	/** Returns true if <code>name</code> is in any copy of the directory */
+	private boolean isListed(String name) {
+		for (int i = 0; i < realDirs.length; i++) {
+			if (realDirs[i] == null)
+				continue;
+			if (runs != null ? Arrays.binarySearch(runs[i], name) >= 0 : Files.exists(realDirs[i].resolve(name), LinkOption.NOFOLLOW_LINKS))
+				return true;
+		}
+		return false;
+	}
+
+	/** Reads the attributes of the freshest copy of <code>name</code>, found on the sources in <code>sourceMask</code>, into the attribute cache */
+	private void prefetch(String name, long sourceMask) {
+		if (!meldfs.attributes.isEnabled() || realDirs.length > NamespaceIndex.MAX_SOURCES)
+			return;
+		Path vpath = vdir.resolve(name);
+		long stamp = meldfs.namespace.getStamp(vpath);
+		long attributeStamp = meldfs.attributes.getStamp(vpath);
+		try {
+			// find the freshest copy, which is usually the only copy
+			int best = Long.numberOfTrailingZeros(sourceMask);
+			if (Long.bitCount(sourceMask) > 1) {
+				Stat probe = MeldFs._stat.get();
+				long bestTime = Long.MIN_VALUE;
+				for (int i = best; i < realDirs.length; i++) {
+					if (0 == (sourceMask & (1L << i)))
+						continue;
+					FuselajFs.os_lstat(realDirs[i].resolve(name), probe);
+					long modTime = MeldFs.modTimeOf(probe);
+					if (modTime > bestTime) {
+						best = i;
+						bestTime = modTime;
+					}
+				}
+			}
+			long modTime = meldfs.attributes.load(vpath, best, realDirs[best].resolve(name), attributeStamp);
+			meldfs.found(vpath, sourceMask, best, modTime, stamp);
+		}
+		catch (FilesystemException fse) {
+			// it may have been removed since it was listed, but getattr will sort that out
+		}
+	}
+
+	private void closeStream() {
+		iterator = null;
+		if (stream != null) {
+			try {
+				stream.close();
+			}
+			catch (IOException ioe) {
+				meldfs.getSource(source).handleReadException(ioe);
+			}
+			stream = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closeStream();
+		runs = null;
+		heads = null;
+	}
+}
@@ -0,0 +1,23 @@
+package warrenfalk.meldfs;
+
+/**
+ * Selects how source operations and striping work are run, set with the <code>execution_mode</code> property
+ * @author warren
+ */
+public enum ExecutionMode {
+	/** pinned worker threads per source (see <code>FanoutSourceOpDispatcher</code>) */
+	FANOUT,
+	/** a task per source operation on a cached pool of platform threads */
+	POOL,
+	/** a task per source operation on its own virtual thread (requires Java 21+, otherwise falls back to POOL) */
+	VIRTUAL;
+
+	public static ExecutionMode parse(String value) {
+		try {
+			return valueOf(value.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown execution_mode: " + value);
+		}
+	}
+}
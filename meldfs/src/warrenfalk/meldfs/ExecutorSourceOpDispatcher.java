@@ -0,0 +1,45 @@
+package warrenfalk.meldfs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import warrenfalk.fuselaj.FilesystemException;
+
+/**
+ * Dispatches each source operation as a separate task to an executor service and waits on a monitor for completion
+ * @author warren
+ */
+public class ExecutorSourceOpDispatcher implements SourceOpDispatcher {
+	final SourceFs[] sources;
+	final ExecutorService threadPool;
+
+	public ExecutorSourceOpDispatcher(SourceFs[] sources, ExecutorService threadPool) {
+		this.sources = sources;
+		this.threadPool = threadPool;
+	}
+
+	@Override
+	public void dispatch(Object[] mask, SourceOp operation, FilesystemException[] errors) throws FilesystemException {
+		final AtomicInteger sync = new AtomicInteger(sources.length);
+		try {
+			synchronized (sync) {
+				for (int i = 0; i < sources.length; i++) {
+					if (null == mask || mask[i] != null)
+						threadPool.execute(new SourceOpRunner(operation, i, sources[i], sync, errors));
+					else
+						sync.decrementAndGet();
+				}
+				while (sync.intValue() > 0)
+					sync.wait();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new FilesystemException(e);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		// the executor service belongs to the caller
+	}
+}
@@ -0,0 +1,272 @@
+package warrenfalk.meldfs;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import warrenfalk.fuselaj.FilesystemException;
+
+/**
+ * A low-latency source operation dispatcher with long-lived worker threads pinned to each source.
+ * <p>Each source has a fixed-size lock-free queue served by its own workers.  A calling thread publishes one reusable
+ * call object to the queue of each selected source and then spins briefly before parking until the last worker to
+ * finish unparks it.  Nothing is allocated per call in the common case.</p>
+ * <p>If a source's queue is full, the operation is run on the calling thread instead of blocking.
+ * Operations that themselves dispatch (i.e. nested fan-outs from a worker thread) run sequentially
+ * on the worker, since waiting for a sibling worker could deadlock.</p>
+ * @author warren
+ */
+public class FanoutSourceOpDispatcher implements SourceOpDispatcher {
+	final SourceFs[] sources;
+	final SourceQueue[] queues;
+	final Worker[][] workers;
+	volatile boolean shutdown;
+
+	/** number of times to poll for work or completion before parking */
+	final static int SPINS = 200;
+
+	final ThreadLocal<Call> _call = new ThreadLocal<Call>() {
+		protected Call initialValue() {
+			return new Call();
+		};
+	};
+
+	public FanoutSourceOpDispatcher(SourceFs[] sources, int workersPerSource, int queueCapacity) {
+		this.sources = sources;
+		this.queues = new SourceQueue[sources.length];
+		this.workers = new Worker[sources.length][];
+		for (int i = 0; i < sources.length; i++) {
+			queues[i] = new SourceQueue(queueCapacity);
+			workers[i] = new Worker[workersPerSource];
+			for (int w = 0; w < workersPerSource; w++) {
+				Worker worker = new Worker(i, w);
+				workers[i][w] = worker;
+				worker.start();
+			}
+		}
+	}
+
+	@Override
+	public void dispatch(Object[] mask, SourceOp operation, FilesystemException[] errors) throws FilesystemException {
+		if (shutdown || Thread.currentThread() instanceof Worker) {
+			// nested fan-out from within a source operation
+			for (int i = 0; i < sources.length; i++)
+				if (null == mask || mask[i] != null)
+					runOperation(operation, i, errors);
+			return;
+		}
+
+		Call call = _call.get();
+		if (call.inUse)
+			call = new Call(); // re-entered on this thread (an operation run inline dispatched again)
+		call.inUse = true;
+		try {
+			int count = 0;
+			for (int i = 0; i < sources.length; i++)
+				if (null == mask || mask[i] != null)
+					count++;
+			if (count == 0)
+				return;
+			call.operation = operation;
+			call.errors = errors;
+			call.waiter = Thread.currentThread();
+			call.pending = count;
+			for (int i = 0; i < sources.length; i++) {
+				if (null == mask || mask[i] != null) {
+					if (queues[i].offer(call))
+						wake(i);
+					else
+						call.complete(i);
+				}
+			}
+			// the workers may have drained their queues and exited since shutdown was checked
+			if (shutdown)
+				for (int i = 0; i < sources.length; i++)
+					drain(i);
+			call.await();
+		}
+		finally {
+			call.operation = null;
+			call.errors = null;
+			call.inUse = false;
+		}
+	}
+
+	/** Wakes one idle worker for source <code>index</code>, if any are idle */
+	private void wake(int index) {
+		Worker[] sourceWorkers = workers[index];
+		for (int w = 0; w < sourceWorkers.length; w++) {
+			Worker worker = sourceWorkers[w];
+			if (worker.idle == 1 && idleUpdater.compareAndSet(worker, 1, 0)) {
+				LockSupport.unpark(worker);
+				return;
+			}
+		}
+	}
+
+	void runOperation(SourceOp operation, int index, FilesystemException[] errors) {
+		try {
+			operation.run(index, sources[index]);
+		}
+		catch (FilesystemException e) {
+			errors[index] = e;
+		}
+		catch (Throwable e) {
+			// anything else, errors included, is reported rather than left to kill the worker
+			errors[index] = new FilesystemException(e);
+		}
+	}
+
+	/** Runs whatever is left in the queue of source <code>index</code> on the calling thread */
+	void drain(int index) {
+		Call call;
+		while (null != (call = queues[index].poll()))
+			call.complete(index);
+	}
+
+	/** Stops the worker threads once they have finished their current work, after which operations run on the calling thread */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		for (Worker[] sourceWorkers : workers)
+			for (Worker worker : sourceWorkers)
+				LockSupport.unpark(worker);
+	}
+
+	/** A fan-out request, reused by the thread that issues it */
+	final class Call {
+		volatile int pending;
+		SourceOp operation;
+		FilesystemException[] errors;
+		Thread waiter;
+		boolean inUse;
+
+		/** Runs the operation against source <code>index</code> and signals the waiter if it was the last one */
+		void complete(int index) {
+			Thread waiter = this.waiter;
+			try {
+				runOperation(operation, index, errors);
+			}
+			finally {
+				// the waiter must be released whatever happens
+				if (0 == pendingUpdater.decrementAndGet(this))
+					LockSupport.unpark(waiter);
+			}
+		}
+
+		void await() {
+			for (int i = 0; i < SPINS; i++)
+				if (pending == 0)
+					return;
+			while (pending != 0)
+				LockSupport.park(this);
+		}
+	}
+
+	final static AtomicIntegerFieldUpdater<Call> pendingUpdater = AtomicIntegerFieldUpdater.newUpdater(Call.class, "pending");
+	final static AtomicIntegerFieldUpdater<Worker> idleUpdater = AtomicIntegerFieldUpdater.newUpdater(Worker.class, "idle");
+
+	/** A worker thread serving a single source */
+	final class Worker extends Thread {
+		final int index;
+		final SourceQueue queue;
+		volatile int idle;
+
+		Worker(int index, int number) {
+			super("MeldFs Source [" + index + "] Worker [" + number + "]");
+			this.index = index;
+			this.queue = queues[index];
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				Call call = poll();
+				if (call != null) {
+					call.complete(index);
+					continue;
+				}
+				// announce idleness before the last check so that a producer either sees it or we see its work
+				idle = 1;
+				call = queue.poll();
+				if (call != null) {
+					idle = 0;
+					call.complete(index);
+					continue;
+				}
+				LockSupport.park(this);
+				idle = 0;
+			}
+			drain(index);
+		}
+
+		private Call poll() {
+			for (int i = 0; i < SPINS; i++) {
+				Call call = queue.poll();
+				if (call != null)
+					return call;
+			}
+			return null;
+		}
+	}
+
+	/** Bounded multi-producer multi-consumer queue of calls (after Dmitry Vyukov's bounded MPMC queue) */
+	final static class SourceQueue {
+		final AtomicReferenceArray<Call> items;
+		final AtomicLongArray sequences;
+		final int mask;
+		final AtomicLong enqueuePos = new AtomicLong();
+		final AtomicLong dequeuePos = new AtomicLong();
+
+		SourceQueue(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+			items = new AtomicReferenceArray<Call>(size);
+			sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+				sequences.set(i, i);
+			mask = size - 1;
+		}
+
+		boolean offer(Call call) {
+			long pos = enqueuePos.get();
+			for (;;) {
+				int slot = (int)(pos & mask);
+				long diff = sequences.get(slot) - pos;
+				if (diff == 0) {
+					if (enqueuePos.compareAndSet(pos, pos + 1)) {
+						items.set(slot, call);
+						sequences.set(slot, pos + 1);
+						return true;
+					}
+				}
+				else if (diff < 0) {
+					return false; // full
+				}
+				pos = enqueuePos.get();
+			}
+		}
+
+		Call poll() {
+			long pos = dequeuePos.get();
+			for (;;) {
+				int slot = (int)(pos & mask);
+				long diff = sequences.get(slot) - (pos + 1);
+				if (diff == 0) {
+					if (dequeuePos.compareAndSet(pos, pos + 1)) {
+						Call call = items.get(slot);
+						items.set(slot, null);
+						sequences.set(slot, pos + mask + 1);
+						return call;
+					}
+				}
+				else if (diff < 0) {
+					return null; // empty
+				}
+				pos = dequeuePos.get();
+			}
+		}
+	}
+}
@@ -1,42 +1,134 @@
 package warrenfalk.meldfs;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import warrenfalk.fuselaj.FileInfo;
 
+/**
+ * The object behind a fuse file handle.
+ * <p>Handles live in a table of slots which is looked up without locking, since <code>get()</code> is called on
+ * every read and write.  A handle number is the slot index in the low 32 bits and the slot's generation in the high 32
+ * bits, so a released number is never mistaken for the handle that reuses its slot.  The table grows by whole chunks
+ * of slots, and released slots are kept on a lock-free stack for reuse.</p>
+ * @author warren
+ */
 public class FuseFileHandle {
+	final static int CHUNK_BITS = 10;
+	final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+
 	final long number;
 	Object data;
-	
-	private static AtomicLong nextHandle = new AtomicLong();
-	private static HashMap<Long,FuseFileHandle> map = new HashMap<Long,FuseFileHandle>();
-	
-	private FuseFileHandle(Object data) {
-		this.number = nextHandle.incrementAndGet();
+
+	private static volatile Chunk[] chunks = new Chunk[] { new Chunk() };
+	/** the number of slots ever handed out */
+	private static final AtomicInteger allocated = new AtomicInteger();
+	/** top of the free slot stack: a tag in the high 32 bits against ABA, and the slot plus one (zero if empty) in the low */
+	private static final AtomicLong freeTop = new AtomicLong();
+
+	/** A block of slots */
+	private static final class Chunk {
+		final AtomicReferenceArray<FuseFileHandle> handles = new AtomicReferenceArray<FuseFileHandle>(CHUNK_SIZE);
+		final AtomicIntegerArray generations = new AtomicIntegerArray(CHUNK_SIZE);
+		/** the slot below this one on the free stack, plus one */
+		final AtomicIntegerArray nextFree = new AtomicIntegerArray(CHUNK_SIZE);
+	}
+
+	private FuseFileHandle(long number, Object data) {
+		this.number = number;
 		this.data = data;
 	}
-	
+
 	public static FuseFileHandle open(FileInfo fi, Object data) {
-		FuseFileHandle handle = new FuseFileHandle(data);
+		FuseFileHandle handle = open(data);
 		fi.putFileHandle(handle.number);
-		synchronized (map) {
-			map.put(handle.number, handle);
-		}
 		return handle;
 	}
-	
+
+	static FuseFileHandle open(Object data) {
+		int slot = popFree();
+		if (slot == -1)
+			slot = allocate();
+		Chunk chunk = chunks[slot >>> CHUNK_BITS];
+		int index = slot & (CHUNK_SIZE - 1);
+		int generation = chunk.generations.incrementAndGet(index);
+		if (generation == 0)
+			generation = chunk.generations.incrementAndGet(index);
+		FuseFileHandle handle = new FuseFileHandle(((long)generation << 32) | slot, data);
+		chunk.handles.set(index, handle);
+		return handle;
+	}
+
 	public static FuseFileHandle release(FileInfo fi) {
-		FuseFileHandle handle;
-		synchronized (map) {
-			handle = map.remove(fi.getFileHandle());
-		}
+		return release(fi.getFileHandle());
+	}
+
+	static FuseFileHandle release(long number) {
+		int slot = (int)number;
+		Chunk[] chunks = FuseFileHandle.chunks;
+		if (slot < 0 || (slot >>> CHUNK_BITS) >= chunks.length)
+			return null;
+		Chunk chunk = chunks[slot >>> CHUNK_BITS];
+		int index = slot & (CHUNK_SIZE - 1);
+		FuseFileHandle handle = chunk.handles.get(index);
+		if (handle == null || handle.number != number || !chunk.handles.compareAndSet(index, handle, null))
+			return null;
+		pushFree(slot);
 		return handle;
 	}
-	
+
 	public static FuseFileHandle get(long number) {
-		synchronized (map) {
-			return map.get(number);
+		int slot = (int)number;
+		Chunk[] chunks = FuseFileHandle.chunks;
+		if (slot < 0 || (slot >>> CHUNK_BITS) >= chunks.length)
+			return null;
+		FuseFileHandle handle = chunks[slot >>> CHUNK_BITS].handles.get(slot & (CHUNK_SIZE - 1));
+		return (handle != null && handle.number == number) ? handle : null;
+	}
+
+	/** Takes a never used slot, adding a chunk to the table if needed */
+	private static int allocate() {
+		int slot = allocated.getAndIncrement();
+		int chunk = slot >>> CHUNK_BITS;
+		if (chunk >= chunks.length) {
+			synchronized (FuseFileHandle.class) {
+				Chunk[] current = chunks;
+				if (chunk >= current.length) {
+					Chunk[] grown = new Chunk[Math.max(chunk + 1, current.length * 2)];
+					System.arraycopy(current, 0, grown, 0, current.length);
+					for (int i = current.length; i < grown.length; i++)
+						grown[i] = new Chunk();
+					chunks = grown;
+				}
+			}
+		}
+		return slot;
+	}
+
+	private static void pushFree(int slot) {
+		Chunk chunk = chunks[slot >>> CHUNK_BITS];
+		for (;;) {
+			long top = freeTop.get();
+			chunk.nextFree.set(slot & (CHUNK_SIZE - 1), (int)top);
+			long newTop = (((top >>> 32) + 1) << 32) | ((slot + 1) & 0xffffffffL);
+			if (freeTop.compareAndSet(top, newTop))
+				return;
+		}
+	}
+
+	/** Takes a slot from the free stack, or returns -1 if it is empty */
+	private static int popFree() {
+		for (;;) {
+			long top = freeTop.get();
+			int slot = (int)top - 1;
+			if (slot == -1)
+				return -1;
+			int next = chunks[slot >>> CHUNK_BITS].nextFree.get(slot & (CHUNK_SIZE - 1));
+			long newTop = (((top >>> 32) + 1) << 32) | (next & 0xffffffffL);
+			if (freeTop.compareAndSet(top, newTop))
+				return slot;
 		}
 	}
 }
@@ -0,0 +1,562 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import warrenfalk.fuselaj.Stat;
+
+/**
+ * Stable inode numbers for virtual paths, so that the filesystem can be mounted with <code>use_ino</code>.
+ * <p>A virtual path keeps its number until it is removed, including across renames (a renamed directory takes its
+ * whole tree with it) and across mounts.  Files with more than one hard link are also known by their real inode on the
+ * source holding them, so that every name of the same file gets the same number.  Numbers are handed out in sequence
+ * starting at 2, the root being 1.</p>
+ * <p>The table is persisted as a <code>RecordLog</code> (<code>inodes.log</code>) and checkpoint
+ * (<code>inodes.ckpt</code>) in the <code>.meldfs</code> directory of the first source on which it can be written.
+ * If the log fills faster than it is checkpointed, records wait in memory for the background thread to checkpoint
+ * it and make room, and a path whose number can't be recorded because too many are waiting gets a number hashed
+ * from the path instead, as do paths not yet in the table once it is full.  These are stable but could collide.</p>
+ * @author warren
+ */
+public class InodeTable {
+	final static String LOG_NAME = "inodes.log";
+	final static String CHECKPOINT_NAME = "inodes.ckpt";
+	final static long LOG_MAGIC = 0x4d4653494e4f3031L; // "MFSINO01"
+	final static long CHECKPOINT_MAGIC = 0x4d4653494e433031L; // "MFSINC01"
+	final static byte FILE = 1;
+	final static byte DIRECTORY = 2;
+	final static byte LINK = 3;
+	final static byte MOVED = 4;
+	final static byte UNLINKED = 5;
+	final static byte NEXT = 6;
+
+	public final static long ROOT_INODE = 1;
+	/** set on numbers hashed from the path, which the sequence never reaches */
+	final static long HASHED = 0x4000000000000000L;
+	/** the most records that can wait for room in a full log */
+	final static int MAX_WAITING = 4096;
+
+	final SourceFs[] sources;
+	final Path rootPath;
+	final int maxEntries;
+	final int logSize;
+	final ConcurrentHashMap<Path,Long> byPath = new ConcurrentHashMap<Path,Long>();
+	/** the virtual paths numbered as directories, whose trees move with them */
+	final Map<Path,Boolean> directories = new ConcurrentHashMap<Path,Boolean>();
+	/** the number of each hard-linked file, by the source holding it and its real device and inode */
+	final ConcurrentHashMap<LinkKey,Long> links = new ConcurrentHashMap<LinkKey,Long>();
+	/** the hard-linked files in <code>links</code> by number, with how many of their names are in the table */
+	final ConcurrentHashMap<Long,Link> linked = new ConcurrentHashMap<Long,Link>();
+	/** the paths known beneath each directory, so that a tree can be moved without a scan of the whole table */
+	final ConcurrentHashMap<Path,Set<Path>> children = new ConcurrentHashMap<Path,Set<Path>>();
+	final AtomicLong next = new AtomicLong(ROOT_INODE + 1);
+	volatile RecordLog log;
+	Path checkpointFile;
+	volatile boolean checkpointWanted;
+	/** held while checkpointing, which can be asked for directly as well as happen in the background */
+	final Object checkpointLock = new Object();
+	/** records waiting for a checkpoint to make room in the log, which is also locked to keep appends in order */
+	final ArrayDeque<Record> waiting = new ArrayDeque<Record>();
+
+	public InodeTable(SourceFs[] sources, Path rootPath, int maxEntries, int logSize) {
+		this.sources = sources;
+		this.rootPath = rootPath;
+		this.maxEntries = maxEntries;
+		this.logSize = logSize;
+	}
+
+	/** Identifies a file on a source by its real device and inode */
+	final static class LinkKey {
+		final int source;
+		final long device;
+		final long inode;
+
+		LinkKey(int source, long device, long inode) {
+			this.source = source;
+			this.device = device;
+			this.inode = inode;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(inode ^ (inode >>> 32)) * 31 + (int)(device ^ (device >>> 32)) * 17 + source;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof LinkKey))
+				return false;
+			LinkKey other = (LinkKey)obj;
+			return source == other.source && device == other.device && inode == other.inode;
+		}
+
+		@Override
+		public String toString() {
+			return source + ":" + device + ":" + inode;
+		}
+
+		static LinkKey parse(String text) {
+			String[] parts = text.split(":");
+			return new LinkKey(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+		}
+	}
+
+	/** A record waiting to be appended to the log */
+	final static class Record {
+		final byte type;
+		final long value;
+		final String text;
+
+		Record(byte type, long value, String text) {
+			this.type = type;
+			this.value = value;
+			this.text = text;
+		}
+	}
+
+	/** A hard-linked file in the table */
+	final static class Link {
+		final LinkKey key;
+		final AtomicInteger names = new AtomicInteger();
+
+		Link(LinkKey key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Loads the table from the first source which has one, or on which one can be created
+	 * @return the number of paths loaded
+	 */
+	public int load() {
+		for (int i = 0; i < sources.length && log == null; i++) {
+			Path dir = sources[i].root.resolve(NamespaceCatalog.DIRECTORY);
+			State state = new State();
+			try {
+				RecordLog.readCheckpoint(dir.resolve(CHECKPOINT_NAME), CHECKPOINT_MAGIC, state);
+				RecordLog log = RecordLog.open(dir.resolve(LOG_NAME), LOG_MAGIC, logSize, state);
+				if (log == null)
+					continue;
+				if (!log.isWritable() && i + 1 < sources.length && state.paths.isEmpty()) {
+					// perhaps a read-only source, so look further
+					log.close();
+					continue;
+				}
+				state.copyTo(this);
+				checkpointFile = dir.resolve(CHECKPOINT_NAME);
+				this.log = log;
+			}
+			catch (IOException ioe) {
+				sources[i].handleReadException(ioe);
+			}
+		}
+		return byPath.size();
+	}
+
+	/** Starts a background thread which checkpoints the table every <code>checkpointMillis</code> or whenever its log is half full */
+	public void start(final long checkpointMillis) {
+		Thread thread = new Thread("MeldFs Inodes") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						synchronized (InodeTable.this) {
+							if (!checkpointWanted)
+								InodeTable.this.wait(checkpointMillis);
+							checkpointWanted = false;
+						}
+						checkpoint();
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the inode number of <code>vpath</code>, numbering it if it isn't known yet
+	 * @param vpath
+	 * @param source the source from which <code>stat</code> was read
+	 * @param stat the attributes of the freshest version of <code>vpath</code>
+	 * @return
+	 */
+	public long inodeOf(Path vpath, int source, Stat stat) {
+		Long ino = byPath.get(vpath);
+		if (ino != null)
+			return ino.longValue();
+		return assign(vpath, source, (stat.getMode() & 0170000) == 0040000, stat.getLinkCount(), stat.getDevice(), stat.getInode());
+	}
+
+	/** Numbers a path which isn't in the table yet */
+	long assign(Path vpath, int source, boolean directory, long linkCount, long device, long inode) {
+		if (vpath.equals(rootPath))
+			return ROOT_INODE;
+		if (byPath.size() >= maxEntries)
+			return hashed(vpath);
+		LinkKey key = null;
+		Long ino = null;
+		if (!directory && linkCount > 1) {
+			key = new LinkKey(source, device, inode);
+			ino = links.get(key);
+		}
+		if (ino == null) {
+			ino = next.getAndIncrement();
+			if (key != null) {
+				Long existing = links.putIfAbsent(key, ino);
+				if (existing != null) {
+					ino = existing;
+				}
+				else {
+					linked.put(ino, new Link(key));
+					append(LINK, ino, key.toString());
+				}
+			}
+		}
+		Long existing = index(vpath, ino);
+		if (existing.longValue() != ino.longValue())
+			return existing.longValue();
+		if (directory)
+			directories.put(vpath, Boolean.TRUE);
+		if (!append(directory ? DIRECTORY : FILE, ino, vpath.toString())) {
+			// a number that can't be recorded wouldn't survive the mount, so give the path one that will
+			unindex(vpath);
+			directories.remove(vpath);
+			return hashed(vpath);
+		}
+		return ino.longValue();
+	}
+
+	/** Returns a stable number for a path that can't be kept in the table (64-bit FNV-1a of the path) */
+	static long hashed(Path vpath) {
+		String text = vpath.toString();
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return (hash & (HASHED - 1)) | HASHED;
+	}
+
+	/**
+	 * Records that <code>to</code> is a new hard link to the file at <code>from</code>, so it has the same number
+	 * @param from
+	 * @param to
+	 * @param source the source holding the file
+	 * @param device the real device of the file
+	 * @param inode the real inode of the file
+	 */
+	public synchronized void linked(Path from, Path to, int source, long device, long inode) {
+		if (byPath.size() >= maxEntries)
+			return;
+		LinkKey key = new LinkKey(source, device, inode);
+		Long ino = byPath.get(from);
+		if (ino == null)
+			ino = links.get(key);
+		if (ino == null) {
+			ino = next.getAndIncrement();
+			index(from, ino);
+			append(FILE, ino, from.toString());
+		}
+		if (links.put(key, ino) == null)
+			append(LINK, ino, key.toString());
+		if (!linked.containsKey(ino)) {
+			// the names already in the table are counted from here on
+			Link link = new Link(key);
+			link.names.set(byPath.containsKey(from) ? 1 : 0);
+			linked.put(ino, link);
+		}
+		unindex(to);
+		index(to, ino);
+		append(FILE, ino, to.toString());
+	}
+
+	/** Records that <code>from</code> was renamed to <code>to</code>, along with its tree if it is a directory */
+	public synchronized void moved(Path from, Path to) {
+		// whatever was at the target has been replaced
+		unindex(to);
+		directories.remove(to);
+		relocate(from, to);
+		if (directories.remove(from) != null)
+			directories.put(to, Boolean.TRUE);
+		moveTree(from, to);
+		append(MOVED, 0, from.toString() + '\0' + to.toString());
+	}
+
+	/** Moves everything known beneath <code>from</code> to beneath <code>to</code> */
+	private void moveTree(Path from, Path to) {
+		Set<Path> below = children.remove(from);
+		if (below == null)
+			return;
+		for (Path vpath : below) {
+			Path moved = to.resolve(vpath.getFileName());
+			relocate(vpath, moved);
+			if (directories.remove(vpath) != null)
+				directories.put(moved, Boolean.TRUE);
+			moveTree(vpath, moved);
+		}
+	}
+
+	/** Records that <code>vpath</code> was removed */
+	public synchronized void unlinked(Path vpath) {
+		unindex(vpath);
+		directories.remove(vpath);
+		children.remove(vpath);
+		append(UNLINKED, 0, vpath.toString());
+	}
+
+	/** Puts <code>vpath</code> in the table, unless it is already there, returning the number it has */
+	private Long index(Path vpath, Long ino) {
+		Long existing = byPath.putIfAbsent(vpath, ino);
+		if (existing != null)
+			return existing;
+		register(vpath);
+		Link link = linked.get(ino);
+		if (link != null)
+			link.names.incrementAndGet();
+		return ino;
+	}
+
+	/** Takes <code>vpath</code> out of the table, forgetting the real file of a hard link once none of its names are left */
+	private void unindex(Path vpath) {
+		Set<Path> siblings = children.get(parentOf(vpath));
+		if (siblings != null)
+			siblings.remove(vpath);
+		Long ino = byPath.remove(vpath);
+		if (ino == null)
+			return;
+		Link link = linked.get(ino);
+		if (link != null && link.names.decrementAndGet() <= 0) {
+			linked.remove(ino, link);
+			links.remove(link.key, ino);
+		}
+	}
+
+	/** Moves the number of <code>from</code>, if it has one, to <code>to</code> */
+	private void relocate(Path from, Path to) {
+		Set<Path> siblings = children.get(parentOf(from));
+		if (siblings != null)
+			siblings.remove(from);
+		Long ino = byPath.remove(from);
+		if (ino != null)
+			byPath.put(to, ino);
+		register(to);
+	}
+
+	/** Adds <code>vpath</code>, and any of its ancestors not yet known, to the paths beneath their parents */
+	private void register(Path vpath) {
+		for (Path parent = parentOf(vpath); parent != null; vpath = parent, parent = parentOf(parent)) {
+			Set<Path> siblings = children.get(parent);
+			if (siblings == null) {
+				Set<Path> created = Collections.newSetFromMap(new ConcurrentHashMap<Path,Boolean>());
+				siblings = children.putIfAbsent(parent, created);
+				if (siblings == null)
+					siblings = created;
+			}
+			if (!siblings.add(vpath))
+				return;
+		}
+	}
+
+	/** Returns the parent of <code>vpath</code>, or null if it is the root */
+	private Path parentOf(Path vpath) {
+		if (vpath.equals(rootPath))
+			return null;
+		Path parent = vpath.getParent();
+		return parent == null ? rootPath : parent;
+	}
+
+	/**
+	 * Appends a record, or leaves it waiting for the background checkpoint if the log is full
+	 * @return false if the record couldn't be written
+	 */
+	private boolean append(byte type, long value, String text) {
+		RecordLog log = this.log;
+		if (log == null)
+			return false;
+		boolean full;
+		synchronized (waiting) {
+			// once records are waiting, later ones wait behind them so that the log stays in order
+			full = !waiting.isEmpty() || !log.offer(type, value, text);
+			if (full) {
+				if (waiting.size() >= MAX_WAITING)
+					return false;
+				waiting.add(new Record(type, value, text));
+			}
+		}
+		if ((full || log.isHalfFull()) && !checkpointWanted) {
+			synchronized (this) {
+				checkpointWanted = true;
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/** Folds the log into the checkpoint, then appends the records waiting for room */
+	public void checkpoint() {
+		RecordLog log = this.log;
+		if (log == null)
+			return;
+		synchronized (checkpointLock) {
+			try {
+				do {
+					log.checkpoint(checkpointFile, CHECKPOINT_MAGIC, new State());
+				} while (appendWaiting(log));
+			}
+			catch (IOException ioe) {
+				System.err.println("Failed to checkpoint inode table: " + ioe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Appends as many waiting records as there is room for
+	 * @return true if some were appended but others are still waiting
+	 */
+	private boolean appendWaiting(RecordLog log) {
+		synchronized (waiting) {
+			int appended = 0;
+			for (Record record; null != (record = waiting.peek()) && log.offer(record.type, record.value, record.text); appended++)
+				waiting.poll();
+			return appended > 0 && !waiting.isEmpty();
+		}
+	}
+
+	/** Closes the log so that it can be opened again (by this or another process) */
+	public void close() {
+		boolean waited;
+		synchronized (waiting) {
+			waited = !waiting.isEmpty();
+		}
+		if (waited)
+			checkpoint();
+		RecordLog log = this.log;
+		this.log = null;
+		if (log == null)
+			return;
+		try {
+			log.close();
+		}
+		catch (IOException ioe) {
+			System.err.println("Failed to close inode table: " + ioe.getMessage());
+		}
+	}
+
+	public int size() {
+		return byPath.size();
+	}
+
+	/** The table as rebuilt from a checkpoint and log */
+	static class State implements RecordLog.State {
+		/** sorted, so that the tree beneath a directory can be found without a scan */
+		final TreeMap<String,Long> paths = new TreeMap<String,Long>();
+		final TreeSet<String> directories = new TreeSet<String>();
+		final HashMap<String,Long> links = new HashMap<String,Long>();
+		long next = ROOT_INODE + 1;
+
+		@Override
+		public void apply(byte type, long value, String text) {
+			switch (type) {
+			case FILE:
+			case DIRECTORY:
+				paths.put(text, value);
+				if (type == DIRECTORY)
+					directories.add(text);
+				else
+					directories.remove(text);
+				next = Math.max(next, value + 1);
+				break;
+			case LINK:
+				links.put(text, value);
+				next = Math.max(next, value + 1);
+				break;
+			case MOVED:
+				int split = text.indexOf('\0');
+				if (split != -1)
+					move(text.substring(0, split), text.substring(split + 1));
+				break;
+			case UNLINKED:
+				paths.remove(text);
+				directories.remove(text);
+				break;
+			case NEXT:
+				next = Math.max(next, value);
+				break;
+			}
+		}
+
+		private void move(String from, String to) {
+			Long ino = paths.remove(from);
+			paths.remove(to);
+			directories.remove(to);
+			boolean directory = directories.remove(from);
+			if (ino != null)
+				paths.put(to, ino);
+			if (!directory)
+				return;
+			directories.add(to);
+			// the paths beneath it sort between from + '/' and from + '0', the character after '/'
+			SortedMap<String,Long> tree = paths.subMap(from + '/', from + '0');
+			TreeMap<String,Long> movedPaths = new TreeMap<String,Long>(tree);
+			tree.clear();
+			SortedSet<String> treeDirectories = directories.subSet(from + '/', from + '0');
+			TreeSet<String> movedDirectories = new TreeSet<String>(treeDirectories);
+			treeDirectories.clear();
+			for (Map.Entry<String,Long> entry : movedPaths.entrySet())
+				paths.put(to + entry.getKey().substring(from.length()), entry.getValue());
+			for (String moved : movedDirectories)
+				directories.add(to + moved.substring(from.length()));
+		}
+
+		@Override
+		public void writeTo(RecordLog.CheckpointWriter out) throws IOException {
+			HashSet<Long> live = new HashSet<Long>();
+			for (Map.Entry<String,Long> entry : paths.entrySet()) {
+				out.write(directories.contains(entry.getKey()) ? DIRECTORY : FILE, entry.getValue().longValue(), entry.getKey());
+				live.add(entry.getValue());
+			}
+			// links whose number no longer belongs to any path are dropped, but the sequence must not go back
+			for (Map.Entry<String,Long> entry : links.entrySet())
+				if (live.contains(entry.getValue()))
+					out.write(LINK, entry.getValue().longValue(), entry.getKey());
+			out.write(NEXT, next, "");
+		}
+
+		void copyTo(InodeTable table) {
+			// links first, so that their names are counted
+			for (Map.Entry<String,Long> entry : links.entrySet()) {
+				LinkKey key = LinkKey.parse(entry.getKey());
+				table.links.put(key, entry.getValue());
+				table.linked.put(entry.getValue(), new Link(key));
+			}
+			for (Map.Entry<String,Long> entry : paths.entrySet()) {
+				Path vpath = toPath(entry.getKey());
+				table.index(vpath, entry.getValue());
+				if (directories.contains(entry.getKey()))
+					table.directories.put(vpath, Boolean.TRUE);
+			}
+			table.next.set(Math.max(table.next.get(), next));
+		}
+	}
+
+	static Path toPath(String vpath) {
+		return FileSystems.getDefault().getPath(vpath);
+	}
+}
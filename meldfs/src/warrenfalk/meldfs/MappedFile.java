@@ -0,0 +1,106 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Serves reads of one open file by copying from memory mappings of it.
+ * <p>Reading a mapping beyond the end of a file which has been truncated since it was mapped raises SIGBUS, which
+ * can't be recovered from safely.  So a file is only mapped while it isn't open for writing through the mount, and
+ * opening it for writing or truncating it through the mount, by any of its names, first waits out reads of the
+ * mappings and unmaps it, after which it is read normally.</p>
+ * <p>A file truncated other than through the mount is noticed by checking its size before each read, which costs much
+ * less than the read it replaces, after which it is unmapped and read normally too.  A truncation between the check
+ * and the copy can still fault, which the JVM raises as an <code>InternalError</code>; that is caught if it arrives
+ * during the copy, but compiled code may only see it later.</p>
+ * @see MappedReads
+ * @author warren
+ */
+public class MappedFile {
+	/** returned by <code>read()</code> when the read must be done from the channel instead */
+	public final static int UNMAPPED = -2;
+
+	final FileChannel channel;
+	final MappedReads mappings;
+	/** the identity of the file (shared by all its names), from its attributes */
+	final Object fileKey;
+	final long size;
+	/** held shared by reads of the mappings and exclusively to unmap */
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	volatile boolean unmapped;
+
+	MappedFile(FileChannel channel, MappedReads mappings, Object fileKey, long size) {
+		this.channel = channel;
+		this.mappings = mappings;
+		this.fileKey = fileKey;
+		this.size = size;
+	}
+
+	/**
+	 * Reads into <code>dst</code> from <code>position</code>
+	 * @param dst
+	 * @param position
+	 * @return the number of bytes read, -1 at the end of the file, or <code>UNMAPPED</code>
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (unmapped)
+			return UNMAPPED;
+		if (channel.size() < size) {
+			mappings.truncated(this);
+			return UNMAPPED;
+		}
+		lock.readLock().lock();
+		try {
+			if (unmapped)
+				return UNMAPPED;
+			if (position >= size)
+				return -1;
+			int start = dst.position();
+			long segmentSize = mappings.segmentSize;
+			try {
+				while (dst.hasRemaining() && position < size) {
+					long index = position / segmentSize;
+					MappedByteBuffer segment = mappings.segment(channel, index, size);
+					ByteBuffer src = segment.duplicate();
+					int offset = (int)(position - index * segmentSize);
+					if (offset >= src.limit())
+						break;
+					src.position(offset);
+					if (src.remaining() > dst.remaining())
+						src.limit(offset + dst.remaining());
+					position += src.remaining();
+					dst.put(src);
+				}
+			}
+			catch (InternalError fault) {
+				// the fault from reading a mapping past the end of the file, truncated since the size was checked
+				dst.position(start);
+				mappings.truncated(this);
+				return UNMAPPED;
+			}
+			return dst.position() - start;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Stops reading from the mappings, once reads in progress are done, so the file can be changed */
+	void unmap() {
+		lock.writeLock().lock();
+		try {
+			unmapped = true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close() {
+		mappings.closed(this);
+	}
+}
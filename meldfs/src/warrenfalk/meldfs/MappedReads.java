@@ -0,0 +1,201 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory mappings used to serve reads of large read-only files, shared by all open files.
+ * <p>Files are mapped in segments (so that files over 2GB can be mapped at all), on demand, and the segments are kept
+ * in least recently used order with a bound on the total bytes mapped.  Segments are keyed by channel, so a channel
+ * reused from the <code>ChannelCache</code> reuses its mappings too, and they are dropped when the channel is closed.  A
+ * dropped segment is unmapped when it is garbage collected.</p>
+ * <p>The open mapped files are also kept by file key, along with the number of opens of each file for writing, so that
+ * a file isn't mapped while it could be truncated, and is unmapped before it is (see <code>MappedFile</code>).</p>
+ * @see MappedFile
+ * @author warren
+ */
+public class MappedReads {
+	final long segmentSize;
+	final long maxBytes;
+	final long minFileSize;
+	final LinkedHashMap<Key,MappedByteBuffer> segments = new LinkedHashMap<Key,MappedByteBuffer>(16, 0.75f, true);
+	long mappedBytes;
+	final AtomicLong fallbacks = new AtomicLong();
+	final AtomicLong truncations = new AtomicLong();
+	/** the open mapped files by file key */
+	final HashMap<Object,ArrayList<MappedFile>> files = new HashMap<Object,ArrayList<MappedFile>>();
+	/** the number of opens for writing (or truncations in progress) of each file by file key */
+	final HashMap<Object,Integer> writers = new HashMap<Object,Integer>();
+
+	/**
+	 * @param segmentSize the size of each mapping (at most 2GB)
+	 * @param maxBytes the most bytes to keep mapped
+	 * @param minFileSize the size below which files are read rather than mapped
+	 */
+	public MappedReads(long segmentSize, long maxBytes, long minFileSize) {
+		this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+		this.maxBytes = maxBytes;
+		this.minFileSize = minFileSize;
+	}
+
+	final static class Key {
+		final FileChannel channel;
+		final long index;
+
+		Key(FileChannel channel, long index) {
+			this.channel = channel;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(channel) * 31 + (int)index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return channel == other.channel && index == other.index;
+		}
+	}
+
+	/** Returns true if a file of <code>size</code> bytes should be mapped */
+	public boolean isWorthMapping(long size) {
+		return size >= minFileSize;
+	}
+
+	/**
+	 * Maps reads of an open file, unless the file is open for writing
+	 * @param channel
+	 * @param fileKey the file's key, from its attributes
+	 * @param size the size of the file
+	 * @return the mapped file, or null if it can't be mapped
+	 */
+	public synchronized MappedFile open(FileChannel channel, Object fileKey, long size) {
+		if (fileKey == null || writers.containsKey(fileKey))
+			return null;
+		MappedFile file = new MappedFile(channel, this, fileKey, size);
+		ArrayList<MappedFile> list = files.get(fileKey);
+		if (list == null)
+			files.put(fileKey, list = new ArrayList<MappedFile>(1));
+		list.add(file);
+		return file;
+	}
+
+	synchronized void closed(MappedFile file) {
+		ArrayList<MappedFile> list = files.get(file.fileKey);
+		if (list != null && list.remove(file) && list.isEmpty())
+			files.remove(file.fileKey);
+	}
+
+	/**
+	 * Records that the file with <code>fileKey</code> is about to be opened for writing or truncated, unmapping every
+	 * open mapped file of it, and keeping it from being mapped until <code>written()</code>
+	 * @param fileKey
+	 */
+	public void writing(Object fileKey) {
+		ArrayList<MappedFile> unmapping;
+		synchronized (this) {
+			Integer count = writers.get(fileKey);
+			writers.put(fileKey, (count == null) ? 1 : count + 1);
+			ArrayList<MappedFile> list = files.remove(fileKey);
+			if (list == null)
+				return;
+			unmapping = list;
+		}
+		// outside the lock, since reads in progress may be mapping segments
+		for (MappedFile file : unmapping) {
+			file.unmap();
+			fallbacks.incrementAndGet();
+			invalidate(file.channel);
+		}
+	}
+
+	/** Stops mapping <code>file</code>, which has been found truncated other than through the mount */
+	void truncated(MappedFile file) {
+		if (file.unmapped)
+			return;
+		// there is no truncation to wait for, so reads of the mappings in progress aren't waited out either
+		file.unmapped = true;
+		truncations.incrementAndGet();
+		invalidate(file.channel);
+	}
+
+	/** Records that an open for writing (or truncation) of the file with <code>fileKey</code> is done */
+	public synchronized void written(Object fileKey) {
+		Integer count = writers.get(fileKey);
+		if (count == null || count <= 1)
+			writers.remove(fileKey);
+		else
+			writers.put(fileKey, count - 1);
+	}
+
+	/**
+	 * Gets the mapping of segment <code>index</code> of <code>channel</code>, mapping it if necessary
+	 * @param channel
+	 * @param index
+	 * @param fileSize the size of the file, which bounds the last segment
+	 * @return
+	 * @throws IOException
+	 */
+	MappedByteBuffer segment(FileChannel channel, long index, long fileSize) throws IOException {
+		Key key = new Key(channel, index);
+		synchronized (this) {
+			MappedByteBuffer segment = segments.get(key);
+			if (segment != null)
+				return segment;
+		}
+		long start = index * segmentSize;
+		long length = Math.min(segmentSize, fileSize - start);
+		MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		synchronized (this) {
+			MappedByteBuffer existing = segments.put(key, segment);
+			if (existing != null)
+				mappedBytes -= existing.capacity();
+			mappedBytes += segment.capacity();
+			if (mappedBytes > maxBytes)
+				removeClosed();
+			Iterator<MappedByteBuffer> i = segments.values().iterator();
+			while (mappedBytes > maxBytes && segments.size() > 1 && i.hasNext()) {
+				MappedByteBuffer eldest = i.next();
+				i.remove();
+				mappedBytes -= eldest.capacity();
+			}
+		}
+		return segment;
+	}
+
+	/** Drops the mappings of <code>channel</code>, because it is closed or its file has changed size */
+	synchronized void invalidate(FileChannel channel) {
+		ArrayList<Key> keys = new ArrayList<Key>();
+		for (Key key : segments.keySet())
+			if (key.channel == channel)
+				keys.add(key);
+		for (Key key : keys)
+			mappedBytes -= segments.remove(key).capacity();
+	}
+
+	/** Drops the mappings of channels which have been closed */
+	synchronized void removeClosed() {
+		for (Iterator<Map.Entry<Key,MappedByteBuffer>> i = segments.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Key,MappedByteBuffer> entry = i.next();
+			if (!entry.getKey().channel.isOpen()) {
+				mappedBytes -= entry.getValue().capacity();
+				i.remove();
+			}
+		}
+	}
+
+	public synchronized String getStatistics() {
+		return segments.size() + " segments, " + mappedBytes + " bytes mapped, " + fallbacks.get() + " unmapped for writing, " + truncations.get() + " found truncated";
+	}
+}
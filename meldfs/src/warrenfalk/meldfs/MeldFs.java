@@ -1,6 +1,7 @@
 package warrenfalk.meldfs;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
@@ -9,29 +10,191 @@ import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import warrenfalk.fuselaj.Errno;
 import warrenfalk.fuselaj.FilesystemException;
 import warrenfalk.fuselaj.FuselajFs;
 import warrenfalk.fuselaj.Stat;
+import warrenfalk.fuselaj.StatVfs;
 
 public class MeldFs {
 	final Path rootPath = FileSystems.getDefault().getPath(".").normalize();
 	private SourceFs[] sources;
 	ExecutorService threadPool;
+	ThreadFactory threadFactory;
+	final SourceOpDispatcher dispatcher;
+	final NamespaceIndex namespace;
+	final PathIntern paths;
+	final NegativeCache negatives;
+	final AttributeCache attributes;
+	/** the most names a listing holds to merge the copies of a directory, beyond which it probes the sources for duplicates instead */
+	final int readdirMergeMax;
+	/** the persistent catalog, or null if disabled */
+	final NamespaceCatalog catalog;
+	/** the watcher for changes made directly to the sources, or null if disabled */
+	final SourceWatcher watcher;
+	final SourceCapacity capacity;
+	final PlacementPolicy placement;
+	/** number of checksum columns per stripe */
+	final int redundancy;
+	/** the persistent inode numbers, or null if disabled */
+	final InodeTable inodes;
+	/** the kernel entry and attribute cache timeouts in seconds, or negative for the fuse defaults */
+	final double entryTimeout, attrTimeout;
+	/** the buffers for reading ahead of sequential readers, or null if disabled */
+	final BufferPool readaheadBuffers;
+	final int readaheadWindow;
+	/** the mappings of large read-only files, or null if they are read normally */
+	final MappedReads mappedReads;
+	/** channels kept open across open and release */
+	final ChannelCache channels;
+	/** the write-behind buffers, or null if disabled */
+	final WriteBehindPool writeBehind;
+	/** the files replaced by stripe columns, or null if they aren't presented in the namespace */
+	final StripedFiles stripes;
+	/** how many times the usual column latency a striped read waits before reconstructing late columns, or 0 (the default) never to */
+	final int stripeHedgeFactor;
+	/** the least time in milliseconds a striped read waits before reconstructing late columns */
+	final long stripeHedgeMinDelay;
+	/** the buffers for streaming sequential reads of striped files, or null if disabled */
+	final BufferPool stripeStreamBuffers;
+	/** the most buffers each column of a streamed striped file reads ahead into */
+	final int stripeStreamRing;
+	/** the most striped files streaming at once, each with a reader thread per data column */
+	final int stripeStreamMax;
+	/** the permits for striped files streaming at once */
+	final Semaphore stripeStreams;
+	/** counts writes by hash of the virtual path, so that data read before a write can be recognized as stale */
+	final AtomicLongArray writeEpochs = new AtomicLongArray(1024);
 	ThreadLocal<FilesystemException[]> _exceptions = new ThreadLocal<FilesystemException[]>();
+	final static ThreadLocal<Stat> _stat = new ThreadLocal<Stat>() {
+		protected Stat initialValue() {
+			return new Stat(ByteBuffer.allocateDirect(0x100));
+		};
+	};
 
 	public MeldFs() throws IOException {
+		this(new MeldFsProperties(), true);
+	}
+
+	public MeldFs(MeldFsProperties props) throws IOException {
+		this(props, true);
+	}
+
+	/**
+	 * @param props
+	 * @param mounted false if this is for a tool working on the sources (e.g. the command line), in which case no
+	 * background threads are started and the catalog and inode table of a running mount are left to it
+	 * @throws IOException
+	 */
+	public MeldFs(MeldFsProperties props, boolean mounted) throws IOException {
 		System.loadLibrary("fuselaj");
-		MeldFsProperties props = new MeldFsProperties();
 		Path[] sources = props.getSources();
 		this.sources = SourceFs.fromPaths(sources);
-		threadPool = Executors.newCachedThreadPool();
+		paths = new PathIntern(this.sources, rootPath, props.getInt("path_intern_size", 65536));
+		ExecutionMode mode = ExecutionMode.parse(props.getString("execution_mode", "pool"));
+		if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+			System.err.println("Virtual threads are not supported by this JVM, using execution_mode=pool");
+			mode = ExecutionMode.POOL;
+		}
+		if (mode == ExecutionMode.VIRTUAL) {
+			threadPool = VirtualThreads.newExecutor();
+			threadFactory = VirtualThreads.newThreadFactory();
+		}
+		else {
+			threadPool = Executors.newCachedThreadPool();
+			threadFactory = Executors.defaultThreadFactory();
+		}
+		if (mode == ExecutionMode.FANOUT && mounted)
+			dispatcher = new FanoutSourceOpDispatcher(this.sources, props.getInt("fanout_workers", 2), props.getInt("fanout_queue", 256));
+		else
+			dispatcher = new ExecutorSourceOpDispatcher(this.sources, threadPool);
+		int indexSize = props.getInt("index_max_entries", 500000);
+		if (sources.length > NamespaceIndex.MAX_SOURCES)
+			indexSize = 0;
+		namespace = new NamespaceIndex(indexSize);
+		negatives = new NegativeCache(props.getInt("negative_cache_size", 65536), props.getLong("negative_cache_ttl", 2000));
+		if (indexSize > 0 && props.getBoolean("catalog", true)) {
+			catalog = new NamespaceCatalog(this.sources, props.getInt("catalog_log_size", 64 * 1024 * 1024), indexSize);
+			if (mounted)
+				catalog.start(namespace, props.getLong("catalog_checkpoint_interval", 300) * 1000L);
+			else
+				catalog.openPending();
+		}
+		else {
+			catalog = null;
+		}
+		if (mounted && props.getBoolean("inode_table", false)) {
+			inodes = new InodeTable(this.sources, rootPath, props.getInt("inode_table_size", 1000000), props.getInt("inode_log_size", 16 * 1024 * 1024));
+			inodes.load();
+			inodes.start(props.getLong("catalog_checkpoint_interval", 300) * 1000L);
+		}
+		else {
+			inodes = null;
+		}
+		entryTimeout = Double.parseDouble(props.getString("entry_timeout", "-1"));
+		attrTimeout = Double.parseDouble(props.getString("attr_timeout", "-1"));
+		readaheadWindow = props.getInt("readahead_window", 4 * 1024 * 1024);
+		if (readaheadWindow > 0)
+			readaheadBuffers = new BufferPool(props.getInt("readahead_block_size", 1024 * 1024), props.getLong("readahead_budget", 256L * 1024 * 1024));
+		else
+			readaheadBuffers = null;
+		if (props.getBoolean("mmap_reads", false))
+			mappedReads = new MappedReads(props.getLong("mmap_segment_size", 1024L * 1024 * 1024), props.getLong("mmap_max_bytes", 8L * 1024 * 1024 * 1024), props.getLong("mmap_min_size", 64L * 1024 * 1024));
+		else
+			mappedReads = null;
+		channels = new ChannelCache(props.getInt("channel_cache_size", 1024), props.getLong("channel_cache_idle", 10000), props.getLong("channel_cache_max_age", 10000), mappedReads);
+		if (channels.isEnabled() && mounted)
+			channels.start();
+		if (mounted && props.getBoolean("write_behind", false)) {
+			writeBehind = new WriteBehindPool(props.getInt("write_behind_buffer_size", 1024 * 1024), props.getLong("write_behind_budget", 64L * 1024 * 1024), props.getLong("write_behind_delay", 1000));
+			writeBehind.start();
+		}
+		else {
+			writeBehind = null;
+		}
+		if (props.getBoolean("striped_files", true))
+			stripes = new StripedFiles(this.sources, rootPath, props.getInt("stripe_cache_size", 4096), props.getLong("stripe_cache_ttl", 1000));
+		else
+			stripes = null;
+		stripeHedgeFactor = props.getInt("stripe_hedge_factor", 0);
+		stripeHedgeMinDelay = props.getLong("stripe_hedge_min_delay", 20);
+		if (props.getBoolean("stripe_streaming", false))
+			stripeStreamBuffers = new BufferPool(props.getInt("stripe_stream_buffer_size", 1024 * 1024), props.getLong("stripe_stream_budget", 256L * 1024 * 1024));
+		else
+			stripeStreamBuffers = null;
+		stripeStreamRing = props.getInt("stripe_stream_ring", 4);
+		stripeStreamMax = props.getInt("stripe_stream_max", 16);
+		stripeStreams = new Semaphore(stripeStreamMax);
+		attributes = new AttributeCache(props.getBoolean("attr_prefetch", true) ? props.getInt("attr_cache_size", 16384) : 0, props.getLong("attr_cache_ttl", 1000));
+		readdirMergeMax = props.getInt("readdir_merge_max", 65536);
+		redundancy = props.getInt("redundancy", 2);
+		capacity = new SourceCapacity(this.sources);
+		if (mounted)
+			capacity.start(props.getLong("capacity_refresh_interval", 10) * 1000L);
+		else
+			capacity.refresh();
+		placement = PlacementPolicies.create(props.getString("placement", "freshest"), capacity, props.getInt("placement_min_free_percent", 5));
+		if (mounted && props.getBoolean("watch_sources", false)) {
+			watcher = new SourceWatcher(this, this.sources, props.getInt("watch_max_directories", 65536), props.getLong("watch_ignore_own", 500));
+			watcher.start();
+		}
+		else {
+			watcher = null;
+		}
 	}
 
 	/** Runs a source operation against all selected sources concurrently, returning only when all are complete.
@@ -41,7 +204,6 @@ public class MeldFs {
 	 * @throws FilesystemException
 	 */
 	private FilesystemException[] runMultiSourceOperation(Object[] mask, SourceOp operation) throws FilesystemException {
-		final AtomicInteger sync = new AtomicInteger(sources.length);
 		// get the filesystem error holder
 		FilesystemException[] fserrs = _exceptions.get();
 		if (fserrs == null || fserrs.length != sources.length)
@@ -50,21 +212,7 @@ public class MeldFs {
 			fserrs[i] = null;
 
 		// now run the operations
-		try {
-			synchronized (sync) {
-				for (int i = 0; i < sources.length; i++) {
-					if (null == mask || mask[i] != null)
-						threadPool.execute(new SourceOpRunner(operation, i, sources[i], sync, fserrs));
-					else
-						sync.decrementAndGet();
-				}
-				if (sync.intValue() > 0)
-					sync.wait();
-			}
-		}
-		catch (InterruptedException e) {
-			throw new FilesystemException(e);
-		}
+		dispatcher.dispatch(mask, operation, fserrs);
 		
 		// check for errors
 		int errCount = 0;
@@ -103,17 +251,361 @@ public class MeldFs {
 	 * @throws FilesystemException 
 	 */
 	public Path getRealPath(final Path vpath) throws FilesystemException {
+		int index = getFreshestSource(vpath);
+		if (index == -1)
+			return null;
+		return realPath(index, vpath);
+	}
+	
+	/** Returns the location of virtual path <code>vpath</code> on source <code>index</code> (whether or not it exists there) */
+	Path realPath(int index, Path vpath) {
+		return paths.resolve(index, vpath);
+	}
+	
+	/** Return the index of the source holding the virtual path if on one device, or of the source holding the most
+	 * recently modified version of the file if on multiple devices, or -1 if the file doesn't exist.
+	 * <p>This is answered from the namespace index when possible, and fills the index otherwise</p>
+	 * @param vpath
+	 * @return
+	 * @throws FilesystemException
+	 */
+	public int getFreshestSource(final Path vpath) throws FilesystemException {
+		NamespaceIndex.Entry entry = namespace.get(vpath);
+		if (entry != null) {
+			if (entry.verified || verify(vpath, entry))
+				return entry.freshest;
+		}
+		else if (negatives.contains(vpath)) {
+			return -1;
+		}
+		long stamp = namespace.getStamp(vpath);
 		final Path[] files = new Path[sources.length];
 		final long[] modTimes = new long[sources.length];
 		getAllRealPaths(vpath, files, modTimes);
-		return freshestFile(files, modTimes);
+		int index = freshest(files, modTimes);
+		recordLookup(vpath, files, modTimes, index, stamp);
+		return index;
+	}
+	
+	/** Caches the result of a multi-source lookup of <code>vpath</code>
+	 * @param vpath
+	 * @param found array with one element per source which is non-null where the path was found
+	 * @param modTimes
+	 * @param index the index of the freshest source or -1 if not found
+	 * @param stamp the namespace index stamp taken before the lookup began
+	 */
+	private void recordLookup(Path vpath, Object[] found, long[] modTimes, int index, long stamp) {
+		if (index != -1) {
+			found(vpath, NamespaceIndex.sourceMask(found), index, modTimes[index], stamp);
+		}
+		else {
+			// if something was created while we were looking, it may have been created after we looked
+			negatives.put(vpath);
+			if (stamp != namespace.getStamp(vpath))
+				negatives.invalidate(vpath);
+		}
+	}
+	
+	/** Records where <code>vpath</code> was found, in the namespace index and the catalog
+	 * @param vpath
+	 * @param sourceMask
+	 * @param freshest the index of the freshest source
+	 * @param modTime the modification time of the version on the freshest source
+	 * @param stamp the namespace index stamp taken before the lookup began
+	 */
+	void found(Path vpath, long sourceMask, int freshest, long modTime, long stamp) {
+		if (namespace.fill(vpath, sourceMask, freshest, modTime, stamp) && catalog != null)
+			catalog.placed(vpath, sourceMask, freshest, modTime);
+	}
+	
+	/** Checks an entry loaded from the catalog against the sources in its mask, each of which must still have the
+	 * path, with none newer than the recorded version on the freshest
+	 * @return true if it is still accurate, false if it was dropped
+	 */
+	private boolean verify(Path vpath, NamespaceIndex.Entry entry) {
+		Stat stat = _stat.get();
+		try {
+			boolean accurate = true;
+			for (int i = 0; i < sources.length && i < NamespaceIndex.MAX_SOURCES && accurate; i++) {
+				if (!entry.isOn(i))
+					continue;
+				FuselajFs.os_lstat(realPath(i, vpath), stat);
+				long modTime = modTimeOf(stat);
+				accurate = i == entry.freshest ? modTime == entry.modTime : modTime <= entry.modTime;
+			}
+			if (accurate) {
+				namespace.verified(vpath, entry);
+				return true;
+			}
+		}
+		catch (FilesystemException fse) {
+		}
+		stale(vpath);
+		return false;
+	}
+	
+	/** Drops knowledge of <code>vpath</code> found to be out of date with respect to the sources */
+	private void stale(Path vpath) {
+		invalidate(vpath);
+		if (catalog != null)
+			catalog.removed(vpath);
+	}
+	
+	/** The per-source operation of a multi-source stat, reused by the thread that issues it */
+	private class StatFreshestOp implements SourceOp {
+		Path vpath;
+		Stat stat;
+		final Path[] files = new Path[sources.length];
+		final long[] modTimes = new long[sources.length];
+		/** the best candidate so far */
+		int index;
+		long modTime;
+		boolean inUse;
+
+		void reset(Path vpath, Stat stat) {
+			this.vpath = vpath;
+			this.stat = stat;
+			for (int i = 0; i < files.length; i++)
+				files[i] = null;
+			index = -1;
+		}
+
+		@Override
+		public void run(int index, SourceFs source) {
+			Path sourceLoc = realPath(index, vpath);
+			Stat local = _stat.get();
+			try {
+				FuselajFs.os_lstat(sourceLoc, local);
+			}
+			catch (FilesystemException fse) {
+				// treated the same as not existing on this source
+				return;
+			}
+			long modTime = modTimeOf(local);
+			synchronized (this) {
+				modTimes[index] = modTime;
+				files[index] = sourceLoc;
+				// same preference as freshest(): latest modification wins, lower index wins ties
+				if (this.index == -1 || modTime > this.modTime || (modTime == this.modTime && index < this.index)) {
+					stat.copyFrom(local);
+					this.index = index;
+					this.modTime = modTime;
+				}
+			}
+		}
+	}
+	
+	final ThreadLocal<StatFreshestOp> _statOp = new ThreadLocal<StatFreshestOp>() {
+		protected StatFreshestOp initialValue() {
+			return new StatFreshestOp();
+		};
+	};
+	
+	/** returned by <code>statSources()</code> when the negative cache says the path doesn't exist */
+	final static int KNOWN_ABSENT = -2;
+
+	/**
+	 * Gets the attributes of the freshest version of the file at <code>vpath</code>.
+	 * <p>This does a single lstat per source (or just one on the owning source if the location is indexed) and copies
+	 * the winner directly into <code>stat</code>, so it is cheaper than <code>getRealPath()</code> followed by an lstat.</p>
+	 * <p>A striped file has the attributes of one of its columns, but the size of the original file.</p>
+	 * @param vpath
+	 * @param stat receives the attributes of the freshest version
+	 * @return the index of the source holding the freshest version (or a column of the striped file), or -1 if the file doesn't exist
+	 * @throws FilesystemException
+	 */
+	public int statFreshest(final Path vpath, final Stat stat) throws FilesystemException {
+		int index = statSources(vpath, stat);
+		if (index == KNOWN_ABSENT) {
+			if (stripes == null || !negatives.isStriped(vpath))
+				return -1;
+			index = -1;
+		}
+		if (index == -1 && stripes != null)
+			index = statStriped(vpath, stat);
+		return index;
+	}
+
+	/**
+	 * Gets the attributes of the striped file at <code>vpath</code>, returning the source they came from, or -1 if there is no such file.
+	 * <p>This is only called after the sources were searched and the path recorded as absent, so that a path known to
+	 * be absent isn't looked up among the striped files either, unless it was found there before.  So if a striped
+	 * file is found, the path is marked as striped in the negative cache, and later lookups skip the sources.</p>
+	 */
+	private int statStriped(Path vpath, Stat stat) {
+		StripedFiles.Striped striped = stripes.get(vpath);
+		if (striped == null)
+			return -1;
+		int column = striped.getAnyColumn();
+		try {
+			FuselajFs.os_lstat(striped.columns[column], stat);
+		}
+		catch (FilesystemException fse) {
+			// the columns have changed since they were listed
+			stripes.invalidate(vpath);
+			negatives.invalidate(vpath);
+			return -1;
+		}
+		negatives.putStriped(vpath);
+		stat.putSize(striped.size);
+		return striped.columnSources[column];
+	}
+
+	/** Gets the attributes of the freshest regular copy of <code>vpath</code>, returning its source, -1 if the sources have none, or <code>KNOWN_ABSENT</code> */
+	private int statSources(final Path vpath, final Stat stat) throws FilesystemException {
+		int cached = attributes.get(vpath, stat);
+		if (cached != -1)
+			return cached;
+		NamespaceIndex.Entry entry = namespace.get(vpath);
+		if (entry != null) {
+			// (verify() drops the entry if it is out of date)
+			if (entry.verified || verify(vpath, entry)) {
+				try {
+					FuselajFs.os_lstat(realPath(entry.freshest, vpath), stat);
+					return entry.freshest;
+				}
+				catch (FilesystemException fse) {
+				}
+				// the index is out of date with respect to the sources, so look again on all sources
+				stale(vpath);
+			}
+		}
+		else if (negatives.contains(vpath)) {
+			return KNOWN_ABSENT;
+		}
+		long stamp = namespace.getStamp(vpath);
+		StatFreshestOp op = _statOp.get();
+		if (op.inUse)
+			op = new StatFreshestOp();
+		op.inUse = true;
+		try {
+			op.reset(vpath, stat);
+			runMultiSourceOperation(op);
+			recordLookup(vpath, op.files, op.modTimes, op.index, stamp);
+			return op.index;
+		}
+		finally {
+			op.vpath = null;
+			op.stat = null;
+			op.inUse = false;
+		}
+	}
+	
+	/** Gets the modification time from <code>stat</code> in milliseconds */
+	static long modTimeOf(Stat stat) {
+		return stat.getModifiedSeconds() * 1000L + stat.getModifiedNanoseconds() / 1000000L;
+	}
+	
+	/**
+	 * Records that <code>vpath</code> was just created on source <code>index</code> at <code>realPath</code>,
+	 * with the modification time it was actually given there
+	 */
+	private void created(Path vpath, int index, Path realPath) {
+		long modTime;
+		try {
+			Stat stat = _stat.get();
+			FuselajFs.os_lstat(realPath, stat);
+			modTime = modTimeOf(stat);
+		}
+		catch (FilesystemException fse) {
+			// already gone again, so just forget anything known about it
+			invalidate(vpath);
+			return;
+		}
+		namespace.put(vpath, index, modTime);
+		if (catalog != null)
+			catalog.placed(vpath, 1L << index, index, modTime);
+		negatives.invalidate(vpath);
+		invalidateAttributes(vpath);
+		channels.invalidate(vpath);
+	}
+	
+	/** Drops any cached knowledge about <code>vpath</code> so that the next lookup goes to the sources
+	 * @param vpath
+	 * @return true if anything was cached
+	 */
+	public boolean invalidate(Path vpath) {
+		negatives.invalidate(vpath);
+		invalidateAttributes(vpath);
+		channels.invalidate(vpath);
+		return namespace.remove(vpath);
+	}
+	
+	/** Drops any cached knowledge about <code>vpath</code> and everything beneath it */
+	public void invalidateTree(Path vpath) {
+		namespace.removeTree(vpath);
+		negatives.invalidateTree(vpath);
+		attributes.invalidateTree(vpath);
+		invalidateAttributes(vpath);
+		channels.invalidateTree(vpath);
+	}
+	
+	/** Drops all cached knowledge about the sources */
+	public void invalidateAll() {
+		namespace.clear();
+		negatives.clear();
+		attributes.clear();
+		channels.invalidateAll();
+		if (stripes != null)
+			stripes.clear();
+	}
+	
+	/** Drops any cached attributes of <code>vpath</code> (and of its parent directory, whose times and link count it affects)
+	 * <p>This must be called whenever the attributes of a file are changed</p>
+	 * @param vpath
+	 */
+	public void invalidateAttributes(Path vpath) {
+		attributes.invalidate(vpath);
+		attributes.invalidate(parentOf(vpath));
+	}
+
+	/** Tells the source watcher, if any, that <code>vpath</code> is being changed through the mount, so that the events caused by that are ignored */
+	public void changing(Path vpath) {
+		if (watcher != null)
+			watcher.changing(vpath);
+	}
+	
+	/** Stops the worker threads and releases the logs, once the filesystem is no longer in use */
+	public void close() {
+		dispatcher.shutdown();
+		if (watcher != null) {
+			try {
+				watcher.close();
+			}
+			catch (IOException ioe) {
+				System.err.println("Failed to close source watcher: " + ioe.getMessage());
+			}
+		}
+		if (catalog != null)
+			catalog.close();
+		if (inodes != null)
+			inodes.close();
+		threadPool.shutdown();
+	}
+	
+	/** Prints cache statistics */
+	public void printStatistics(PrintStream out) {
+		out.println("namespace index: " + namespace.size() + " entries");
+		if (catalog != null)
+			out.println("catalog: " + catalog.getLoaded() + " entries loaded, " + catalog.getEvicted() + " dropped from checkpoints");
+		attributes.printStatistics(out);
+		if (readaheadBuffers != null)
+			out.println("readahead: " + readaheadBuffers.getInUse() + " buffers in use");
+		if (stripeStreamBuffers != null)
+			out.println("stripe streams: " + (stripeStreamMax - stripeStreams.availablePermits()) + " running, " + stripeStreamBuffers.getInUse() + " buffers in use");
+		if (writeBehind != null)
+			out.println("write-behind: " + writeBehind.getDirtyBytes() + " bytes dirty");
+		if (channels.isEnabled())
+			out.println("channel cache: " + channels.getStatistics());
+		if (mappedReads != null)
+			out.println("mapped reads: " + mappedReads.getStatistics());
 	}
 	
 	public void getAllRealPaths(final Path vpath, final Path[] rpaths, final long[] modTimes) throws FilesystemException {
 		runMultiSourceOperation(new SourceOp() {
 			@Override
 			public void run(int index, SourceFs source) {
-				Path sourceLoc = source.root.resolve(vpath);
+				Path sourceLoc = realPath(index, vpath);
 				if (Files.exists(sourceLoc, LinkOption.NOFOLLOW_LINKS)) {
 					try {
 						if (modTimes != null)
@@ -168,21 +660,97 @@ public class MeldFs {
 		return sources.length;
 	}
 
+	/**
+	 * Gets the stable inode number of <code>vpath</code>
+	 * @param vpath
+	 * @param source the source from which <code>stat</code> was read, as returned by <code>statFreshest()</code>
+	 * @param stat the attributes of the freshest version of <code>vpath</code>
+	 * @return the inode number, or the real one from <code>stat</code> if the inode table is disabled
+	 */
+	public long getInode(Path vpath, int source, Stat stat) {
+		if (inodes == null)
+			return stat.getInode();
+		return inodes.inodeOf(vpath, source, stat);
+	}
+
+	/** Gets the fuse mount options implied by the configuration: <code>use_ino</code> once inode numbers are stable, and the kernel cache timeouts */
+	public List<String> getMountOptions() {
+		ArrayList<String> options = new ArrayList<String>();
+		if (inodes != null)
+			options.add("use_ino");
+		if (entryTimeout >= 0)
+			options.add("entry_timeout=" + entryTimeout);
+		if (attrTimeout >= 0)
+			options.add("attr_timeout=" + attrTimeout);
+		return options;
+	}
+
+	/** Gets the configured number of checksum columns per stripe */
+	public int getRedundancy() {
+		return redundancy;
+	}
+
+	/**
+	 * Fills <code>stat</code> with the combined capacity of all sources, from the latest capacity snapshots.
+	 * <p>Sources sharing a file store are counted once.  Sizes are scaled down by the fraction of each stripe which
+	 * holds data, since that is how much of the space can hold files once they are striped with the configured redundancy.</p>
+	 * @param stat
+	 */
+	public void statfs(StatVfs stat) {
+		long total = 0, free = 0, available = 0;
+		int stores = 0;
+		SourceCapacity.Snapshot[] snapshots = capacity.getAll();
+		for (int i = 0; i < snapshots.length; i++) {
+			if (snapshots[i] == null || capacity.sharesStore(i))
+				continue;
+			total += snapshots[i].total;
+			free += snapshots[i].unallocated;
+			available += snapshots[i].usable;
+			stores++;
+		}
+		if (stores > 0 && redundancy > 0) {
+			// at least one store's worth is data, however few stores there are for the redundancy
+			int data = Math.max(1, stores - redundancy);
+			double fraction = (double)data / stores;
+			total = (long)(total * fraction);
+			free = (long)(free * fraction);
+			available = (long)(available * fraction);
+		}
+		stat.putBlockSize(STATFS_BLOCK_SIZE);
+		stat.putFragmentSize(STATFS_BLOCK_SIZE);
+		stat.putBlocks(total / STATFS_BLOCK_SIZE);
+		stat.putBlocksFree(free / STATFS_BLOCK_SIZE);
+		stat.putBlocksAvailable(available / STATFS_BLOCK_SIZE);
+		// file counts aren't available from a FileStore
+		stat.putFiles(0);
+		stat.putFilesFree(0);
+		stat.putFilesAvailable(0);
+		stat.putNameMax(255);
+	}
+	
+	final static int STATFS_BLOCK_SIZE = 4096;
+
 	public SourceFs getSource(int index) {
 		return sources[index];
 	}
 
+	/** Gets the factory for threads doing bulk work (e.g. striping) on behalf of this filesystem */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
 	public FileChannel create(final Path path, boolean failIfExists, Set<? extends OpenOption> openOptions) throws FilesystemException {
 		// when creating a file, first find the existing file if any
 		// if it exists, and if this is a create_new, then fail, otherwise overwrite that one
-		// if it doesn't exist, get the youngest parent and create one there
+		// if it doesn't exist, let the placement policy choose where to create it
 		final Path parent = parentOf(path);
 		final Path[] files = new Path[sources.length];
 		final Path[] parents = new Path[sources.length];
 		final long[] modTimes = new long[sources.length];
+		final long[] parentModTimes = new long[sources.length];
 		runMultiSourceOperation(new SourceOp() {
 			public void run(int index, SourceFs source) {
-				Path sourceLoc = source.root.resolve(path);
+				Path sourceLoc = realPath(index, path);
 				if (Files.exists(sourceLoc)) {
 					try {
 						modTimes[index] = Files.getLastModifiedTime(sourceLoc).toMillis();
@@ -192,10 +760,10 @@ public class MeldFs {
 						source.handleReadException(ioe);
 					}
 				}
-				sourceLoc = source.root.resolve(parent);
+				sourceLoc = realPath(index, parent);
 				if (Files.exists(sourceLoc)) {
 					try {
-						modTimes[index] = Files.getLastModifiedTime(sourceLoc).toMillis();
+						parentModTimes[index] = Files.getLastModifiedTime(sourceLoc).toMillis();
 						parents[index] = sourceLoc;
 					}
 					catch (IOException ioe) {
@@ -207,20 +775,24 @@ public class MeldFs {
 
 		// find the youngest existing file (if any), first
 		Path realPath = freshestFile(files, modTimes);
+		int created = -1;
 		if (realPath != null) {
 			if (failIfExists)
 				throw new FilesystemException(Errno.FileExists);
 		}
 		else {
-			// no existing file, find the youngest parent and create the file there
-			// TODO: if this drive is nearing capacity, find a new drive
-			Path openDir = MeldFs.freshestFile(parents, modTimes);
-			if (openDir == null)
+			created = placement.choose(path, parents, parentModTimes);
+			if (created == -1)
 				throw new FilesystemException(Errno.NoSuchFileOrDirectory);
-			realPath = openDir.resolve(path.getFileName());
+			if (parents[created] == null)
+				createParentDirs(created, parent);
+			realPath = sources[created].root.resolve(path);
 		}
+		changing(path);
 		try {
 			FileChannel channel = FileChannel.open(realPath, openOptions);
+			if (created != -1)
+				created(path, created, realPath);
 			return channel;
 		}
 		catch (IOException ioe) {
@@ -228,6 +800,65 @@ public class MeldFs {
 		}
 	}
 	
+	/**
+	 * Creates directory <code>vdir</code>, and any of its ancestors that are missing, on source <code>index</code>,
+	 * copying the mode of the freshest existing copy of each
+	 * @param index
+	 * @param vdir
+	 * @throws FilesystemException
+	 */
+	private void createParentDirs(int index, Path vdir) throws FilesystemException {
+		Path realDir = sources[index].root.resolve(vdir);
+		if (Files.isDirectory(realDir, LinkOption.NOFOLLOW_LINKS))
+			return;
+		createParentDirs(index, parentOf(vdir));
+		Path existing = getRealPath(vdir);
+		if (existing == null)
+			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Stat stat = _stat.get();
+		FuselajFs.os_lstat(existing, stat);
+		changing(vdir);
+		try {
+			FuselajFs.os_mkdir(realDir, stat.getMode());
+			// TODO: copy other attributes
+		}
+		catch (FilesystemException fse) {
+			// someone else may have just created it
+			if (!Files.isDirectory(realDir, LinkOption.NOFOLLOW_LINKS))
+				throw fse;
+		}
+		// it is now on another source
+		invalidate(vdir);
+	}
+
+	/**
+	 * Creates the copy of directory <code>vdir</code> in the stripe region of source <code>index</code>, and of its parents,
+	 * where they don't exist, copying the mode of the freshest existing copy of each
+	 * @param index
+	 * @param vdir
+	 * @throws FilesystemException
+	 */
+	private void createStripeDirs(int index, Path vdir) throws FilesystemException {
+		Path realDir = sources[index].root.resolve(StripedFiles.DIRECTORY).resolve(vdir);
+		if (Files.isDirectory(realDir, LinkOption.NOFOLLOW_LINKS))
+			return;
+		if (!vdir.equals(rootPath))
+			createStripeDirs(index, parentOf(vdir));
+		Path existing = getRealPath(vdir);
+		if (existing == null)
+			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Stat stat = _stat.get();
+		FuselajFs.os_lstat(existing, stat);
+		try {
+			FuselajFs.os_mkdir(realDir, stat.getMode());
+		}
+		catch (FilesystemException fse) {
+			// someone else may have just created it
+			if (!Files.isDirectory(realDir, LinkOption.NOFOLLOW_LINKS))
+				throw fse;
+		}
+	}
+	
 	/** Find the parent path of the given path.
 	 * Note: this is distinct from path.getParent() in that it returns the rootPath instead of null
 	 * @param path
@@ -242,6 +873,7 @@ public class MeldFs {
 
 	/** Delete file at virtual path <code>vpath</code> */
 	public void rm(final Path vpath) throws FilesystemException {
+		changing(vpath);
 		final AtomicInteger deleted = new AtomicInteger(0);
 		final AtomicInteger found = new AtomicInteger(0);
 		runMultiSourceOperation(new SourceOp() {
@@ -261,6 +893,15 @@ public class MeldFs {
 				}
 			}
 		});
+		namespace.remove(vpath);
+		invalidateAttributes(vpath);
+		channels.invalidate(vpath);
+		if (catalog != null)
+			catalog.removed(vpath);
+		if (inodes != null && deleted.intValue() > 0)
+			inodes.unlinked(vpath);
+		if (found.intValue() == 0 && stripes != null && rmStriped(vpath))
+			return;
 		if (found.intValue() == 0)
 			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
 		// TODO: try to throw the actual error that resulted
@@ -268,8 +909,34 @@ public class MeldFs {
 			throw new FilesystemException(Errno.IOError);
 	}
 
+	/** Deletes the columns of the striped file at <code>vpath</code>, returning false if there is no such file */
+	private boolean rmStriped(Path vpath) throws FilesystemException {
+		StripedFiles.Striped striped = stripes.get(vpath);
+		if (striped == null)
+			return false;
+		boolean failed = false;
+		for (int i = 0; i < striped.columns.length; i++) {
+			if (striped.columns[i] == null)
+				continue;
+			try {
+				Files.deleteIfExists(striped.columns[i]);
+			}
+			catch (IOException e) {
+				sources[striped.columnSources[i]].handleWriteException(e);
+				failed = true;
+			}
+		}
+		stripes.invalidate(vpath);
+		if (inodes != null)
+			inodes.unlinked(vpath);
+		if (failed)
+			throw new FilesystemException(Errno.IOError);
+		return true;
+	}
+
 	/** Remove directory at virtual path <code>vpath</code> */
 	public void rmdir(final Path path) throws FilesystemException {
+		changing(path);
 		final AtomicInteger found = new AtomicInteger(0);
 		final AtomicInteger deleted = new AtomicInteger(0);
 		FilesystemException[] errors = runMultiSourceOperation(new SourceOp() {
@@ -293,6 +960,12 @@ public class MeldFs {
 				}
 			}
 		});
+		namespace.remove(path);
+		invalidateAttributes(path);
+		if (catalog != null)
+			catalog.removed(path);
+		if (inodes != null && deleted.intValue() > 0)
+			inodes.unlinked(path);
 		if (found.intValue() == 0)
 			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
 
@@ -306,6 +979,190 @@ public class MeldFs {
 	/** Attempt to rename a file from virtual path <code>from</code> to virtual path <code>to</code> 
 	 * @throws FilesystemException */
 	public void rename(final Path from, final Path to) throws FilesystemException {
+		changing(from);
+		changing(to);
+		boolean directory = false;
+		try {
+			StripedFiles.Striped striped = getStriped(from);
+			if (striped != null) {
+				renameStriped(from, striped, to);
+			}
+			else if (directory = isExistingDirectory(from)) {
+				if (stripes != null)
+					renameDirectory(from, to);
+				else
+					renameOnSources(from, to);
+			}
+			else {
+				renameOnSources(from, to);
+				// a striped file replaced by the renamed file would otherwise be hidden by it rather than removed
+				if (stripes != null && stripes.get(to) != null)
+					rmStriped(to);
+			}
+			if (inodes != null)
+				inodes.moved(from, to);
+			if (writeBehind != null)
+				writeBehind.moved(from, to);
+		}
+		finally {
+			if (directory) {
+				// everything beneath either name is affected too (a directory can only replace a directory)
+				namespace.removeTree(from);
+				namespace.removeTree(to);
+				negatives.invalidateTree(to);
+				attributes.invalidateTree(from);
+				attributes.invalidateTree(to);
+				channels.invalidateTree(from);
+				channels.invalidateTree(to);
+				if (catalog != null) {
+					catalog.removedTree(from);
+					catalog.removedTree(to);
+				}
+				if (stripes != null) {
+					stripes.invalidateTree(from);
+					stripes.invalidateTree(to);
+				}
+			}
+			else {
+				namespace.remove(from);
+				namespace.remove(to);
+				negatives.invalidate(to);
+				channels.invalidate(from);
+				channels.invalidate(to);
+				if (catalog != null) {
+					catalog.removed(from);
+					catalog.removed(to);
+				}
+			}
+			invalidateAttributes(from);
+			invalidateAttributes(to);
+			if (stripes != null) {
+				stripes.invalidate(from);
+				stripes.invalidate(to);
+			}
+		}
+	}
+
+	/** Returns true if there is a directory at <code>vpath</code> */
+	private boolean isExistingDirectory(Path vpath) throws FilesystemException {
+		Path realPath = getRealPath(vpath);
+		return realPath != null && Files.isDirectory(realPath, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * Renames striped file <code>from</code> by renaming each of its columns, replacing anything at <code>to</code>.
+	 * <p>The columns are first moved to staging names beside their targets (which aren't column names, so they aren't
+	 * listed), and are moved back if any of them can't be.  Only then is whatever is at <code>to</code> deleted and
+	 * are the columns given their final names.</p>
+	 */
+	private void renameStriped(Path from, StripedFiles.Striped striped, Path to) throws FilesystemException {
+		if (from.equals(to))
+			return;
+		String fromName = from.getFileName().toString();
+		String toName = to.getFileName().toString();
+		Path[] targets = new Path[striped.columns.length];
+		Path[] staged = new Path[striped.columns.length];
+		try {
+			for (int i = 0; i < striped.columns.length; i++) {
+				if (striped.columns[i] == null)
+					continue;
+				String suffix = striped.columns[i].getFileName().toString().substring(fromName.length());
+				targets[i] = sources[striped.columnSources[i]].root.resolve(StripedFiles.DIRECTORY).resolve(parentOf(to)).resolve(toName + suffix);
+				Path staging = targets[i].resolveSibling(targets[i].getFileName() + StripedFiles.STAGING_SUFFIX);
+				createStripeDirs(striped.columnSources[i], parentOf(to));
+				Files.move(striped.columns[i], staging, StandardCopyOption.ATOMIC_MOVE);
+				staged[i] = staging;
+			}
+		}
+		catch (IOException ioe) {
+			unstage(striped, staged);
+			throw new FilesystemException(ioe);
+		}
+		catch (FilesystemException fse) {
+			unstage(striped, staged);
+			throw fse;
+		}
+		try {
+			if (getFreshestSource(to) != -1)
+				rm(to);
+			else
+				rmStriped(to);
+		}
+		catch (FilesystemException fse) {
+			unstage(striped, staged);
+			throw fse;
+		}
+		IOException failed = null;
+		for (int i = 0; i < staged.length; i++) {
+			if (staged[i] == null)
+				continue;
+			try {
+				Files.move(staged[i], targets[i], StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException ioe) {
+				sources[striped.columnSources[i]].handleWriteException(ioe);
+				failed = ioe;
+			}
+		}
+		if (failed != null)
+			throw new FilesystemException(failed);
+	}
+
+	/** Moves the columns of a striped file back from their staging names after a failed rename */
+	private void unstage(StripedFiles.Striped striped, Path[] staged) {
+		for (int i = 0; i < staged.length; i++) {
+			if (staged[i] == null)
+				continue;
+			try {
+				Files.move(staged[i], striped.columns[i], StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException ioe) {
+				sources[striped.columnSources[i]].handleWriteException(ioe);
+			}
+		}
+	}
+
+	/**
+	 * Renames directory <code>from</code> along with its copies in the stripe region, so its striped files move with it.
+	 * <p>The copies in the stripe region are moved first, and are moved back if any of them can't be or if the
+	 * directory itself then can't be renamed.</p>
+	 */
+	private void renameDirectory(final Path from, final Path to) throws FilesystemException {
+		final boolean[] moved = new boolean[sources.length];
+		FilesystemException[] errors = runMultiSourceOperation(new SourceOp() {
+			public void run(int index, SourceFs source) throws FilesystemException {
+				Path stripeRegion = source.root.resolve(StripedFiles.DIRECTORY);
+				Path sourceLoc = stripeRegion.resolve(from);
+				if (!Files.isDirectory(sourceLoc, LinkOption.NOFOLLOW_LINKS))
+					return;
+				Path targetLoc = stripeRegion.resolve(to);
+				createStripeDirs(index, parentOf(to));
+				FuselajFs.os_rename(sourceLoc, targetLoc);
+				moved[index] = true;
+			}
+		});
+		try {
+			if (errors != null)
+				throw errors[0];
+			renameOnSources(from, to);
+		}
+		catch (FilesystemException fse) {
+			for (int i = 0; i < moved.length; i++) {
+				if (!moved[i])
+					continue;
+				Path stripeRegion = sources[i].root.resolve(StripedFiles.DIRECTORY);
+				try {
+					FuselajFs.os_rename(stripeRegion.resolve(to), stripeRegion.resolve(from));
+				}
+				catch (FilesystemException e) {
+					// the directory's striped files are left under the new name
+				}
+			}
+			throw fse;
+		}
+	}
+	
+	private void renameOnSources(final Path from, final Path to) throws FilesystemException {
 		final Path toParent = parentOf(to);
 		final Path fromParent = parentOf(from);
 		// let's see if this is a simple rename
@@ -386,6 +1243,8 @@ public class MeldFs {
 						try (DirectoryStream<Path> stream = Files.newDirectoryStream(p)) {
 							for (Path item : stream) {
 								String itemName = item.getFileName().toString();
+								if (isHidden(vdirpath, itemName))
+									continue;
 								synchronized (items) {
 									items.add(itemName);
 								}
@@ -402,19 +1261,53 @@ public class MeldFs {
 		return items;
 	}
 
+	/** Returns true if <code>name</code> in virtual directory <code>vdirpath</code> belongs to meldfs itself and should not be listed */
+	boolean isHidden(Path vdirpath, String name) {
+		return (NamespaceCatalog.DIRECTORY.equals(name) || StripedFiles.DIRECTORY.equals(name)) && rootPath.equals(vdirpath);
+	}
+
+	/** Returns an array with the real path of the directory <code>vdirpath</code> on each source, or null for sources which don't have it */
+	public Path[] getRealDirectories(final Path vdirpath) throws FilesystemException {
+		final Path[] dirs = new Path[sources.length];
+		runMultiSourceOperation(new SourceOp() {
+			public void run(int index, SourceFs source) {
+				Path p = realPath(index, vdirpath);
+				if (Files.isDirectory(p))
+					dirs[index] = p;
+			}
+		});
+		return dirs;
+	}
+
 	/** Makes a directory */
 	public void mkdir(Path vpath, int mode) throws FilesystemException {
-		// find which device contains the parent directory and create there
-		// if more than one device contains the parent, create on the device with the most recently modified
-		Path dir = getRealPath(vpath);
-		if (dir != null)
+		// let the placement policy choose the device (by default, the one with the most recently modified parent)
+		if (-1 != getFreshestSource(vpath))
 			throw new FilesystemException(Errno.FileExists);
 		Path parent = parentOf(vpath);
-		Path parentDir = getRealPath(parent);
-		if (parentDir == null)
+		Path[] parents = new Path[sources.length];
+		long[] parentModTimes = new long[sources.length];
+		getAllRealPaths(parent, parents, parentModTimes);
+		int index = placement.choose(vpath, parents, parentModTimes);
+		if (index == -1)
 			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
-		dir = parentDir.resolve(vpath.getFileName());
+		if (parents[index] == null)
+			createParentDirs(index, parent);
+		Path dir = sources[index].root.resolve(vpath);
+		changing(vpath);
 		FuselajFs.os_mkdir(dir, mode);
+		created(vpath, index, dir);
+	}
+
+	/** Creates a symbolic link at virtual path <code>vpath</code> pointing to <code>target</code> */
+	public void symlink(Path target, Path vpath) throws FilesystemException {
+		int index = getFreshestSource(parentOf(vpath));
+		if (index == -1)
+			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Path link = sources[index].root.resolve(parentOf(vpath)).resolve(vpath.getFileName());
+		changing(vpath);
+		FuselajFs.os_symlink(target, link);
+		created(vpath, index, link);
 	}
 
 	/** Attempt to create a hard link */
@@ -433,9 +1326,187 @@ public class MeldFs {
 		// Sorry, can't figure out a way to do that consistently, the directory currently has to already exist on the same source fs
 		if (!Files.isDirectory(realToParent))
 			throw new FilesystemException(Errno.CrossDeviceLink);
+		changing(from);
+		changing(to);
 		FuselajFs.os_link(realFrom, realTo);
+		created(to, index, realTo);
+		invalidateAttributes(from);
+		if (inodes != null) {
+			Stat stat = _stat.get();
+			FuselajFs.os_lstat(realFrom, stat);
+			inodes.linked(from, to, index, stat.getDevice(), stat.getInode());
+		}
 	}
 	
+	/**
+	 * Wraps a channel opened on <code>vpath</code> for use by the mount
+	 * @param vpath
+	 * @param channel
+	 * @param readable true if the channel was opened for reading, in which case it gets readahead (if enabled)
+	 * @param buffered true if writes may be buffered (if write-behind is enabled), i.e. the channel was opened for
+	 * writing and not for synchronous writes
+	 * @param writing the file key from <code>beginWrite()</code> called before the channel was opened, which the
+	 * returned file ends when it is closed
+	 * @return
+	 */
+	public OpenFile openFile(Path vpath, FileChannel channel, Object writing, boolean readable, boolean buffered) throws FilesystemException {
+		return openFile(vpath, channel, null, writing, readable, false, buffered);
+	}
+
+	/**
+	 * Opens the file at <code>vpath</code> for use by the mount, reusing a cached channel if there is one
+	 * @param vpath
+	 * @param options
+	 * @param readable true if opened for reading, in which case the file gets readahead (if enabled)
+	 * @param buffered true if writes may be buffered (if write-behind is enabled)
+	 * @return
+	 * @throws FilesystemException
+	 */
+	public OpenFile openFile(Path vpath, Set<? extends OpenOption> options, boolean readable, boolean buffered) throws FilesystemException {
+		boolean readOnly = !options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND);
+		Object writing = readOnly ? null : beginWrite(vpath);
+		try {
+			if (!channels.isEnabled() || !ChannelCache.isCacheable(options))
+				return openFile(vpath, open(vpath, options), null, writing, readable, readOnly, buffered);
+			ChannelCache.Entry entry = channels.acquire(vpath, options);
+			if (entry == null)
+				entry = channels.add(vpath, options, open(vpath, options));
+			return openFile(vpath, entry.getChannel(), entry, writing, readable, readOnly, buffered);
+		}
+		catch (FilesystemException e) {
+			endWrite(writing);
+			throw e;
+		}
+	}
+
+	private OpenFile openFile(Path vpath, FileChannel channel, ChannelCache.Entry cached, Object writing, boolean readable, boolean readOnly, boolean buffered) throws FilesystemException {
+		MappedFile mapped = null;
+		if (readable && readOnly && mappedReads != null) {
+			try {
+				long size = channel.size();
+				if (mappedReads.isWorthMapping(size))
+					mapped = mappedReads.open(channel, getFileKey(vpath), size);
+			}
+			catch (IOException ioe) {
+				throw new FilesystemException(ioe);
+			}
+		}
+		Readahead readahead = null;
+		if (readable && mapped == null && readaheadBuffers != null)
+			readahead = new Readahead(channel, readaheadBuffers, threadPool, readaheadWindow);
+		WriteBehind buffer = null;
+		if (buffered && writeBehind != null)
+			buffer = new WriteBehind(channel, writeBehind, vpath);
+		return new OpenFile(this, vpath, channel, cached, readahead, buffer, mapped, writing);
+	}
+
+	/**
+	 * Records that the file at <code>vpath</code> is about to be opened for writing or truncated through the mount, so
+	 * that it is unmapped first and not mapped until <code>endWrite()</code>
+	 * @param vpath
+	 * @return the file key to pass to <code>endWrite()</code>, or null if there was nothing to do
+	 */
+	public Object beginWrite(Path vpath) {
+		if (mappedReads == null)
+			return null;
+		Object fileKey = getFileKey(vpath);
+		if (fileKey != null)
+			mappedReads.writing(fileKey);
+		return fileKey;
+	}
+
+	/** Records that a write begun by <code>beginWrite()</code> is done */
+	public void endWrite(Object fileKey) {
+		if (fileKey != null)
+			mappedReads.written(fileKey);
+	}
+
+	/** Gets the key identifying the real file at <code>vpath</code> by any of its names, or null if there is none */
+	private Object getFileKey(Path vpath) {
+		try {
+			Path realPath = getRealPath(vpath);
+			if (realPath == null)
+				return null;
+			return Files.readAttributes(realPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+		}
+		catch (IOException | FilesystemException e) {
+			return null;
+		}
+	}
+
+	/** Gets the striped file at <code>vpath</code>, or null if there is none (or a regular file is there instead) */
+	public StripedFiles.Striped getStriped(Path vpath) throws FilesystemException {
+		if (stripes == null || getFreshestSource(vpath) != -1)
+			return null;
+		return stripes.get(vpath);
+	}
+
+	/**
+	 * Opens striped file <code>vpath</code> for reading by the mount.
+	 * <p>Each read is divided among the data columns and they are read in parallel.  If data columns are missing,
+	 * the checksum columns are opened too and the missing data is reconstructed as it is read.  They are also opened
+	 * when reads hedge against slow data columns, and sequential reads are streamed if <code>stripe_streaming</code> is set.</p>
+	 * @param vpath
+	 * @param striped
+	 * @return
+	 * @throws FilesystemException
+	 */
+	public OpenFile openStriped(Path vpath, StripedFiles.Striped striped) throws FilesystemException {
+		FileChannel[] columns = new FileChannel[striped.columns.length];
+		long validMask = 0;
+		int available = 0;
+		for (int i = 0; i < columns.length; i++) {
+			// the checksum columns are only needed if data columns are missing, or to hedge against slow ones
+			if (i == striped.dataCount && available == striped.dataCount && stripeHedgeFactor == 0)
+				break;
+			if (striped.columns[i] == null)
+				continue;
+			try {
+				columns[i] = FileChannel.open(striped.columns[i], StandardOpenOption.READ);
+				validMask |= 1L << i;
+				available++;
+			}
+			catch (IOException ioe) {
+				// the column may have been removed or renamed, or its disk may have failed
+				sources[striped.columnSources[i]].handleReadException(ioe);
+				stripes.invalidate(vpath);
+			}
+		}
+		if (available < striped.dataCount) {
+			for (int i = 0; i < columns.length; i++) {
+				try {
+					if (columns[i] != null)
+						columns[i].close();
+				}
+				catch (IOException e) {
+				}
+			}
+			throw new FilesystemException(Errno.IOError);
+		}
+		StripeChannel channel = new StripeChannel(threadPool, striped.size, striped.dataCount, striped.blockSize, columns, validMask).hedge(stripeHedgeFactor, stripeHedgeMinDelay);
+		if (stripeStreamBuffers != null)
+			channel.stream(stripeStreamBuffers, stripeStreamRing, threadFactory, stripeStreams);
+		return new OpenFile(this, vpath, channel);
+	}
+
+	/** Writes out any data buffered for <code>vpath</code> by write-behind, so that the sources are up to date */
+	public void flushWrites(Path vpath) {
+		if (writeBehind != null)
+			writeBehind.flush(vpath);
+	}
+
+	/** Gets a number which changes whenever <code>vpath</code> is written through the mount (and sometimes when other paths are) */
+	public long getWriteEpoch(Path vpath) {
+		return writeEpochs.get(vpath.hashCode() & (writeEpochs.length() - 1));
+	}
+
+	/** Records that the contents of <code>vpath</code> were changed through the mount */
+	public void written(Path vpath) {
+		changing(vpath);
+		writeEpochs.incrementAndGet(vpath.hashCode() & (writeEpochs.length() - 1));
+		invalidateAttributes(vpath);
+	}
+
 	public FileChannel open(Path vpath, OpenOption...openOptions) throws FilesystemException {
 		Path realPath = getRealPath(vpath);
 		if (realPath == null)
@@ -462,6 +1533,23 @@ public class MeldFs {
 		return Files.isSymbolicLink(rpath);
 	}
 
+	/**
+	 * Records that the file at <code>vpath</code> has been replaced by stripe columns
+	 * @param vpath
+	 * @param columnSources the index of the source holding each column
+	 * @param columnNames the file name of each column in the .stripe region of its source
+	 */
+	public void striped(Path vpath, int[] columnSources, String[] columnNames) {
+		invalidate(vpath);
+		if (stripes != null)
+			stripes.invalidate(vpath);
+		if (catalog == null)
+			return;
+		catalog.removed(vpath);
+		for (int i = 0; i < columnSources.length; i++)
+			catalog.striped(vpath, columnSources[i], columnNames[i]);
+	}
+
 	/**
 	 * Creates a copy of this directory in the .stripe region of every source
 	 * @param vpath
@@ -148,7 +148,7 @@ public class MeldFsCli {
 			return 1;
 		}
 		// run the command
-		MeldFs meldfs = new MeldFs();
+		MeldFs meldfs = new MeldFs(new MeldFsProperties(), false);
 		if (vpathList.size() == 0)
 			vpathList.add(meldfs.rootPath);
 		for (Path vpath : vpathList) {
@@ -178,6 +178,7 @@ public class MeldFsCli {
 			}
 			System.out.println();
 		}
+		meldfs.close();
 		return 0;
 	}
 	
@@ -186,7 +187,7 @@ public class MeldFsCli {
 		// variables
 		ArrayList<Path> vpathList = new ArrayList<>();
 		boolean help = false;
-		int redundancy = 2;
+		int redundancy = -1;
 		boolean verbose = false;
 		// parse args into variables
 		while (args.hasNext()) {
@@ -229,13 +230,21 @@ public class MeldFsCli {
 			return 1;
 		}
 		// run the command
-		MeldFs meldfs = new MeldFs();
-		for (Path vpath : vpathList) {
-			vpath = sanitize(meldfs, vpath);
-			if (verbose)
-				System.out.println("Auto Striping \"" + vpath + "\":");
-			AutoStriperFactory striperFactory = new AutoStriperFactory(meldfs, redundancy, 4096);
-			autostripe(meldfs, striperFactory, vpath, redundancy, verbose);
+		MeldFs meldfs = new MeldFs(new MeldFsProperties(), false);
+		if (redundancy == -1)
+			redundancy = meldfs.getRedundancy();
+		try {
+			for (Path vpath : vpathList) {
+				vpath = sanitize(meldfs, vpath);
+				if (verbose)
+					System.out.println("Auto Striping \"" + vpath + "\":");
+				AutoStriperFactory striperFactory = new AutoStriperFactory(meldfs, redundancy, 4096);
+				autostripe(meldfs, striperFactory, vpath, redundancy, verbose);
+			}
+		}
+		finally {
+			// writes the catalog records for the mount to pick up
+			meldfs.close();
 		}
 		
 		return 0;
@@ -296,7 +305,7 @@ public class MeldFsCli {
 					return coder.calculate(columns, calcMask);
 				}
 			};
-			this.striper = new ChannelStriper(coder, blockSize, dataSize, checksumSize, 32);
+			this.striper = new ChannelStriper(coder, blockSize, dataSize, checksumSize, 32, meldfs.getThreadFactory());
 		}
 		
 		boolean matches(SourceFs[] sources, int dataCount, int checksumCount) {
@@ -388,14 +397,16 @@ public class MeldFsCli {
 				}
 				if (verified) {
 					// commit the change
+					String[] stripedNames = new String[columns];
 					for (int i = 0; i < columns; i++) {
-						String stripedName = createStripedName(name, size, i);
+						stripedNames[i] = createStripedName(name, size, i);
 						Path outPath = tempPaths[i].getParent();
-						Files.move(tempPaths[i], outPath.resolve(stripedName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+						Files.move(tempPaths[i], outPath.resolve(stripedNames[i]), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 						tempPaths[i] = null;
 					}
 					// TODO: delete the original
 					Files.delete(rpath);
+					meldfs.striped(vpath, shuffled, stripedNames);
 				}
 				else {
 					size = -1;
@@ -9,9 +9,9 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import warrenfalk.fuselaj.DirBuffer;
@@ -20,6 +20,7 @@ import warrenfalk.fuselaj.FileInfo;
 import warrenfalk.fuselaj.FilesystemException;
 import warrenfalk.fuselaj.FuselajFs;
 import warrenfalk.fuselaj.Stat;
+import warrenfalk.fuselaj.StatVfs;
 
 public class MeldFsFuseAdapter extends FuselajFs {
 	MeldFs meldfs;
@@ -32,15 +33,20 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	 * @param sources
 	 * @param debug
 	 * @param options
+	 * @param kernelCache true if the kernel caches file pages and reads ahead, so that meldfs mustn't
 	 * @throws IOException 
 	 */
-	public MeldFsFuseAdapter(Path mountLoc, boolean debug, String options) throws IOException {
+	public MeldFsFuseAdapter(Path mountLoc, boolean debug, String options, boolean kernelCache) throws IOException {
 		super(true);
-		meldfs = new MeldFs();
+		MeldFsProperties props = new MeldFsProperties();
+		if (kernelCache)
+			props.setString("readahead_window", "0");
+		meldfs = new MeldFs(props, true);
 		ArrayList<String> arglist = new ArrayList<String>();
 		if (debug)
 			arglist.add("-d");
 		arglist.add(mountLoc.toAbsolutePath().toString());
+		options = withDefaults(options, meldfs.getMountOptions());
 		if (options != null && options.length() > 0) {
 			arglist.add("-o");
 			arglist.add(options);
@@ -48,6 +54,22 @@ public class MeldFsFuseAdapter extends FuselajFs {
 		fuseArgs = arglist.toArray(new String[arglist.size()]);
 	}
 	
+	/** Adds each of <code>defaults</code> to the comma-separated <code>options</code> unless an option of the same name is already there */
+	static String withDefaults(String options, List<String> defaults) {
+		ArrayList<String> merged = new ArrayList<String>();
+		HashSet<String> names = new HashSet<String>();
+		if (options != null && options.length() > 0) {
+			for (String option : options.split(",")) {
+				merged.add(option);
+				names.add(option.split("=", 2)[0]);
+			}
+		}
+		for (String option : defaults)
+			if (!names.contains(option.split("=", 2)[0]))
+				merged.add(option);
+		return join(",", merged);
+	}
+
 	/** Starts the fuse main loop
 	 * @return the exit value of the fuse main loop
 	 */
@@ -61,11 +83,13 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	 */
 	public static void main(String[] args) throws IOException {
 		boolean debug = false;
+		int statsInterval = 0;
+		String cacheMode = "direct";
 		try {
 			HashSet<String> fuseOptions = new HashSet<>();
 			fuseOptions.add("big_writes");
 			fuseOptions.add("direct_io");
-			// fuseOptions.add("use_ino"); <- not in the meldfs model because there is no persistently consistent inode 
+			// use_ino and the cache timeouts are added by the constructor according to the meldfs configuration
 			// fuseOptions.add("allow_other"); <- allowed, but should be user-specified
 			
 			Path mountPoint = null;
@@ -90,6 +114,14 @@ public class MeldFsFuseAdapter extends FuselajFs {
 								if ("meld_debug".equals(name)) {
 									debug = !"false".equals(value);
 								}
+								else if ("meld_stats".equals(name)) {
+									statsInterval = value.length() == 0 ? 60 : Integer.parseInt(value);
+								}
+								else if ("meld_cache".equals(name)) {
+									if (!"direct".equals(value) && !"kernel".equals(value))
+										throw new RuntimeException("meld_cache must be direct or kernel");
+									cacheMode = value;
+								}
 								else {
 									throw new RuntimeException("Unknown meld option: " + option);
 								}
@@ -115,11 +147,24 @@ public class MeldFsFuseAdapter extends FuselajFs {
 				throw new RuntimeException("No mount point specified");
 			}
 			
+			if ("kernel".equals(cacheMode)) {
+				// Let the kernel cache file pages and do readahead.  Writes through the mount keep the page cache
+				// up to date, and auto_cache drops a file's pages on open if its size or modification time has changed
+				// (which kernel_cache would not do, so it isn't used: the sources can be changed without going
+				// through the mount).  ac_attr_timeout keeps that check fresh whatever attr_timeout is.
+				fuseOptions.remove("direct_io");
+				fuseOptions.add("auto_cache");
+				fuseOptions.add("ac_attr_timeout=1");
+			}
+			
 			if (!Files.isDirectory(mountPoint))
 				Files.createDirectories(mountPoint);
 			
-			MeldFsFuseAdapter mfs = new MeldFsFuseAdapter(mountPoint, debug, join(",", fuseOptions));
+			MeldFsFuseAdapter mfs = new MeldFsFuseAdapter(mountPoint, debug, join(",", fuseOptions), "kernel".equals(cacheMode));
+			if (statsInterval > 0)
+				mfs.startStatistics(statsInterval);
 			int exitCode = mfs.run();
+			mfs.meldfs.close();
 			System.exit(exitCode);
 		}
 		catch (Exception e) {
@@ -129,6 +174,25 @@ public class MeldFsFuseAdapter extends FuselajFs {
 		}
 	}
 	
+	/** Starts a background thread that prints cache statistics to stderr every <code>seconds</code> seconds */
+	void startStatistics(final int seconds) {
+		Thread thread = new Thread("MeldFs Statistics") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(seconds * 1000L);
+						meldfs.printStatistics(System.err);
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
 	private static <T> String join(String separator, Iterable<T> elements) {
 		StringBuilder sb = new StringBuilder();
 		Iterator<T> i = elements.iterator();
@@ -142,11 +206,18 @@ public class MeldFsFuseAdapter extends FuselajFs {
 
 	@Override
 	protected void getattr(Path path, Stat stat) throws FilesystemException {
+		// the size has to include anything still buffered for this file
+		meldfs.flushWrites(path);
 		// attempt to find entry with that name
-		Path file = meldfs.getRealPath(path);
-		if (file == null)
+		int source = meldfs.statFreshest(path, stat);
+		if (-1 == source)
 			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
-		os_lstat(file, stat);
+		stat.putInode(meldfs.getInode(path, source, stat));
+	}
+	
+	@Override
+	protected void statfs(Path path, StatVfs stat) throws FilesystemException {
+		meldfs.statfs(stat);
 	}
 	
 	@Override
@@ -164,33 +235,21 @@ public class MeldFsFuseAdapter extends FuselajFs {
 		Path dir = meldfs.getRealPath(path);
 		if (!Files.isDirectory(dir))
 			throw new FilesystemException(Errno.NotADirectory);
-		FuseFileHandle.open(fi, path);
+		FuseFileHandle.open(fi, new DirectoryCursor(meldfs, path));
 	}
 	
 	@Override
 	protected void readdir(Path path, DirBuffer dirBuffer, FileInfo fileInfo) throws FilesystemException {
 		FuseFileHandle fh = FuseFileHandle.get(fileInfo.getFileHandle());
-		String[] names;
-		if (fh.data instanceof Path) {
-			Set<String> items = meldfs.ls((Path)fh.data);
-			items.add(".");
-			items.add("..");
-			names = items.toArray(new String[items.size()]);
-			Arrays.sort(names);
-			fh.data = names;
-		}
-		else {
-			names = (String[])fh.data;
-		}
-		for (long i = dirBuffer.getPosition(); i < names.length; i++) {
-			if (dirBuffer.putDir(names[(int)i], i + 1))
-				return;
-		}
+		DirectoryCursor cursor = (DirectoryCursor)fh.data;
+		cursor.fill(dirBuffer);
 	}
 	
 	@Override
 	protected void releasedir(Path path, FileInfo fi) throws FilesystemException {
-		FuseFileHandle.release(fi);
+		FuseFileHandle fh = FuseFileHandle.release(fi);
+		if (fh != null)
+			((DirectoryCursor)fh.data).close();
 	}
 	
 	@Override
@@ -203,10 +262,7 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	
 	@Override
 	protected void symlink(Path targetOfLink, Path pathOfLink) throws FilesystemException {
-		Path realPath = meldfs.getRealPath(meldfs.parentOf(pathOfLink));
-		if (realPath == null)
-			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
-		os_symlink(targetOfLink, realPath.resolve(pathOfLink.getFileName()));
+		meldfs.symlink(targetOfLink, pathOfLink);
 	}
 	
 	@Override
@@ -221,15 +277,40 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	
 	@Override
 	protected void open(Path path, FileInfo fileInfo) throws FilesystemException {
-		FileChannel channel = meldfs.open(path, getJavaOpenOpts(fileInfo.getOpenFlags()));
-		FuseFileHandle.open(fileInfo, channel);
+		int flags = fileInfo.getOpenFlags();
+		StripedFiles.Striped striped = meldfs.getStriped(path);
+		if (striped != null) {
+			// striped files can only be read
+			if ((flags & FileInfo.O_ACCMODE) != FileInfo.O_RDONLY || 0 != (flags & FileInfo.O_TRUNC))
+				throw new FilesystemException(Errno.ReadOnlyFileSystem);
+			FuseFileHandle.open(fileInfo, meldfs.openStriped(path, striped));
+			return;
+		}
+		FuseFileHandle.open(fileInfo, meldfs.openFile(path, getJavaOpenOpts(flags), isReadable(flags), isBufferable(flags)));
 	}
 	
 	@Override
 	protected void create(final Path path, int mode, FileInfo fi) throws FilesystemException {
 		boolean failIfExists = 0 != (fi.getOpenFlags() & FileInfo.O_EXCL);
-		FileChannel channel = meldfs.create(path, failIfExists, getJavaOpenOpts(fi.getOpenFlags()));
-		FuseFileHandle.open(fi, channel);
+		// an existing file may be truncated
+		Object writing = meldfs.beginWrite(path);
+		try {
+			FileChannel channel = meldfs.create(path, failIfExists, getJavaOpenOpts(fi.getOpenFlags()));
+			FuseFileHandle.open(fi, meldfs.openFile(path, channel, writing, isReadable(fi.getOpenFlags()), isBufferable(fi.getOpenFlags())));
+		}
+		catch (FilesystemException e) {
+			meldfs.endWrite(writing);
+			throw e;
+		}
+	}
+
+	private static boolean isReadable(int openFlags) {
+		return (openFlags & FileInfo.O_ACCMODE) != FileInfo.O_WRONLY;
+	}
+
+	/** Returns true if a file opened with <code>openFlags</code> is written to, and not synchronously */
+	private static boolean isBufferable(int openFlags) {
+		return (openFlags & FileInfo.O_ACCMODE) != FileInfo.O_RDONLY && 0 == (openFlags & (FileInfo.O_SYNC | FileInfo.O_DSYNC));
 	}
 
 	/**
@@ -267,9 +348,9 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	@Override
 	protected void read(Path path, FileInfo fileInfo, ByteBuffer buffer, long position) throws FilesystemException {
 		FuseFileHandle fh = FuseFileHandle.get(fileInfo.getFileHandle());
-		FileChannel channel = (FileChannel)fh.data;
+		OpenFile file = (OpenFile)fh.data;
 		try {
-			channel.read(buffer, position);
+			file.read(buffer, position);
 		}
 		catch (IOException e) {
 			throw new FilesystemException(e);
@@ -279,9 +360,9 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	@Override
 	protected void write(Path path, FileInfo fi, ByteBuffer bb, long offset) throws FilesystemException {
 		FuseFileHandle fh = FuseFileHandle.get(fi.getFileHandle());
-		FileChannel channel = (FileChannel)fh.data;
+		OpenFile file = (OpenFile)fh.data;
 		try {
-			channel.write(bb, offset);
+			file.write(bb, offset);
 		}
 		catch (IOException e) {
 			throw new FilesystemException(e);
@@ -291,9 +372,9 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	@Override
 	protected void ftruncate(Path path, long size, FileInfo fi) throws FilesystemException {
 		FuseFileHandle fh = FuseFileHandle.get(fi.getFileHandle());
-		FileChannel channel = (FileChannel)fh.data;
+		OpenFile file = (OpenFile)fh.data;
 		try {
-			channel.truncate(size);
+			file.truncate(size);
 		}
 		catch (IOException e) {
 			throw new FilesystemException(e);
@@ -303,9 +384,22 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	@Override
 	protected void fsync(Path path, boolean isdatasync, FileInfo fi) throws FilesystemException {
 		FuseFileHandle fh = FuseFileHandle.get(fi.getFileHandle());
-		FileChannel channel = (FileChannel)fh.data;
+		OpenFile file = (OpenFile)fh.data;
 		try {
-			channel.force(!isdatasync);
+			file.force(!isdatasync);
+		}
+		catch (IOException e) {
+			throw new FilesystemException(e);
+		}
+	}
+	
+	@Override
+	protected void flush(Path path, FileInfo fi) throws FilesystemException {
+		// called on every close of the file, so this is where buffered writes are reported (errors from release are ignored)
+		FuseFileHandle fh = FuseFileHandle.get(fi.getFileHandle());
+		OpenFile file = (OpenFile)fh.data;
+		try {
+			file.flush();
 		}
 		catch (IOException e) {
 			throw new FilesystemException(e);
@@ -319,39 +413,65 @@ public class MeldFsFuseAdapter extends FuselajFs {
 	
 	@Override
 	protected void release(Path path, FileInfo fi) throws FilesystemException {
-		FuseFileHandle.release(fi);
+		FuseFileHandle fh = FuseFileHandle.release(fi);
+		if (fh == null)
+			return;
+		try {
+			((OpenFile)fh.data).close();
+		}
+		catch (IOException e) {
+			throw new FilesystemException(e);
+		}
 	}
 	
 	@Override
 	protected void truncate(Path path, long size) throws FilesystemException {
-		Path realPath = meldfs.getRealPath(path);
-		if (realPath == null)
-			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
-		os_truncate(realPath, size);
+		Path realPath = getModifiableRealPath(path);
+		meldfs.flushWrites(path);
+		Object writing = meldfs.beginWrite(path);
+		meldfs.changing(path);
+		try {
+			os_truncate(realPath, size);
+		}
+		finally {
+			meldfs.endWrite(writing);
+		}
+		meldfs.written(path);
 	}
 	
 	@Override
 	protected void chown(Path path, int uid, int gid) throws FilesystemException {
-		Path realPath = meldfs.getRealPath(path);
-		if (realPath == null)
-			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Path realPath = getModifiableRealPath(path);
+		meldfs.changing(path);
 		os_chown(realPath, uid, gid);
+		meldfs.invalidateAttributes(path);
 	}
 	
 	@Override
 	protected void chmod(Path path, int mode) throws FilesystemException {
-		Path realPath = meldfs.getRealPath(path);
-		if (realPath == null)
-			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Path realPath = getModifiableRealPath(path);
+		meldfs.changing(path);
 		os_chmod(realPath, mode);
+		meldfs.invalidateAttributes(path);
 	}
 	
 	@Override
 	protected void utimens(Path path, long accessSeconds, long accessNanoseconds, long modSeconds, long modNanoseconds) throws FilesystemException {
-		Path realPath = meldfs.getRealPath(path);
-		if (realPath == null)
-			throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+		Path realPath = getModifiableRealPath(path);
+		meldfs.changing(path);
 		os_utimensat(realPath, accessSeconds, accessNanoseconds, modSeconds, modNanoseconds);
+		// changing the modification time can change which version of the file is the freshest
+		meldfs.invalidate(path);
 	}
-	
+
+	/** Gets the real path of the file to modify at <code>path</code>, failing for files which can't be modified in place */
+	private Path getModifiableRealPath(Path path) throws FilesystemException {
+		Path realPath = meldfs.getRealPath(path);
+		if (realPath != null)
+			return realPath;
+		if (meldfs.getStriped(path) != null)
+			throw new FilesystemException(Errno.ReadOnlyFileSystem);
+		throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+	}
+
 }
@@ -15,10 +15,14 @@ public class MeldFsProperties {
 	HashMap<String,Object> values;
 	
 	public MeldFsProperties() throws IOException {
-		values = new HashMap<>();
 		// by default, these are loaded from /etc/meldfs/default
+		this(FileSystems.getDefault().getPath("/", "etc", "meldfs", "default"));
+	}
+
+	public MeldFsProperties(Path path) throws IOException {
+		values = new HashMap<>();
 		values.put("source", new ArrayList<String>());
-		loadFrom(FileSystems.getDefault().getPath("/", "etc", "meldfs", "default"));
+		loadFrom(path);
 	}
 
 	private void loadFrom(Path path) throws IOException {
@@ -45,7 +49,7 @@ public class MeldFsProperties {
 	}
 	
 	public void setBoolean(String name, boolean value) {
-		values.put(name, true);
+		values.put(name, value);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -67,4 +71,36 @@ public class MeldFsProperties {
 			result[i] = fs.getPath(pathList.get(i));
 		return result;
 	}
+
+	public String getString(String name, String defaultValue) {
+		Object value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		return value.toString();
+	}
+	
+	public boolean getBoolean(String name, boolean defaultValue) {
+		Object value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		if (value instanceof Boolean)
+			return ((Boolean)value).booleanValue();
+		return !"false".equals(value.toString());
+	}
+	
+	public int getInt(String name, int defaultValue) {
+		return (int)getLong(name, defaultValue);
+	}
+	
+	public long getLong(String name, long defaultValue) {
+		Object value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.toString());
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Property, \"" + name + "\", must be a valid integer");
+		}
+	}
 }
@@ -0,0 +1,594 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent record of where each virtual path lives, used to warm the namespace index when mounting.
+ * <p>Each source has its own catalog in a <code>.meldfs</code> directory at its root, describing only that source:
+ * a memory-mapped <code>RecordLog</code> (<code>catalog.log</code>) and the checkpoint (<code>catalog.ckpt</code>)
+ * into which the log is periodically folded before it is restarted.
+ * The records say that a path was found on the source (with its modification time if that was the freshest copy),
+ * that a path or a whole tree was removed from it, or that a column of a striped file was stored on it.</p>
+ * <p>The catalog is advisory.  Records are queued and written by a background thread, and are dropped when the queue
+ * or a log fills up, and entries loaded from it are not trusted until they have been confirmed on the sources, so a
+ * stale or incomplete catalog only costs lookups.  A checkpoint keeps at most as many paths per source as the
+ * namespace index can hold, since no more could be loaded; beyond that, the paths placed least recently are dropped,
+ * and counted (see <code>getEvicted()</code>).</p>
+ * <p>Tree removals replayed from a log are not applied by scanning everything loaded so far for each of them; they
+ * are collected (see <code>TreeRemovals</code>) and applied in one pass once the log has been replayed.</p>
+ * <p>Only one process can write to a source's catalog at a time.  Any other (e.g. the command line tools while the
+ * filesystem is mounted) reads it, and writes its records to a pending log (<code>catalog.pending</code>) instead,
+ * which the owner of the catalog takes over when loading and checkpointing.</p>
+ * @author warren
+ */
+public class NamespaceCatalog {
+	/** Name of the directory at the root of each source which holds the catalog */
+	public final static String DIRECTORY = ".meldfs";
+
+	final static String LOG_NAME = "catalog.log";
+	final static String CHECKPOINT_NAME = "catalog.ckpt";
+	final static String PENDING_NAME = "catalog.pending";
+	final static long LOG_MAGIC = 0x4d46534c4f473031L; // "MFSLOG01"
+	final static long CHECKPOINT_MAGIC = 0x4d4653434b503031L; // "MFSCKP01"
+	final static byte PLACED = 1;
+	final static byte REMOVED = 2;
+	final static byte REMOVED_TREE = 3;
+	final static byte STRIPED = 4;
+	/** the most records waiting to be written */
+	final static int QUEUE_SIZE = 16384;
+
+	final SourceFs[] sources;
+	final int logSize;
+	/** the most paths kept per source */
+	final int maxEntries;
+	/** the log written to on each source (its catalog, or the pending log if another process owns that), or null where none could be opened; null until <code>load()</code> is done */
+	volatile RecordLog[] logs;
+	/** true where the log written to is the source's catalog */
+	boolean[] owned;
+	/** the column file name on each source of each striped file */
+	final ConcurrentHashMap<Path,String[]> stripes = new ConcurrentHashMap<Path,String[]>();
+	/** records waiting to be written to the logs */
+	final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	volatile boolean checkpointWanted;
+	/** the number of paths loaded into the index */
+	volatile int loaded;
+	/** the number of paths dropped from checkpoints for want of room */
+	final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * @param sources
+	 * @param logSize the size of a new log
+	 * @param maxEntries the most paths a checkpoint keeps per source, i.e. the size of the index it is loaded into
+	 */
+	public NamespaceCatalog(SourceFs[] sources, int logSize, int maxEntries) {
+		this.sources = sources;
+		this.logSize = logSize;
+		this.maxEntries = maxEntries;
+	}
+
+	/** A record waiting to be written to the log of each source in its mask */
+	static class Record {
+		final byte type;
+		final long sourceMask;
+		/** the source whose record gets <code>value</code>; for a placed record the others get <code>Long.MIN_VALUE</code> */
+		final int freshest;
+		final long value;
+		final String text;
+
+		Record(byte type, long sourceMask, int freshest, long value, String text) {
+			this.type = type;
+			this.sourceMask = sourceMask;
+			this.freshest = freshest;
+			this.value = value;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Starts a background thread which loads the catalog into <code>index</code> and then writes the queued records,
+	 * checkpointing every <code>checkpointMillis</code> or whenever a log is half full
+	 */
+	public void start(final NamespaceIndex index, final long checkpointMillis) {
+		Thread thread = new Thread("MeldFs Catalog") {
+			@Override
+			public void run() {
+				load(index);
+				try {
+					long due = System.currentTimeMillis() + checkpointMillis;
+					for (;;) {
+						long wait = due - System.currentTimeMillis();
+						Record record = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+						if (record != null) {
+							synchronized (NamespaceCatalog.this) {
+								write(record);
+								flush();
+							}
+						}
+						if (checkpointWanted || System.currentTimeMillis() >= due) {
+							checkpointWanted = false;
+							absorb(index);
+							checkpoint();
+							due = System.currentTimeMillis() + checkpointMillis;
+						}
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Opens the catalog of every source and streams its contents into <code>index</code> as unverified entries
+	 * @param index
+	 * @return the number of paths loaded
+	 */
+	public int load(NamespaceIndex index) {
+		RecordLog[] logs = new RecordLog[sources.length];
+		boolean[] owned = new boolean[sources.length];
+		int loaded = 0;
+		for (int i = 0; i < sources.length; i++) {
+			Path dir = sources[i].root.resolve(DIRECTORY);
+			Loader loader = new Loader(index, i);
+			try {
+				RecordLog.readCheckpoint(dir.resolve(CHECKPOINT_NAME), CHECKPOINT_MAGIC, loader);
+				RecordLog log = RecordLog.open(dir.resolve(LOG_NAME), LOG_MAGIC, logSize, loader);
+				if (log != null && log.isWritable()) {
+					logs[i] = log;
+					owned[i] = true;
+					// what other processes left for us goes at the end of our log
+					absorb(i, log, index, loader);
+				}
+				else {
+					// another process owns the catalog, so leave records for it
+					if (log != null)
+						log.close();
+					logs[i] = RecordLog.open(dir.resolve(PENDING_NAME), LOG_MAGIC, logSize, loader);
+				}
+			}
+			catch (IOException ioe) {
+				sources[i].handleReadException(ioe);
+			}
+			loader.finish();
+			loaded += loader.loaded;
+		}
+		synchronized (this) {
+			this.owned = owned;
+			this.logs = logs;
+		}
+		return this.loaded = loaded;
+	}
+
+	/** Opens only the pending logs, for a process (e.g. the command line tools) that leaves the catalog to the mount */
+	public void openPending() {
+		RecordLog[] logs = new RecordLog[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			try {
+				logs[i] = RecordLog.open(sources[i].root.resolve(DIRECTORY).resolve(PENDING_NAME), LOG_MAGIC, logSize, new RecordLog.Handler() {
+					@Override
+					public void apply(byte type, long value, String text) {
+					}
+				});
+			}
+			catch (IOException ioe) {
+				sources[i].handleReadException(ioe);
+			}
+		}
+		synchronized (this) {
+			this.owned = new boolean[sources.length];
+			this.logs = logs;
+		}
+	}
+
+	/** Streams the records of one source's catalog into the index */
+	final class Loader implements RecordLog.Handler {
+		final NamespaceIndex index;
+		final int source;
+		final TreeRemovals removals = new TreeRemovals();
+		int loaded;
+
+		Loader(NamespaceIndex index, int source) {
+			this.index = index;
+			this.source = source;
+		}
+
+		@Override
+		public void apply(byte type, long value, String text) {
+			switch (type) {
+			case PLACED:
+				if (index.preload(toPath(text), source, value))
+					loaded++;
+				removals.placed(text);
+				break;
+			case REMOVED:
+				if (index.unload(toPath(text), source))
+					loaded--;
+				String[] columns = stripes.get(toPath(text));
+				if (columns != null)
+					columns[source] = null;
+				break;
+			case REMOVED_TREE:
+				removals.removedTree(text);
+				break;
+			case STRIPED:
+				int split = text.indexOf('\0');
+				if (split != -1) {
+					getColumns(toPath(text.substring(0, split)))[source] = text.substring(split + 1);
+					removals.striped(text.substring(0, split));
+				}
+				break;
+			}
+		}
+
+		/** Applies the tree removals, once the whole catalog of the source has been replayed */
+		void finish() {
+			if (removals.isEmpty())
+				return;
+			for (Path vpath : index.paths())
+				if (removals.isRemoved(vpath.toString()) && index.unload(vpath, source))
+					loaded--;
+			for (Map.Entry<Path,String[]> entry : stripes.entrySet())
+				if (removals.isStripedRemoved(entry.getKey().toString()))
+					entry.getValue()[source] = null;
+		}
+	}
+
+	/**
+	 * The tree removals replayed from a catalog, kept so that they can be applied in one pass at the end.
+	 * <p>Each removal gets a sequence number, and each path placed after the first removal remembers the number current
+	 * when it was placed, so a path is removed if one of its ancestors (or itself) was removed since it was last placed.
+	 * Checking a path takes a lookup per ancestor, rather than a scan of every path per removal.</p>
+	 */
+	static class TreeRemovals {
+		/** the sequence number of the latest removal of each tree */
+		final HashMap<String,Integer> trees = new HashMap<String,Integer>();
+		/** the sequence number when each path was last placed, for paths placed since the first removal */
+		final HashMap<String,Integer> placed = new HashMap<String,Integer>();
+		final HashMap<String,Integer> striped = new HashMap<String,Integer>();
+		int sequence;
+
+		boolean isEmpty() {
+			return sequence == 0;
+		}
+
+		void removedTree(String tree) {
+			trees.put(tree, ++sequence);
+		}
+
+		void placed(String vpath) {
+			if (sequence != 0)
+				placed.put(vpath, sequence);
+		}
+
+		void striped(String vpath) {
+			if (sequence != 0)
+				striped.put(vpath, sequence);
+		}
+
+		/** Returns true if <code>vpath</code> was removed with a tree since it was last placed */
+		boolean isRemoved(String vpath) {
+			return isRemoved(vpath, placed.get(vpath));
+		}
+
+		/** Returns true if striped file <code>vpath</code> was removed with a tree since its column was last recorded */
+		boolean isStripedRemoved(String vpath) {
+			return isRemoved(vpath, striped.get(vpath));
+		}
+
+		private boolean isRemoved(String vpath, Integer placedAt) {
+			int since = placedAt == null ? 0 : placedAt.intValue();
+			for (String tree = vpath; ; ) {
+				Integer removedAt = trees.get(tree);
+				if (removedAt != null && removedAt.intValue() > since)
+					return true;
+				if (tree.length() == 0)
+					return false;
+				int slash = tree.lastIndexOf('/');
+				tree = slash == -1 ? "" : tree.substring(0, slash);
+			}
+		}
+	}
+
+	/** Takes over what other processes have left in the pending logs, applying it to <code>index</code> */
+	void absorb(NamespaceIndex index) {
+		RecordLog[] logs = this.logs;
+		if (logs == null)
+			return;
+		for (int i = 0; i < logs.length; i++) {
+			if (logs[i] != null && owned[i]) {
+				try {
+					absorb(i, logs[i], index, null);
+				}
+				catch (IOException ioe) {
+					sources[i].handleReadException(ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the records of source <code>source</code>'s pending log to its catalog <code>log</code>, if no other
+	 * process has the pending log open, and then empties it
+	 * @param loader receives the records while loading, otherwise removals are applied to <code>index</code> directly
+	 */
+	private void absorb(int source, RecordLog log, NamespaceIndex index, Loader loader) throws IOException {
+		Path file = sources[source].root.resolve(DIRECTORY).resolve(PENDING_NAME);
+		if (!Files.isRegularFile(file))
+			return;
+		final ArrayList<Record> records = new ArrayList<Record>();
+		RecordLog pending = RecordLog.open(file, LOG_MAGIC, logSize, new RecordLog.Handler() {
+			@Override
+			public void apply(byte type, long value, String text) {
+				records.add(new Record(type, 0, 0, value, text));
+			}
+		});
+		if (pending == null)
+			return;
+		try {
+			// while another process is writing to it, leave it for next time
+			if (!pending.isWritable())
+				return;
+			for (Record record : records) {
+				if (loader != null)
+					loader.apply(record.type, record.value, record.text);
+				else
+					apply(index, source, record);
+				append(log, record.type, record.value, record.text);
+			}
+			pending.clear();
+		}
+		finally {
+			pending.close();
+		}
+	}
+
+	/** Applies a record left by another process for source <code>source</code> to the index and the striped files */
+	private void apply(NamespaceIndex index, int source, Record record) {
+		Path vpath;
+		switch (record.type) {
+		case REMOVED:
+			vpath = toPath(record.text);
+			index.remove(vpath);
+			stripes.remove(vpath);
+			break;
+		case REMOVED_TREE:
+			vpath = toPath(record.text);
+			index.removeTree(vpath);
+			for (Iterator<Path> i = stripes.keySet().iterator(); i.hasNext(); )
+				if (i.next().startsWith(vpath))
+					i.remove();
+			break;
+		case STRIPED:
+			int split = record.text.indexOf('\0');
+			if (split != -1)
+				getColumns(toPath(record.text.substring(0, split)))[source] = record.text.substring(split + 1);
+			break;
+		}
+	}
+
+	/**
+	 * Records that <code>vpath</code> was found on the sources in <code>sourceMask</code>
+	 * @param vpath
+	 * @param sourceMask
+	 * @param freshest the source holding the most recently modified version
+	 * @param modTime the modification time of the version on <code>freshest</code>
+	 */
+	public void placed(Path vpath, long sourceMask, int freshest, long modTime) {
+		queue.offer(new Record(PLACED, sourceMask, freshest, modTime, vpath.toString()));
+	}
+
+	/** Records that <code>vpath</code> no longer exists on any source */
+	public void removed(Path vpath) {
+		queue.offer(new Record(REMOVED, -1L, -1, 0, vpath.toString()));
+		stripes.remove(vpath);
+	}
+
+	/** Records that <code>vpath</code> and everything beneath it no longer exist on any source */
+	public void removedTree(Path vpath) {
+		queue.offer(new Record(REMOVED_TREE, -1L, -1, 0, vpath.toString()));
+		for (Iterator<Path> i = stripes.keySet().iterator(); i.hasNext(); )
+			if (i.next().startsWith(vpath))
+				i.remove();
+	}
+
+	/** Records that a column of the striped file <code>vpath</code> is stored on <code>source</code> with name <code>columnName</code> */
+	public void striped(Path vpath, int source, String columnName) {
+		queue.offer(new Record(STRIPED, 1L << source, source, 0, vpath.toString() + '\0' + columnName));
+		getColumns(vpath)[source] = columnName;
+	}
+
+	/** Returns the column file name of striped file <code>vpath</code> on each source (null where there is none), or null if not known to be striped */
+	public String[] getStripeColumns(Path vpath) {
+		return stripes.get(vpath);
+	}
+
+	private String[] getColumns(Path vpath) {
+		String[] columns = stripes.get(vpath);
+		if (columns == null) {
+			String[] existing = stripes.putIfAbsent(vpath, columns = new String[sources.length]);
+			if (existing != null)
+				columns = existing;
+		}
+		return columns;
+	}
+
+	/** Writes the queued records to the logs, if they have been opened */
+	public synchronized void flush() {
+		if (logs == null)
+			return;
+		for (Record record; null != (record = queue.poll()); )
+			write(record);
+	}
+
+	private void write(Record record) {
+		RecordLog[] logs = this.logs;
+		if (logs == null)
+			return;
+		for (int i = 0; i < logs.length; i++) {
+			if (0 == (record.sourceMask & (1L << i)))
+				continue;
+			long value = record.type == PLACED && i != record.freshest ? Long.MIN_VALUE : record.value;
+			append(logs[i], record.type, value, record.text);
+		}
+	}
+
+	private void append(RecordLog log, byte type, long value, String text) {
+		if (log == null)
+			return;
+		if (log.append(type, value, text))
+			checkpointWanted = true;
+	}
+
+	/** Writes the queued records, then folds each source's log into its checkpoint and restarts the log */
+	public void checkpoint() {
+		flush();
+		RecordLog[] logs = this.logs;
+		if (logs == null)
+			return;
+		for (int i = 0; i < logs.length; i++) {
+			if (logs[i] == null || !owned[i])
+				continue;
+			try {
+				State state = new State(maxEntries);
+				logs[i].checkpoint(sources[i].root.resolve(DIRECTORY).resolve(CHECKPOINT_NAME), CHECKPOINT_MAGIC, state);
+				evicted.addAndGet(state.evicted);
+			}
+			catch (IOException ioe) {
+				sources[i].handleWriteException(ioe);
+			}
+		}
+	}
+
+	/** Writes the queued records and closes every log, releasing it for other processes */
+	public void close() {
+		flush();
+		RecordLog[] logs;
+		synchronized (this) {
+			logs = this.logs;
+			this.logs = null;
+		}
+		if (logs == null)
+			return;
+		for (int i = 0; i < logs.length; i++) {
+			if (logs[i] == null)
+				continue;
+			try {
+				logs[i].close();
+			}
+			catch (IOException ioe) {
+				sources[i].handleWriteException(ioe);
+			}
+		}
+	}
+
+	/** Returns the number of paths loaded into the index when mounting */
+	public int getLoaded() {
+		return loaded;
+	}
+
+	/** Returns the number of paths checkpoints have dropped because a source had more than the index can hold */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	static Path toPath(String vpath) {
+		return FileSystems.getDefault().getPath(vpath);
+	}
+
+	/**
+	 * What a source's catalog says is on that source, rebuilt by replaying records, keeping the paths placed most recently.
+	 * <p>At most <code>maxEntries</code> paths (and as many striped files) are kept, which is as many as the index can
+	 * load; the number dropped is counted in <code>evicted</code>.  Paths removed with a tree still take up room until
+	 * the state is written.</p>
+	 */
+	static class State implements RecordLog.State {
+		/** modification time of each path found on the source (<code>Long.MIN_VALUE</code> if not the freshest copy) */
+		final LinkedHashMap<String,Long> placed;
+		/** column file name of each striped file with a column on the source */
+		final LinkedHashMap<String,String> striped;
+		TreeRemovals removals = new TreeRemovals();
+		int evicted;
+
+		State(final int maxEntries) {
+			placed = new LinkedHashMap<String,Long>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+					if (size() <= maxEntries)
+						return false;
+					evicted++;
+					return true;
+				}
+			};
+			striped = new LinkedHashMap<String,String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+					if (size() <= maxEntries)
+						return false;
+					evicted++;
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public void apply(byte type, long value, String text) {
+			switch (type) {
+			case PLACED:
+				placed.put(text, value);
+				removals.placed(text);
+				break;
+			case REMOVED:
+				placed.remove(text);
+				striped.remove(text);
+				break;
+			case REMOVED_TREE:
+				if (text.length() == 0) {
+					// everything
+					placed.clear();
+					striped.clear();
+					removals = new TreeRemovals();
+				}
+				else {
+					removals.removedTree(text);
+				}
+				break;
+			case STRIPED:
+				int split = text.indexOf('\0');
+				if (split != -1) {
+					String vpath = text.substring(0, split);
+					striped.put(vpath, text.substring(split + 1));
+					removals.striped(vpath);
+				}
+				break;
+			}
+		}
+
+		@Override
+		public void writeTo(RecordLog.CheckpointWriter out) throws IOException {
+			for (Map.Entry<String,Long> entry : placed.entrySet())
+				if (!removals.isRemoved(entry.getKey()))
+					out.write(PLACED, entry.getValue().longValue(), entry.getKey());
+			for (Map.Entry<String,String> entry : striped.entrySet())
+				if (!removals.isStripedRemoved(entry.getKey()))
+					out.write(STRIPED, 0, entry.getKey() + '\0' + entry.getValue());
+		}
+	}
+}
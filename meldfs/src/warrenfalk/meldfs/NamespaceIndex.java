@@ -0,0 +1,247 @@
+package warrenfalk.meldfs;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory index of which sources hold each virtual path.
+ * <p>Entries are filled lazily from multi-source lookups and kept current by the mutating operations in <code>MeldFs</code>.
+ * An entry records the set of sources on which the path exists as a bitmask, the freshest of those sources,
+ * and the modification time seen on that source, so a lookup can be answered without visiting every source.</p>
+ * <p>Lazy fills race with mutations, so every mutation bumps a stamp and a fill is discarded if the stamp
+ * has moved since the lookup that produced it began.  Stamps are kept per hash of the path, so that a mutation only
+ * discards fills of the paths sharing its stamp (or of every path, if it affects a whole tree).</p>
+ * <p>When the index is full, room is made by evicting a batch of entries which haven't been used since the last
+ * eviction passed them (i.e. the clock algorithm).</p>
+ * <p>Entries may also be preloaded from the <code>NamespaceCatalog</code> when mounting.  These are unverified until
+ * they have been checked against the sources in their mask.</p>
+ * @author warren
+ */
+public class NamespaceIndex {
+	final ConcurrentHashMap<Path,Entry> entries;
+	final int maxEntries;
+	final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+	final AtomicBoolean evicting = new AtomicBoolean();
+	final static int STAMPS = 1024;
+
+	/** The maximum number of sources that can be represented in a source mask */
+	public final static int MAX_SOURCES = 64;
+
+	public NamespaceIndex(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new ConcurrentHashMap<Path,Entry>();
+	}
+
+	public static class Entry {
+		/** bit <code>i</code> is set if the path exists on source <code>i</code> */
+		final long sourceMask;
+		/** index of the source holding the most recently modified version */
+		final int freshest;
+		/** modification time (in milliseconds) of the version on the freshest source */
+		final long modTime;
+		/** false if the entry was loaded from the catalog and <code>modTime</code> hasn't yet been confirmed on the freshest source */
+		final boolean verified;
+		/** set when the entry is used, and cleared by eviction passing over it */
+		volatile boolean referenced;
+
+		Entry(long sourceMask, int freshest, long modTime, boolean verified) {
+			this.sourceMask = sourceMask;
+			this.freshest = freshest;
+			this.modTime = modTime;
+			this.verified = verified;
+		}
+
+		public boolean isOn(int source) {
+			return 0 != (sourceMask & (1L << source));
+		}
+	}
+
+	/** Returns the entry for <code>vpath</code> or null if the path is not indexed */
+	public Entry get(Path vpath) {
+		Entry entry = entries.get(vpath);
+		if (entry != null && !entry.referenced)
+			entry.referenced = true;
+		return entry;
+	}
+
+	/** Returns the current stamp of <code>vpath</code>, which must be taken before a lookup whose result is passed to <code>fill()</code> */
+	public long getStamp(Path vpath) {
+		return stamps.get(slot(vpath));
+	}
+
+	private static int slot(Path vpath) {
+		return vpath.hashCode() & (STAMPS - 1);
+	}
+
+	private void bump(Path vpath) {
+		stamps.incrementAndGet(slot(vpath));
+	}
+
+	private void bumpAll() {
+		for (int i = 0; i < STAMPS; i++)
+			stamps.incrementAndGet(i);
+	}
+
+	/**
+	 * Records the result of a lookup, unless <code>vpath</code> may have been modified since <code>stamp</code> was taken
+	 * @param vpath
+	 * @param sourceMask
+	 * @param freshest
+	 * @param modTime
+	 * @param stamp the value of <code>getStamp(vpath)</code> taken before the lookup began
+	 * @return true if a new entry was added
+	 */
+	public boolean fill(Path vpath, long sourceMask, int freshest, long modTime, long stamp) {
+		if (maxEntries == 0)
+			return false;
+		if (getStamp(vpath) != stamp)
+			return false;
+		makeRoom();
+		return null == entries.putIfAbsent(vpath, new Entry(sourceMask, freshest, modTime, true));
+	}
+
+	/**
+	 * Merges a record from the catalog of source <code>source</code> into the unverified entry for <code>vpath</code>,
+	 * adding one if there is room.  Entries already verified are left alone.
+	 * @param modTime the modification time of the version on the source, or <code>Long.MIN_VALUE</code> if it isn't the freshest
+	 * @return true if a new entry was added
+	 */
+	public boolean preload(Path vpath, int source, long modTime) {
+		for (;;) {
+			Entry entry = entries.get(vpath);
+			if (entry == null) {
+				if (entries.size() >= maxEntries)
+					return false;
+				if (null == entries.putIfAbsent(vpath, new Entry(1L << source, source, modTime, false)))
+					return true;
+				continue;
+			}
+			if (entry.verified)
+				return false;
+			Entry merged;
+			if (entry.freshest == source || modTime > entry.modTime)
+				merged = new Entry(entry.sourceMask | (1L << source), source, modTime, false);
+			else
+				merged = new Entry(entry.sourceMask | (1L << source), entry.freshest, entry.modTime, false);
+			if (entries.replace(vpath, entry, merged))
+				return false;
+		}
+	}
+
+	/**
+	 * Takes source <code>source</code> out of the unverified entry for <code>vpath</code>, dropping the entry if that
+	 * was its freshest source
+	 * @return true if the entry was dropped
+	 */
+	public boolean unload(Path vpath, int source) {
+		for (;;) {
+			Entry entry = entries.get(vpath);
+			if (entry == null || entry.verified || !entry.isOn(source))
+				return false;
+			if (entry.freshest == source) {
+				if (entries.remove(vpath, entry))
+					return true;
+			}
+			else if (entries.replace(vpath, entry, new Entry(entry.sourceMask & ~(1L << source), entry.freshest, entry.modTime, false))) {
+				return false;
+			}
+		}
+	}
+
+	/** Returns the indexed paths, for a caller that has to go through all of them */
+	public Set<Path> paths() {
+		return entries.keySet();
+	}
+
+	/** Marks <code>entry</code> as verified, if it is still the entry for <code>vpath</code> */
+	public void verified(Path vpath, Entry entry) {
+		entries.replace(vpath, entry, new Entry(entry.sourceMask, entry.freshest, entry.modTime, true));
+	}
+
+	/** Records that <code>vpath</code> now exists only on source <code>source</code> */
+	public void put(Path vpath, int source, long modTime) {
+		bump(vpath);
+		if (maxEntries == 0)
+			return;
+		if (!entries.containsKey(vpath))
+			makeRoom();
+		entries.put(vpath, new Entry(1L << source, source, modTime, true));
+	}
+
+	/** If the index is full, evicts a batch of the entries which haven't been used lately */
+	private void makeRoom() {
+		if (entries.size() < maxEntries)
+			return;
+		// one thread evicts at a time, while the others carry on (briefly overfilling the index)
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			int batch = Math.max(1, maxEntries / 16);
+			int evicted = 0;
+			// the second pass evicts entries given a second chance by the first
+			for (int pass = 0; pass < 2 && evicted < batch; pass++) {
+				for (Iterator<Entry> i = entries.values().iterator(); i.hasNext() && evicted < batch; ) {
+					Entry entry = i.next();
+					if (entry.referenced) {
+						entry.referenced = false;
+						continue;
+					}
+					i.remove();
+					evicted++;
+				}
+			}
+		}
+		finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Removes <code>vpath</code> from the index
+	 * @param vpath
+	 * @return true if there was an entry for <code>vpath</code>
+	 */
+	public boolean remove(Path vpath) {
+		bump(vpath);
+		return null != entries.remove(vpath);
+	}
+
+	/** Removes <code>vpath</code> and everything beneath it from the index */
+	public void removeTree(Path vpath) {
+		bumpAll();
+		entries.remove(vpath);
+		// note: this is a scan of the whole index, but it is only needed when a path that might be a directory is moved
+		for (Iterator<Path> i = entries.keySet().iterator(); i.hasNext(); ) {
+			Path path = i.next();
+			if (path.startsWith(vpath))
+				i.remove();
+		}
+	}
+
+	/** Removes everything from the index */
+	public void clear() {
+		bumpAll();
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Builds a source mask from an array of per-source results
+	 * @param found array with one element per source which is non-null if the item was found on that source
+	 * @return a mask with bit <code>i</code> set when <code>found[i]</code> is not null
+	 */
+	public static long sourceMask(Object[] found) {
+		long mask = 0;
+		for (int i = 0; i < found.length && i < MAX_SOURCES; i++)
+			if (found[i] != null)
+				mask |= (1L << i);
+		return mask;
+	}
+}
@@ -0,0 +1,108 @@
+package warrenfalk.meldfs;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache of virtual paths recently found not to exist on any source.
+ * <p>Entries expire after a fixed time to live so that files appearing on the sources by other means are
+ * eventually seen.  When the cache is full, expired entries are swept out, and if that doesn't free any room
+ * the new entry is simply not cached.</p>
+ * <p>A path with no copy on any source may still be a striped file.  Such a path is marked as striped, so that it is
+ * looked up among the striped files without the sources being searched again, for as long as it is cached.</p>
+ * @author warren
+ */
+public class NegativeCache {
+	final ConcurrentHashMap<Path,Long> expirations;
+	/** the cached paths which were found to be striped files */
+	final Set<Path> striped = Collections.newSetFromMap(new ConcurrentHashMap<Path,Boolean>());
+	final int maxEntries;
+	final long ttlNanos;
+
+	public NegativeCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.expirations = new ConcurrentHashMap<Path,Long>();
+	}
+
+	/** Returns true if <code>vpath</code> is known not to exist */
+	public boolean contains(Path vpath) {
+		Long expiration = expirations.get(vpath);
+		if (expiration == null)
+			return false;
+		if (System.nanoTime() - expiration.longValue() < 0)
+			return true;
+		if (expirations.remove(vpath, expiration))
+			striped.remove(vpath);
+		return false;
+	}
+
+	/** Returns true if <code>vpath</code> is known not to exist on the sources, but to be a striped file */
+	public boolean isStriped(Path vpath) {
+		return striped.contains(vpath) && contains(vpath);
+	}
+
+	/** Records that <code>vpath</code> was found not to exist */
+	public void put(Path vpath) {
+		if (maxEntries == 0 || ttlNanos <= 0)
+			return;
+		long now = System.nanoTime();
+		if (expirations.size() >= maxEntries) {
+			sweep(now);
+			if (expirations.size() >= maxEntries)
+				return;
+		}
+		expirations.put(vpath, now + ttlNanos);
+		striped.remove(vpath);
+	}
+
+	/** Marks <code>vpath</code>, if it is cached as not existing on the sources, as a striped file */
+	public void putStriped(Path vpath) {
+		if (expirations.containsKey(vpath))
+			striped.add(vpath);
+	}
+
+	/** Removes <code>vpath</code> and its parent from the cache, as either may now exist */
+	public void invalidate(Path vpath) {
+		if (expirations.isEmpty())
+			return;
+		expirations.remove(vpath);
+		striped.remove(vpath);
+		Path parent = vpath.getParent();
+		if (parent != null)
+			expirations.remove(parent);
+	}
+
+	/** Removes <code>vpath</code>, its parent, and everything beneath <code>vpath</code> from the cache */
+	public void invalidateTree(Path vpath) {
+		if (expirations.isEmpty())
+			return;
+		invalidate(vpath);
+		for (Iterator<Path> i = expirations.keySet().iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(vpath))
+				i.remove();
+		}
+		for (Iterator<Path> i = striped.iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(vpath))
+				i.remove();
+		}
+	}
+
+	/** Removes everything from the cache */
+	public void clear() {
+		expirations.clear();
+		striped.clear();
+	}
+
+	private void sweep(long now) {
+		for (Iterator<Map.Entry<Path,Long>> i = expirations.entrySet().iterator(); i.hasNext(); ) {
+			if (now - i.next().getValue().longValue() >= 0)
+				i.remove();
+		}
+		striped.retainAll(expirations.keySet());
+	}
+}
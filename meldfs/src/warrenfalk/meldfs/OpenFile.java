@@ -0,0 +1,127 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A file opened through the mount: the channel to its real file, plus the state kept for it between calls.
+ * <p>A striped file has no single real file, and is read through a <code>StripeChannel</code> over its columns instead.</p>
+ * @author warren
+ */
+public class OpenFile {
+	final MeldFs meldfs;
+	/** the virtual path the file was opened by */
+	final Path vpath;
+	final FileChannel channel;
+	/** the cache entry holding the channel, or null if this file owns the channel */
+	final ChannelCache.Entry cached;
+	/** the readahead state, or null if the file isn't read sequentially ahead of the reader */
+	final Readahead readahead;
+	/** the write-behind buffer, or null if writes go straight to the file */
+	final WriteBehind writeBehind;
+	/** the mappings reads are served from, or null if the file isn't mapped */
+	final MappedFile mapped;
+	/** the channel over the columns of a striped file, or null if the file isn't striped */
+	final StripeChannel striped;
+	/** the file key from <code>MeldFs.beginWrite()</code> if the file is open for writing, or null */
+	final Object writing;
+
+	OpenFile(MeldFs meldfs, Path vpath, FileChannel channel, ChannelCache.Entry cached, Readahead readahead, WriteBehind writeBehind, MappedFile mapped, Object writing) {
+		this.meldfs = meldfs;
+		this.vpath = vpath;
+		this.channel = channel;
+		this.cached = cached;
+		this.readahead = readahead;
+		this.writeBehind = writeBehind;
+		this.mapped = mapped;
+		this.striped = null;
+		this.writing = writing;
+	}
+
+	OpenFile(MeldFs meldfs, Path vpath, StripeChannel striped) {
+		this.meldfs = meldfs;
+		this.vpath = vpath;
+		this.channel = null;
+		this.cached = null;
+		this.readahead = null;
+		this.writeBehind = null;
+		this.mapped = null;
+		this.striped = striped;
+		this.writing = null;
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (striped != null)
+			return striped.read(dst, position);
+		if (writeBehind != null)
+			writeBehind.flush();
+		meldfs.flushWrites(vpath);
+		if (mapped != null) {
+			int read = mapped.read(dst, position);
+			if (read != MappedFile.UNMAPPED)
+				return read;
+		}
+		if (readahead != null)
+			return readahead.read(dst, position, meldfs.getWriteEpoch(vpath));
+		return channel.read(dst, position);
+	}
+
+	public int write(ByteBuffer src, long position) throws IOException {
+		if (striped != null)
+			throw new IOException("Striped files are read-only");
+		int written = (writeBehind != null) ? writeBehind.write(src, position) : channel.write(src, position);
+		meldfs.written(vpath);
+		return written;
+	}
+
+	public void truncate(long size) throws IOException {
+		if (striped != null)
+			throw new IOException("Striped files are read-only");
+		if (writeBehind != null)
+			writeBehind.flush();
+		channel.truncate(size);
+		meldfs.written(vpath);
+	}
+
+	/** Writes out anything buffered for the file, reporting any error writing it out earlier */
+	public void flush() throws IOException {
+		if (writeBehind != null)
+			writeBehind.flush();
+	}
+
+	public void force(boolean metaData) throws IOException {
+		if (striped != null)
+			return;
+		if (writeBehind != null)
+			writeBehind.flush();
+		channel.force(metaData);
+	}
+
+	public void close() throws IOException {
+		if (striped != null) {
+			striped.close();
+			return;
+		}
+		try {
+			if (writeBehind != null)
+				writeBehind.close();
+		}
+		finally {
+			if (readahead != null)
+				readahead.close();
+			if (mapped != null)
+				mapped.close();
+			if (cached != null) {
+				meldfs.channels.release(cached);
+			}
+			else {
+				if (mapped != null)
+					mapped.mappings.invalidate(channel);
+				channel.close();
+			}
+			meldfs.endWrite(writing);
+		}
+	}
+}
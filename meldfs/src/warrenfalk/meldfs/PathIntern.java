@@ -0,0 +1,119 @@
+package warrenfalk.meldfs;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Interned virtual paths, each with its resolved real path on every source, so that the hot lookups which run
+ * one operation per source reuse the same <code>Path</code> objects instead of resolving (and allocating) afresh.
+ * <p>Nodes are linked to the node of their parent directory, and a real path is resolved from the parent's cached
+ * real path, so the trie of nodes shares the work of resolving common prefixes.  Nodes are found by the whole virtual
+ * path, though, because the paths handed in are already whole <code>Path</code> objects and splitting them into
+ * components would allocate.</p>
+ * <p>A virtual path always resolves to the same real path on a given source, so nodes never go stale.  To bound
+ * memory, nodes are evicted once the maximum is reached, as in the namespace index: a node is marked when it is used,
+ * and a sweep drops a batch of unmarked nodes while clearing the marks of the others, so the paths in use stay
+ * interned.  An evicted node still serves the children linked to it until they are evicted too.</p>
+ * @author warren
+ */
+public class PathIntern {
+	final Path[] roots;
+	final Path rootPath;
+	final int maxEntries;
+	final ConcurrentHashMap<Path,Node> nodes;
+	final AtomicBoolean evicting = new AtomicBoolean();
+
+	public PathIntern(SourceFs[] sources, Path rootPath, int maxEntries) {
+		this.roots = new Path[sources.length];
+		for (int i = 0; i < sources.length; i++)
+			roots[i] = sources[i].root;
+		this.rootPath = rootPath;
+		this.maxEntries = maxEntries;
+		this.nodes = new ConcurrentHashMap<Path,Node>();
+	}
+
+	/** An interned virtual path */
+	final class Node {
+		/** the node of the parent directory, or null for the root */
+		final Node parent;
+		/** the last name component of the virtual path (the virtual path itself at the root) */
+		final Path name;
+		/** the real path on each source, resolved on first use */
+		final Path[] resolved;
+		/** true if used since the last sweep */
+		volatile boolean referenced;
+
+		Node(Node parent, Path name) {
+			this.parent = parent;
+			this.name = name;
+			this.resolved = new Path[roots.length];
+		}
+
+		Path resolve(int source) {
+			Path real = resolved[source];
+			if (real == null) {
+				// benign race: any thread that gets here produces an equal path
+				real = (parent == null) ? roots[source].resolve(name) : parent.resolve(source).resolve(name);
+				resolved[source] = real;
+			}
+			return real;
+		}
+	}
+
+	/** Returns the real path of <code>vpath</code> on source <code>source</code> */
+	public Path resolve(int source, Path vpath) {
+		if (maxEntries == 0)
+			return roots[source].resolve(vpath);
+		return intern(vpath).resolve(source);
+	}
+
+	private Node intern(Path vpath) {
+		Node node = nodes.get(vpath);
+		if (node != null) {
+			if (!node.referenced)
+				node.referenced = true;
+			return node;
+		}
+		makeRoom();
+		Path parent = vpath.getParent();
+		if (parent == null && vpath.equals(rootPath))
+			node = new Node(null, vpath);
+		else
+			node = new Node(intern(parent == null ? rootPath : parent), vpath.getFileName());
+		Node existing = nodes.putIfAbsent(vpath, node);
+		return existing == null ? node : existing;
+	}
+
+	private void makeRoom() {
+		if (nodes.size() < maxEntries)
+			return;
+		// one thread evicts at a time, while the others carry on (briefly overfilling the table)
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			int batch = Math.max(1, maxEntries / 16);
+			int evicted = 0;
+			// the second pass evicts nodes given a second chance by the first
+			for (int pass = 0; pass < 2 && evicted < batch; pass++) {
+				for (Iterator<Node> i = nodes.values().iterator(); i.hasNext() && evicted < batch; ) {
+					Node node = i.next();
+					if (node.referenced) {
+						node.referenced = false;
+						continue;
+					}
+					i.remove();
+					evicted++;
+				}
+			}
+		}
+		finally {
+			evicting.set(false);
+		}
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+}
@@ -0,0 +1,167 @@
+package warrenfalk.meldfs;
+
+import java.nio.file.Path;
+
+import warrenfalk.meldfs.SourceCapacity.Snapshot;
+
+/**
+ * The built-in placement policies.
+ * <p>All of them avoid sources whose usable space has fallen below a minimum percentage of their size, unless every
+ * source has, in which case the one with the most usable space is chosen.  Sources whose capacity hasn't been read
+ * yet are assumed to have room.</p>
+ * @author warren
+ */
+public class PlacementPolicies {
+
+	/**
+	 * Creates a placement policy by name
+	 * @param name one of "freshest", "most_free", "round_robin" or "least_recent"
+	 * @param capacity
+	 * @param minFreePercent
+	 * @return
+	 */
+	public static PlacementPolicy create(String name, SourceCapacity capacity, double minFreePercent) {
+		switch (name.trim().toLowerCase()) {
+		case "freshest":
+			return new FreshestParent(capacity, minFreePercent);
+		case "most_free":
+			return new MostFree(capacity, minFreePercent);
+		case "round_robin":
+			return new WeightedRoundRobin(capacity, minFreePercent);
+		case "least_recent":
+			return new LeastRecentlyWritten(capacity, minFreePercent);
+		default:
+			throw new IllegalArgumentException("Unknown placement policy: " + name);
+		}
+	}
+
+	abstract static class CapacityPolicy implements PlacementPolicy {
+		final SourceCapacity capacity;
+		final double minFreePercent;
+
+		CapacityPolicy(SourceCapacity capacity, double minFreePercent) {
+			this.capacity = capacity;
+			this.minFreePercent = minFreePercent;
+		}
+
+		@Override
+		public int choose(Path vpath, Path[] parents, long[] parentModTimes) {
+			int freshest = MeldFs.freshest(parents, parentModTimes);
+			if (freshest == -1)
+				return -1;
+			Snapshot[] snapshots = capacity.getAll();
+			int index = choose(freshest, snapshots);
+			if (index == -1)
+				index = mostFree(snapshots, false);
+			if (index == -1)
+				index = freshest;
+			return index;
+		}
+
+		/**
+		 * Chooses among the sources with room
+		 * @param freshest the index of the source with the freshest parent directory
+		 * @param snapshots the capacity of each source
+		 * @return the chosen source, or -1 if none has room
+		 */
+		abstract int choose(int freshest, Snapshot[] snapshots);
+
+		/** Returns true if a source has room for new files */
+		boolean hasRoom(Snapshot snapshot) {
+			return snapshot == null || snapshot.getUsablePercent() >= minFreePercent;
+		}
+
+		/** Returns the source with the most usable space, or -1 if none is known (or none with room, if <code>withRoom</code>) */
+		int mostFree(Snapshot[] snapshots, boolean withRoom) {
+			int best = -1;
+			for (int i = 0; i < snapshots.length; i++) {
+				Snapshot snapshot = snapshots[i];
+				if (snapshot == null || (withRoom && !hasRoom(snapshot)))
+					continue;
+				if (best == -1 || snapshot.usable > snapshots[best].usable)
+					best = i;
+			}
+			return best;
+		}
+	}
+
+	/** Creates beside the freshest copy of the parent directory, as long as that source has room */
+	static class FreshestParent extends CapacityPolicy {
+		FreshestParent(SourceCapacity capacity, double minFreePercent) {
+			super(capacity, minFreePercent);
+		}
+
+		@Override
+		int choose(int freshest, Snapshot[] snapshots) {
+			if (hasRoom(snapshots[freshest]))
+				return freshest;
+			return mostFree(snapshots, true);
+		}
+	}
+
+	/** Creates on the source with the most usable space */
+	static class MostFree extends CapacityPolicy {
+		MostFree(SourceCapacity capacity, double minFreePercent) {
+			super(capacity, minFreePercent);
+		}
+
+		@Override
+		int choose(int freshest, Snapshot[] snapshots) {
+			return mostFree(snapshots, true);
+		}
+	}
+
+	/** Takes turns between the sources, in proportion to their usable space (smooth weighted round-robin) */
+	static class WeightedRoundRobin extends CapacityPolicy {
+		final long[] current;
+
+		WeightedRoundRobin(SourceCapacity capacity, double minFreePercent) {
+			super(capacity, minFreePercent);
+			current = new long[capacity.getSourceCount()];
+		}
+
+		@Override
+		synchronized int choose(int freshest, Snapshot[] snapshots) {
+			long total = 0;
+			int best = -1;
+			for (int i = 0; i < snapshots.length; i++) {
+				if (!hasRoom(snapshots[i]))
+					continue;
+				// weight by usable megabytes
+				long weight = snapshots[i] == null ? 1 : Math.max(1, snapshots[i].usable >> 20);
+				current[i] += weight;
+				total += weight;
+				if (best == -1 || current[i] > current[best])
+					best = i;
+			}
+			if (best != -1)
+				current[best] -= total;
+			return best;
+		}
+	}
+
+	/** Creates on the source which was least recently chosen */
+	static class LeastRecentlyWritten extends CapacityPolicy {
+		final long[] lastChosen;
+		long counter;
+
+		LeastRecentlyWritten(SourceCapacity capacity, double minFreePercent) {
+			super(capacity, minFreePercent);
+			lastChosen = new long[capacity.getSourceCount()];
+		}
+
+		@Override
+		synchronized int choose(int freshest, Snapshot[] snapshots) {
+			int best = -1;
+			for (int i = 0; i < snapshots.length; i++) {
+				if (!hasRoom(snapshots[i]))
+					continue;
+				if (best == -1 || lastChosen[i] < lastChosen[best])
+					best = i;
+			}
+			if (best != -1)
+				lastChosen[best] = ++counter;
+			return best;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package warrenfalk.meldfs;
+
+import java.nio.file.Path;
+
+/**
+ * Decides which source a new file or directory is created on.
+ * @see PlacementPolicies
+ * @author warren
+ */
+public interface PlacementPolicy {
+	/**
+	 * Chooses the source on which to create <code>vpath</code>.
+	 * <p>The chosen source need not already have the parent directory; it will be created there if necessary.</p>
+	 * @param vpath the virtual path being created
+	 * @param parents the real path of the parent directory on each source, or null where it doesn't exist
+	 * @param parentModTimes the modification time of each parent directory
+	 * @return the index of the chosen source, or -1 if the parent directory doesn't exist anywhere
+	 */
+	int choose(Path vpath, Path[] parents, long[] parentModTimes);
+}
@@ -0,0 +1,278 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Userspace readahead for one open file, standing in for the kernel's when the mount uses <code>direct_io</code>.
+ * <p>Once a few reads in a row have each started where the last one ended, the next blocks of the file are read
+ * asynchronously into pooled buffers, keeping a window of blocks ahead of the reader, and reads are served from those
+ * blocks.  Reads arriving out of order within the window are still sequential.  A read anywhere else drops the window
+ * and goes straight to the file, as does every read while the buffer pool is exhausted.</p>
+ * <p>The state of the window is only locked while it is updated, so concurrent reads of the file wait for their
+ * blocks, and read the file, in parallel.</p>
+ * <p>Blocks are tagged with the write epoch of the file's path when they are read, and are thrown away if the path has
+ * been written since, so data written through the mount is never served stale.</p>
+ * @author warren
+ */
+public class Readahead {
+	/** the number of consecutive sequential reads after which reading ahead starts */
+	final static int SEQUENTIAL_THRESHOLD = 2;
+
+	final FileChannel channel;
+	final BufferPool pool;
+	final Executor executor;
+	final int windowBlocks;
+	final int blockSize;
+	final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+	/** where the reader will be if it is reading sequentially */
+	long expected = -1;
+	int sequentialReads;
+	/** the offset of the end of the file, once a block has run into it, otherwise -1 */
+	long end = -1;
+
+	/**
+	 * @param channel the file to read
+	 * @param pool the buffers for blocks, whose size is the block size
+	 * @param executor runs the asynchronous reads
+	 * @param windowBytes how far ahead of the reader to keep
+	 */
+	public Readahead(FileChannel channel, BufferPool pool, Executor executor, int windowBytes) {
+		this.channel = channel;
+		this.pool = pool;
+		this.executor = executor;
+		this.blockSize = pool.getBufferSize();
+		this.windowBlocks = Math.max(1, windowBytes / blockSize);
+	}
+
+	/** A block of the file, read ahead */
+	final class Block implements Runnable {
+		final long offset;
+		final long epoch;
+		final ByteBuffer buffer;
+		int length;
+		IOException error;
+		boolean done;
+		boolean discarded;
+		/** the number of reads copying from the buffer, which keep it from going back to the pool */
+		int users;
+
+		Block(long offset, long epoch, ByteBuffer buffer) {
+			this.offset = offset;
+			this.epoch = epoch;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void run() {
+			int length = 0;
+			IOException error = null;
+			try {
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, offset + buffer.position());
+					if (read < 0)
+						break;
+					length += read;
+				}
+			}
+			catch (IOException ioe) {
+				error = ioe;
+			}
+			synchronized (this) {
+				this.length = length;
+				this.error = error;
+				done = true;
+				if (discarded && users == 0)
+					pool.release(buffer);
+				notifyAll();
+			}
+		}
+
+		synchronized void pin() {
+			users++;
+		}
+
+		synchronized void unpin() {
+			if (--users == 0 && discarded && done)
+				pool.release(buffer);
+		}
+
+		/** Waits for the block to be read, returning the number of bytes read */
+		synchronized int await() throws IOException {
+			try {
+				while (!done)
+					wait();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (error != null)
+				throw error;
+			return length;
+		}
+
+		/** Gives the buffer back to the pool, now or when the read is done and nothing is copying from it */
+		synchronized void discard() {
+			discarded = true;
+			if (done && users == 0)
+				pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Reads into <code>dst</code> from <code>position</code>
+	 * @param dst
+	 * @param position
+	 * @param epoch the current write epoch of the file's path
+	 * @return the number of bytes read, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position, long epoch) throws IOException {
+		boolean sequential;
+		synchronized (this) {
+			sequential = track(position, dst.remaining());
+		}
+
+		int total = 0;
+		while (dst.hasRemaining()) {
+			long pos = position + total;
+			Block block;
+			synchronized (this) {
+				block = find(pos, epoch);
+				if (block == null)
+					break;
+				block.pin();
+			}
+			try {
+				int length = block.await();
+				int skip = (int)(pos - block.offset);
+				if (skip >= length) {
+					// end of the file
+					if (total == 0)
+						return -1;
+					break;
+				}
+				ByteBuffer src = block.buffer.duplicate();
+				src.position(skip).limit(Math.min(length, skip + dst.remaining()));
+				total += src.remaining();
+				dst.put(src);
+				if (length < blockSize)
+					break;
+			}
+			finally {
+				block.unpin();
+			}
+		}
+
+		if (dst.hasRemaining()) {
+			int read = channel.read(dst, position + total);
+			if (read < 0 && total == 0)
+				return -1;
+			if (read > 0)
+				total += read;
+		}
+
+		if (sequential) {
+			synchronized (this) {
+				fill(position + total, epoch);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Notes a read of <code>length</code> bytes at <code>position</code>, dropping the window if it isn't sequential
+	 * @return true if reading ahead should follow the read
+	 */
+	private boolean track(long position, int length) {
+		if (position == expected || inWindow(position)) {
+			sequentialReads++;
+			expected = Math.max(expected, position + length);
+		}
+		else {
+			sequentialReads = 0;
+			discardAll();
+			end = -1;
+			expected = position + length;
+		}
+		return sequentialReads >= SEQUENTIAL_THRESHOLD;
+	}
+
+	/** Returns true if <code>position</code> is within the blocks read or being read ahead */
+	private boolean inWindow(long position) {
+		Block first = blocks.peekFirst();
+		return first != null && position >= first.offset && position < blocks.peekLast().offset + blockSize;
+	}
+
+	/**
+	 * Finds the block holding <code>pos</code>, dropping those the reader has left well behind (keeping one in case
+	 * of reads arriving out of order)
+	 * @return the block, or null if <code>pos</code> isn't in any block
+	 */
+	private Block find(long pos, long epoch) {
+		for (;;) {
+			Block block = blocks.peekFirst();
+			if (block == null)
+				return null;
+			if (block.epoch != epoch) {
+				discardAll();
+				end = -1;
+				return null;
+			}
+			if (pos < block.offset + 2L * blockSize)
+				break;
+			blocks.pollFirst().discard();
+		}
+		for (Block block : blocks)
+			if (pos >= block.offset && pos < block.offset + blockSize)
+				return block;
+		return null;
+	}
+
+	/** Starts reading the blocks of the window ahead of <code>position</code> that aren't already read or being read */
+	private void fill(long position, long epoch) {
+		long next = (blocks.isEmpty()) ? (position / blockSize) * blockSize : blocks.peekLast().offset + blockSize;
+		long limit = position + (long)windowBlocks * blockSize;
+		while (next < limit && blocks.size() < windowBlocks + 2) {
+			if (end != -1 && next >= end)
+				return;
+			ByteBuffer buffer = pool.acquire();
+			if (buffer == null)
+				return;
+			Block block = new Block(next, epoch, buffer);
+			blocks.addLast(block);
+			executor.execute(block);
+			next += blockSize;
+		}
+		updateEnd();
+	}
+
+	/** Notes where the file ends if a finished block ran short */
+	private void updateEnd() {
+		for (Iterator<Block> i = blocks.iterator(); i.hasNext(); ) {
+			Block block = i.next();
+			synchronized (block) {
+				if (block.done && block.error == null && block.length < blockSize) {
+					end = block.offset + block.length;
+					return;
+				}
+			}
+		}
+	}
+
+	private void discardAll() {
+		for (Block block : blocks)
+			block.discard();
+		blocks.clear();
+	}
+
+	/** Returns all buffers to the pool */
+	public synchronized void close() {
+		discardAll();
+	}
+}
@@ -0,0 +1,284 @@
+package warrenfalk.meldfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-size, memory-mapped, append-only log of small records, with a checkpoint file into which it can be folded.
+ * <p>A record is a type, a numeric value and a text, framed by its length and a CRC32, so replay stops cleanly at the
+ * end of the log or at a record torn by a crash.  Appending is a copy into the mapped buffer, and a record that
+ * doesn't fit is dropped, so users of this must treat what they read back as advisory.</p>
+ * <p>Only the process holding the file lock on a log writes to it; in any other process the log is read-only.</p>
+ * @author warren
+ */
+public class RecordLog {
+	final static int HEADER_SIZE = 8;
+	/** bytes in a record other than its text: length, type, value and checksum */
+	final static int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Receives records as they are replayed */
+	public interface Handler {
+		void apply(byte type, long value, String text);
+	}
+
+	/** State rebuilt by replaying records, which can be written out again as a checkpoint */
+	public interface State extends Handler {
+		void writeTo(CheckpointWriter out) throws IOException;
+	}
+
+	final FileChannel channel;
+	final MappedByteBuffer buffer;
+	final boolean writable;
+	final CRC32 crc = new CRC32();
+	/** where the next record goes */
+	int position;
+
+	private RecordLog(FileChannel channel, MappedByteBuffer buffer, boolean writable) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.writable = writable;
+	}
+
+	/**
+	 * Opens the log at <code>file</code>, replaying its records into <code>handler</code>.
+	 * If another process holds the log, it is opened read-only.
+	 * @param file
+	 * @param magic identifies the kind of log in its header
+	 * @param size the size of a new log
+	 * @param handler
+	 * @return the log, or null if it doesn't exist and can't be created
+	 * @throws IOException
+	 */
+	public static RecordLog open(Path file, long magic, int size, Handler handler) throws IOException {
+		FileChannel channel = null;
+		boolean writable = false;
+		try {
+			Files.createDirectories(file.getParent());
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			FileLock lock = null;
+			try {
+				lock = channel.tryLock();
+			}
+			catch (OverlappingFileLockException e) {
+				// held elsewhere in this process
+			}
+			writable = lock != null;
+		}
+		catch (IOException ioe) {
+			// perhaps a read-only source, so see if there is anything to read
+			if (channel != null)
+				channel.close();
+			if (!Files.isRegularFile(file))
+				return null;
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		}
+		MappedByteBuffer buffer;
+		if (writable) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+			if (buffer.getLong(0) != magic) {
+				buffer.putInt(HEADER_SIZE, 0);
+				buffer.putLong(0, magic);
+			}
+		}
+		else {
+			if (channel.size() < HEADER_SIZE) {
+				channel.close();
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		RecordLog log = new RecordLog(channel, buffer, writable);
+		if (buffer.getLong(0) == magic)
+			log.position = replay(buffer.duplicate(), handler);
+		else
+			log.position = buffer.limit(); // not this kind of log, so don't touch it
+		return log;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Appends a record, or drops it if the log is full
+	 * @return true if the log is now more than half full
+	 */
+	public synchronized boolean append(byte type, long value, String text) {
+		if (!writable)
+			return false;
+		offer(type, value, text);
+		return isHalfFull();
+	}
+
+	/**
+	 * Appends a record if there is room for it
+	 * @return false if the log is full (or can't be written)
+	 */
+	public synchronized boolean offer(byte type, long value, String text) {
+		if (!writable)
+			return false;
+		byte[] body = encode(type, value, text);
+		int length = RECORD_OVERHEAD + body.length - 9;
+		// leave room for the end marker
+		if (length + 4 > buffer.limit() - position)
+			return false;
+		crc.reset();
+		crc.update(body, 0, body.length);
+		ByteBuffer record = buffer.duplicate();
+		record.position(position + 4);
+		record.put(body);
+		buffer.putInt(position + length - 4, (int)crc.getValue());
+		buffer.putInt(position + length, 0);
+		// the length goes in last so that the record is never seen incomplete
+		buffer.putInt(position, length);
+		position += length;
+		return true;
+	}
+
+	public synchronized boolean isHalfFull() {
+		return position > buffer.limit() / 2;
+	}
+
+	/**
+	 * Folds the log into the checkpoint at <code>checkpointFile</code> and restarts the log
+	 * @param checkpointFile
+	 * @param magic identifies the kind of checkpoint in its header
+	 * @param state an empty state into which the current checkpoint and the log are replayed
+	 * @throws IOException
+	 */
+	public void checkpoint(Path checkpointFile, long magic, State state) throws IOException {
+		int end;
+		synchronized (this) {
+			end = position;
+		}
+		if (!writable || end == HEADER_SIZE)
+			return;
+		readCheckpoint(checkpointFile, magic, state);
+		ByteBuffer records = buffer.duplicate();
+		records.limit(end);
+		replay(records, state);
+		try (CheckpointWriter out = new CheckpointWriter(checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp"), magic)) {
+			state.writeTo(out);
+			out.commit(checkpointFile);
+		}
+		// only now that the checkpoint is in place can the records folded into it be dropped from the log
+		discard(end);
+	}
+
+	/** Drops the records before <code>end</code>, keeping any appended since */
+	synchronized void discard(int end) {
+		int remaining = position - end;
+		for (int i = 0; i < remaining; i++)
+			buffer.put(HEADER_SIZE + i, buffer.get(end + i));
+		position = HEADER_SIZE + remaining;
+		buffer.putInt(position, 0);
+	}
+
+	/** Drops every record in the log */
+	public synchronized void clear() {
+		discard(position);
+	}
+
+	/** Closes the log, releasing it for other processes */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/** Encodes the part of a record covered by its checksum: type, value and text */
+	static byte[] encode(byte type, long value, String text) {
+		byte[] bytes = text.getBytes(UTF8);
+		byte[] body = new byte[9 + bytes.length];
+		body[0] = type;
+		for (int i = 0; i < 8; i++)
+			body[1 + i] = (byte)(value >>> (56 - 8 * i));
+		System.arraycopy(bytes, 0, body, 9, bytes.length);
+		return body;
+	}
+
+	/** Replays the checkpoint at <code>file</code>, if there is one, into <code>handler</code> */
+	public static void readCheckpoint(Path file, long magic, Handler handler) throws IOException {
+		if (!Files.isRegularFile(file))
+			return;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.limit() >= HEADER_SIZE && buffer.getLong(0) == magic)
+				replay(buffer, handler);
+		}
+	}
+
+	/**
+	 * Applies the records in <code>buffer</code> (from just after the header to its limit) to <code>handler</code>,
+	 * stopping at the end marker or at the first damaged record
+	 * @return the position just after the last good record
+	 */
+	static int replay(ByteBuffer buffer, Handler handler) {
+		CRC32 crc = new CRC32();
+		int limit = buffer.limit();
+		int pos = HEADER_SIZE;
+		while (limit - pos >= RECORD_OVERHEAD) {
+			int length = buffer.getInt(pos);
+			if (length < RECORD_OVERHEAD || length > limit - pos)
+				break;
+			byte[] body = new byte[length - 8];
+			buffer.position(pos + 4);
+			buffer.get(body);
+			crc.reset();
+			crc.update(body, 0, body.length);
+			if ((int)crc.getValue() != buffer.getInt(pos + length - 4))
+				break;
+			handler.apply(body[0], buffer.getLong(pos + 5), new String(body, 9, body.length - 9, UTF8));
+			pos += length;
+		}
+		return pos;
+	}
+
+	/** Writes a checkpoint to a temporary file which replaces the real one on <code>commit()</code> */
+	public static class CheckpointWriter implements AutoCloseable {
+		final Path temp;
+		final FileChannel channel;
+		final DataOutputStream out;
+		final CRC32 crc = new CRC32();
+
+		CheckpointWriter(Path temp, long magic) throws IOException {
+			this.temp = temp;
+			this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 0x10000));
+			out.writeLong(magic);
+		}
+
+		public void write(byte type, long value, String text) throws IOException {
+			byte[] body = encode(type, value, text);
+			crc.reset();
+			crc.update(body, 0, body.length);
+			out.writeInt(RECORD_OVERHEAD + body.length - 9);
+			out.write(body);
+			out.writeInt((int)crc.getValue());
+		}
+
+		void commit(Path target) throws IOException {
+			out.writeInt(0);
+			out.flush();
+			channel.force(true);
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
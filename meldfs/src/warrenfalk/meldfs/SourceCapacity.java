@@ -0,0 +1,112 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+
+/**
+ * Snapshots of the capacity of each source's file store, refreshed in the background so that nothing which needs
+ * them (placement, statfs) ever waits on a slow or spun-down disk.
+ * <p>A snapshot is null until the source has been read once.  If a source can't be read, its last snapshot is kept.</p>
+ * @author warren
+ */
+public class SourceCapacity {
+	final SourceFs[] sources;
+	final FileStore[] stores;
+	final Snapshot[] snapshots;
+
+	public SourceCapacity(SourceFs[] sources) {
+		this.sources = sources;
+		this.stores = new FileStore[sources.length];
+		this.snapshots = new Snapshot[sources.length];
+	}
+
+	/** The capacity of one source at one time */
+	public static class Snapshot {
+		/** size of the file store in bytes */
+		public final long total;
+		/** bytes available to this process */
+		public final long usable;
+		/** bytes not allocated, including any reserved for privileged users */
+		public final long unallocated;
+
+		Snapshot(long total, long usable, long unallocated) {
+			this.total = total;
+			this.usable = usable;
+			this.unallocated = unallocated;
+		}
+
+		/** Returns the percentage of the store that is usable */
+		public double getUsablePercent() {
+			return total == 0 ? 0 : 100.0 * usable / total;
+		}
+	}
+
+	/** Starts a background thread which refreshes the snapshots every <code>intervalMillis</code> */
+	public void start(final long intervalMillis) {
+		Thread thread = new Thread("MeldFs Capacity") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						refresh();
+						Thread.sleep(intervalMillis);
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Reads the capacity of every source now */
+	public void refresh() {
+		for (int i = 0; i < sources.length; i++) {
+			try {
+				FileStore store = stores[i];
+				if (store == null)
+					store = Files.getFileStore(sources[i].root);
+				Snapshot snapshot = new Snapshot(store.getTotalSpace(), store.getUsableSpace(), store.getUnallocatedSpace());
+				synchronized (snapshots) {
+					stores[i] = store;
+					snapshots[i] = snapshot;
+				}
+			}
+			catch (IOException ioe) {
+				sources[i].handleReadException(ioe);
+			}
+		}
+	}
+
+	/** Returns the latest snapshot of source <code>index</code>, or null if it hasn't been read yet */
+	public Snapshot get(int index) {
+		synchronized (snapshots) {
+			return snapshots[index];
+		}
+	}
+
+	/** Returns the latest snapshot of every source (elements are null for sources not read yet) */
+	public Snapshot[] getAll() {
+		synchronized (snapshots) {
+			return snapshots.clone();
+		}
+	}
+
+	public int getSourceCount() {
+		return sources.length;
+	}
+
+	/** Returns true if source <code>index</code> is known to share a file store with an earlier source */
+	public boolean sharesStore(int index) {
+		synchronized (snapshots) {
+			if (stores[index] == null)
+				return false;
+			for (int i = 0; i < index; i++)
+				if (stores[index].equals(stores[i]))
+					return true;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package warrenfalk.meldfs;
+
+import warrenfalk.fuselaj.FilesystemException;
+
+/**
+ * Runs a source operation against a set of sources concurrently
+ * @author warren
+ */
+public interface SourceOpDispatcher {
+	/**
+	 * Runs <code>operation</code> against all selected sources concurrently, returning only when all are complete.
+	 * A source is selected if the element at its position within the mask argument is not null, or if mask is null.
+	 * @param mask
+	 * @param operation
+	 * @param errors receives the exception, if any, thrown by the operation on each source
+	 * @throws FilesystemException
+	 */
+	void dispatch(Object[] mask, SourceOp operation, FilesystemException[] errors) throws FilesystemException;
+
+	/** Stops any threads of the dispatcher's own once they have finished their current work */
+	void shutdown();
+}
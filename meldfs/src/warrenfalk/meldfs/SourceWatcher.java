@@ -0,0 +1,266 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the source directories for changes made behind meldfs's back (e.g. by an administrator or rsync writing
+ * directly to a source) and drops whatever the caches in <code>MeldFs</code> know about the paths affected.
+ * <p>Every directory on every source is registered with a <code>WatchService</code> (inotify on Linux), up to a
+ * fixed maximum so that memory and kernel watches are bounded.  A created or deleted entry invalidates its virtual
+ * path in the namespace index and negative and attribute caches (for a directory, everything beneath it too) and a
+ * modified entry invalidates its attributes (and its location, if there are copies on other sources).  If events are lost because the queue overflowed, all caches are
+ * cleared and the directories are walked again to pick up any that were created in the meantime.</p>
+ * <p>Changes made through meldfs are seen here too.  MeldFs already drops what it knows about the paths it changes,
+ * and says which they are (see <code>changing()</code>), so events for those paths are ignored for a short while
+ * afterwards, and repeated modifications of a path reported together are handled once.  A change made behind
+ * meldfs's back to the same path in that short while goes unseen until the caches expire or the path is changed
+ * again.</p>
+ * @author warren
+ */
+public class SourceWatcher {
+	final MeldFs meldfs;
+	final SourceFs[] sources;
+	final int maxDirectories;
+	final WatchService service;
+	/** what each registered key is watching */
+	final HashMap<WatchKey,Watched> watched = new HashMap<WatchKey,Watched>();
+	/** the key registered for each real directory */
+	final HashMap<Path,WatchKey> keys = new HashMap<Path,WatchKey>();
+	/** the virtual paths changed through meldfs, with the time until which events for them are ignored */
+	final ConcurrentHashMap<Path,Long> ownChanges = new ConcurrentHashMap<Path,Long>();
+	final long ignoreNanos;
+	boolean warnedFull;
+	/** the number of events ignored as caused by meldfs itself, and of repeated modifications handled once */
+	volatile long ignored, coalesced;
+
+	/** the most paths remembered as changed through meldfs before the expired ones are swept out */
+	final static int MAX_OWN_CHANGES = 4096;
+
+	/**
+	 * @param meldfs
+	 * @param sources
+	 * @param maxDirectories the most directories watched
+	 * @param ignoreMillis how long events for a path changed through meldfs are ignored
+	 * @throws IOException
+	 */
+	public SourceWatcher(MeldFs meldfs, SourceFs[] sources, int maxDirectories, long ignoreMillis) throws IOException {
+		this.meldfs = meldfs;
+		this.sources = sources;
+		this.maxDirectories = maxDirectories;
+		this.ignoreNanos = ignoreMillis * 1000000L;
+		this.service = sources[0].root.getFileSystem().newWatchService();
+	}
+
+	/** A watched directory */
+	static class Watched {
+		final int source;
+		final Path realDir;
+		final Path vdir;
+
+		Watched(int source, Path realDir, Path vdir) {
+			this.source = source;
+			this.realDir = realDir;
+			this.vdir = vdir;
+		}
+	}
+
+	/** Starts a background thread which registers the source directories and then processes events */
+	public void start() {
+		Thread thread = new Thread("MeldFs Source Watcher") {
+			@Override
+			public void run() {
+				try {
+					registerAll();
+					for (;;)
+						process(service.take());
+				}
+				catch (InterruptedException | ClosedWatchServiceException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/** Registers every directory of every source */
+	void registerAll() {
+		for (int i = 0; i < sources.length; i++)
+			registerTree(i, sources[i].root);
+	}
+
+	/** Registers <code>realDir</code> on source <code>source</code> and every directory beneath it */
+	void registerTree(final int source, final Path realDir) {
+		final Path root = sources[source].root;
+		try {
+			Files.walkFileTree(realDir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					Path vdir = root.relativize(dir);
+					if (meldfs.isHidden(meldfs.parentOf(vdir), dir.getFileName().toString()))
+						return FileVisitResult.SKIP_SUBTREE;
+					if (!register(source, dir, vdir))
+						return FileVisitResult.TERMINATE;
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					// probably removed while walking, which will be reported as an event
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException ioe) {
+			sources[source].handleReadException(ioe);
+		}
+	}
+
+	/**
+	 * Registers a single directory
+	 * @return false if the maximum number of directories are already registered
+	 */
+	private boolean register(int source, Path realDir, Path vdir) throws IOException {
+		if (keys.containsKey(realDir))
+			return true;
+		if (watched.size() >= maxDirectories) {
+			if (!warnedFull) {
+				System.err.println("Watching the maximum of " + maxDirectories + " source directories, changes in others will not be seen");
+				warnedFull = true;
+			}
+			return false;
+		}
+		WatchKey key = realDir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		watched.put(key, new Watched(source, realDir, vdir));
+		keys.put(realDir, key);
+		return true;
+	}
+
+	private void unregister(WatchKey key) {
+		key.cancel();
+		Watched w = watched.remove(key);
+		if (w != null)
+			keys.remove(w.realDir);
+	}
+
+	/** Records that <code>vpath</code> is being changed through meldfs, which drops what it knows about it itself */
+	public void changing(Path vpath) {
+		if (ignoreNanos <= 0)
+			return;
+		long now = System.nanoTime();
+		if (ownChanges.size() >= MAX_OWN_CHANGES) {
+			for (Iterator<Map.Entry<Path,Long>> i = ownChanges.entrySet().iterator(); i.hasNext(); )
+				if (now - i.next().getValue().longValue() >= 0)
+					i.remove();
+		}
+		ownChanges.put(vpath, now + ignoreNanos);
+	}
+
+	/** Returns true if <code>vpath</code> was changed through meldfs a moment ago */
+	private boolean isOwnChange(Path vpath) {
+		if (ownChanges.isEmpty())
+			return false;
+		Long until = ownChanges.get(vpath);
+		if (until == null)
+			return false;
+		if (System.nanoTime() - until.longValue() < 0)
+			return true;
+		ownChanges.remove(vpath, until);
+		return false;
+	}
+
+	/** Handles the events queued on <code>key</code> */
+	void process(WatchKey key) {
+		Watched w = watched.get(key);
+		HashSet<Path> modified = null;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+			if (kind == StandardWatchEventKinds.OVERFLOW) {
+				rescan();
+				return;
+			}
+			if (w == null)
+				continue;
+			Path name = (Path)event.context();
+			Path vpath = w.vdir.resolve(name);
+			Path realPath = w.realDir.resolve(name);
+			// the watches are kept up to date whoever made the change, but the caches only for changes made elsewhere
+			boolean own = isOwnChange(vpath);
+			if (own)
+				ignored++;
+			if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				if (own)
+					continue;
+				if (modified == null)
+					modified = new HashSet<Path>();
+				if (!modified.add(vpath)) {
+					coalesced++;
+					continue;
+				}
+				// if there are other copies, this one may now be the freshest
+				NamespaceIndex.Entry entry = meldfs.namespace.get(vpath);
+				if (entry != null && Long.bitCount(entry.sourceMask) > 1)
+					meldfs.invalidate(vpath);
+				else
+					meldfs.invalidateAttributes(vpath);
+			}
+			else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (Files.isDirectory(realPath, LinkOption.NOFOLLOW_LINKS)) {
+					// it may have been filled before it could be registered
+					registerTree(w.source, realPath);
+					if (!own)
+						meldfs.invalidateTree(vpath);
+				}
+				else if (!own) {
+					meldfs.invalidate(vpath);
+				}
+			}
+			else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				WatchKey childKey = keys.get(realPath);
+				if (childKey != null) {
+					// a directory, so everything that was in it is gone (or moved) too
+					unregister(childKey);
+					if (!own)
+						meldfs.invalidateTree(vpath);
+				}
+				else if (!own) {
+					meldfs.invalidate(vpath);
+				}
+			}
+		}
+		if (!key.reset())
+			unregister(key);
+	}
+
+	/** Recovers from lost events by clearing all caches and registering the directories again */
+	void rescan() {
+		System.err.println("Source watch events were lost, clearing caches");
+		for (WatchKey key : watched.keySet())
+			key.cancel();
+		watched.clear();
+		keys.clear();
+		warnedFull = false;
+		registerAll();
+		// anything cached before now may be out of date
+		meldfs.invalidateAll();
+	}
+}
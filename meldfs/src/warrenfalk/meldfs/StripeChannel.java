@@ -2,165 +2,786 @@ package warrenfalk.meldfs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import warrenfalk.reedsolomon.ReedSolomonCodingDomain;
 
 /**
  * Provides, currently, a single-channel read implementation on multi-channel striped source data.
  * Later we may need to genericize this function so that we can wrap either read, write, or read/write channels.
  * Although that will be significantly more complicated, as writes need some kind of process for checksum calculation (need entire stripes available before checksums can be calculated)
+ * <p>Each read is divided into the slices of the destination held by each data column, and the columns are read in
+ * parallel, the last of them on the calling thread.  When the columns are <code>FileChannel</code>s they are read
+ * with positional reads, so <code>read(dst, position)</code> can be called from any number of threads at once;
+ * otherwise the columns are read as streams and must be positioned (if they can be) before reading anywhere but
+ * where the last read left off.</p>
+ * <p>Data columns which are offline (not in <code>validMask</code>) are reconstructed on the fly: only the rows of
+ * the missing columns that a read needs are regenerated, from the same rows of enough surviving data and checksum
+ * columns, which are read in parallel.  The surviving data columns' part of the read is copied from their rows, so
+ * they are read only once.  This needs positional (file) columns.</p>
+ * <p>With hedging enabled (see {@link #hedge(int, long)}), a read that is still waiting on some data columns after a
+ * multiple of their usual latency also reconstructs those columns' part from the others, and uses whichever is ready
+ * first, so that one slow disk doesn't hold up every read.</p>
+ * <p>With streaming enabled (see {@link #stream(BufferPool, int)}), sequential reads are served by a
+ * {@link StripeStream} instead, whose column readers read ahead of the reader.</p>
  * @author warren
  *
  */
-public class StripeChannel implements ScatteringByteChannel {
+public class StripeChannel implements SeekableByteChannel, ScatteringByteChannel {
 	final long size;
 	final int dataCount;
 	final int blockSize;
-	final Column[] columns;
+	final ScatteringByteChannel[] columns;
+	final boolean[] online;
 	final long validMask;
 	final ExecutorService threadPool;
-	final AtomicInteger readOpsIncomplete = new AtomicInteger();
+	/** true if the columns are read with positional reads */
+	final boolean positional;
+	/** the coder which reconstructs offline data columns, or null if none are offline (or too many are) */
+	final ReedSolomonCodingDomain.Coder coder;
+	/** the columns read to reconstruct offline data columns: the first <code>dataCount</code> online columns */
+	final int[] survivors;
+	/** reusable buffers for reconstruction, one per column */
+	final ConcurrentLinkedQueue<ByteBuffer[]> scratch = new ConcurrentLinkedQueue<ByteBuffer[]>();
+	final static ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+	/** the number of online checksum columns */
+	final int spares;
+	/** the recent latency of reads of each column in nanoseconds, as a moving average */
+	final AtomicLongArray latencies;
+	/** reusable buffers which hedged reads read columns into, before knowing if they will be needed */
+	final ConcurrentLinkedQueue<ByteBuffer> columnBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	/** how many times the usual column latency a read waits before hedging, or 0 to never hedge */
+	volatile int hedgeFactor;
+	/** the least time a read waits before hedging, in nanoseconds */
+	volatile long hedgeMinNanos;
+	/** the streaming reader for sequential reads, or null if not streaming */
+	volatile StripeStream stream;
 	long position;
-	final Semaphore readOpsComplete = new Semaphore(0);
 
 	public StripeChannel(ExecutorService threadPool, long size, int dataCount, int blockSize, ScatteringByteChannel[] columns, long validMask) {
+		this(threadPool, size, dataCount, blockSize, columns, validMask, null);
+	}
+
+	/**
+	 * @param threadPool
+	 * @param size the size of the striped data
+	 * @param dataCount the number of data columns (the rest of <code>columns</code> are checksum columns)
+	 * @param blockSize
+	 * @param columns
+	 * @param validMask which columns are online
+	 * @param coder the coder for <code>validMask</code>, or null to create one if it is needed
+	 */
+	public StripeChannel(ExecutorService threadPool, long size, int dataCount, int blockSize, ScatteringByteChannel[] columns, long validMask, ReedSolomonCodingDomain.Coder coder) {
 		this.size = size;
-		this.columns = new Column[columns.length];
-		for (int i = 0; i < columns.length; i++)
-			this.columns[i] = new Column(i, 0 != (validMask & (1 << i)), columns[i]);
+		this.columns = columns;
+		this.online = new boolean[columns.length];
+		boolean positional = true;
+		boolean degraded = false;
+		long onlineMask = 0;
+		int[] survivors = new int[dataCount];
+		int survivorCount = 0;
+		int spares = 0;
+		for (int i = 0; i < columns.length; i++) {
+			online[i] = 0 != (validMask & (1L << i)) && columns[i] != null;
+			if (online[i]) {
+				onlineMask |= 1L << i;
+				if (i >= dataCount)
+					spares++;
+				if (survivorCount < dataCount)
+					survivors[survivorCount++] = i;
+				if (!(columns[i] instanceof FileChannel))
+					positional = false;
+			}
+			else if (i < dataCount) {
+				degraded = true;
+			}
+		}
+		this.positional = positional;
+		this.spares = spares;
+		this.latencies = new AtomicLongArray(columns.length);
 		this.validMask = validMask;
 		this.dataCount = dataCount;
 		this.threadPool = threadPool;
 		this.blockSize = blockSize;
+		if (degraded && survivorCount == dataCount) {
+			this.survivors = survivors;
+			this.coder = (coder != null) ? coder : ReedSolomonCodingDomain.getShared(dataCount, columns.length - dataCount).createCoder(onlineMask);
+		}
+		else {
+			this.survivors = null;
+			this.coder = null;
+		}
+	}
+
+	/**
+	 * Enables hedged reads: when a read has waited on some data columns for <code>factor</code> times the median
+	 * recent latency of the data columns (and at least <code>minDelayMillis</code>), their part of the read is also
+	 * reconstructed from the other columns, and whichever is ready first is used.
+	 * <p>This only applies to positional columns with no data columns offline, and needs online checksum columns.
+	 * Reads then copy the data once more, since a column read which loses must not write to the destination.</p>
+	 * @param factor the multiple of the usual latency to wait, or 0 to disable hedging
+	 * @param minDelayMillis
+	 * @return this channel
+	 */
+	public StripeChannel hedge(int factor, long minDelayMillis) {
+		this.hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+		this.hedgeFactor = factor;
+		return this;
+	}
+
+	/**
+	 * Enables streaming: sequential reads are served from rings of buffers which a thread per data column reads ahead
+	 * into (see {@link StripeStream}).  This only applies to positional columns with no data columns offline.
+	 * @param pool the buffers for the rings
+	 * @param ringSize the most buffers each column reads ahead into
+	 * @return this channel
+	 */
+	public StripeChannel stream(BufferPool pool, int ringSize) {
+		return stream(pool, ringSize, Executors.defaultThreadFactory(), null);
+	}
+
+	/**
+	 * Enables streaming, with the column readers' threads from <code>threadFactory</code>, and only while a permit
+	 * can be taken from <code>streams</code>
+	 * @param pool the buffers for the rings
+	 * @param ringSize the most buffers each column reads ahead into
+	 * @param threadFactory creates the column reader threads
+	 * @param streams the permits for running streams, shared with other channels, or null not to limit them
+	 * @return this channel
+	 */
+	public StripeChannel stream(BufferPool pool, int ringSize, ThreadFactory threadFactory, Semaphore streams) {
+		if (positional) {
+			for (int i = 0; i < dataCount; i++)
+				if (!online[i])
+					return this;
+			stream = new StripeStream(this, pool, ringSize, threadFactory, streams);
+		}
+		return this;
+	}
+
+	/**
+	 * Reads into <code>dst</code> from <code>position</code> in the striped data, without changing the position of this channel.
+	 * <p>This reads until <code>dst</code> is full or the end of the data is reached.</p>
+	 * @param dst
+	 * @param position
+	 * @return the number of bytes read, or -1 if <code>position</code> is at or beyond the end
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (positional) {
+			StripeStream stream = this.stream;
+			return (stream != null) ? stream.read(dst, position) : transfer(dst, position);
+		}
+		synchronized (this) {
+			long current = this.position;
+			position(position);
+			int read = read(dst);
+			position(current);
+			return read;
+		}
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		StripeStream stream = this.stream;
+		int read = (stream != null) ? stream.read(dst, position) : transfer(dst, position);
+		if (read > 0)
+			position += read;
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		synchronized (this) {
+			for (int i = offset; i < offset + length; i++) {
+				if (!dsts[i].hasRemaining())
+					continue;
+				int read = read(dsts[i]);
+				if (read < 0)
+					return total == 0 ? -1 : total;
+				total += read;
+				if (dsts[i].hasRemaining())
+					break;
+			}
+		}
+		return total;
 	}
 
 	@Override
-	public int read(ByteBuffer dst) throws IOException {
-		if (position == size)
+	public long read(ByteBuffer[] dsts) throws IOException {
+		return read(dsts, 0, dsts.length);
+	}
+
+	/**
+	 * Reads into <code>dst</code> from <code>position</code>, fanning the read out to the data columns.
+	 * When the columns are streams, they must already be at <code>position</code>.
+	 */
+	int transfer(ByteBuffer dst, long position) throws IOException {
+		if (position >= size)
 			return -1;
-		long all = Math.min(dst.remaining(), size - position);
-		long remain = all;
-		// divide the buffer among the columns until we run out of buffer or...
-		int columnStart = columns.length;
-		int columnEnd = -1;
-		while (remain > 0) {
-			int columnIndex = (int)((position / blockSize) % dataCount);
-			if (columnIndex < columnStart)
-				columnStart = columnIndex;
-			if (columnIndex >= columnEnd)
-				columnEnd = columnIndex + 1;
+		int length = (int)Math.min(dst.remaining(), size - position);
+		if (length == 0)
+			return 0;
+		StripeRead read = new StripeRead(length);
+		int start = dst.position();
+		for (int done = 0; done < length; ) {
+			long block = position / blockSize;
+			int column = (int)(block % dataCount);
 			int blockPos = (int)(position % blockSize);
-			int blockRemain = blockSize - blockPos;
-			int blockRead = (int)Math.min(remain, blockRemain);
-			// ... we run out of column buffer capacity
-			if (columns[columnIndex].takeBiteOf(dst, blockRead))
-				break;
-			dst.position(dst.position() + blockRead);
-			remain -= blockRead;
-			position += blockRead;
+			int bite = Math.min(length - done, blockSize - blockPos);
+			ByteBuffer slice = dst.duplicate();
+			slice.limit(start + done + bite);
+			slice.position(start + done);
+			read.add(column, slice.slice(), (block / dataCount) * blockSize + blockPos);
+			done += bite;
+			position += bite;
 		}
-		readOpsIncomplete.set(columnEnd - columnStart);
-		if (readOpsIncomplete.intValue() > 0) {
-			for (int columnIndex = columnStart; columnIndex < columnEnd; columnIndex++) {
-				columns[columnIndex].start();
+		read.execute();
+		dst.position(start + length);
+		return length;
+	}
+
+	/**
+	 * Moves to <code>newPosition</code> in the striped data.
+	 * <p>When the columns are streams, this also positions each data column at the first byte it holds from there on,
+	 * which requires them to be seekable</p>
+	 * @param newPosition
+	 * @return this channel
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized StripeChannel position(long newPosition) throws IOException {
+		if (!positional && newPosition != position) {
+			long stripe = newPosition / ((long)blockSize * dataCount);
+			int block = (int)((newPosition / blockSize) % dataCount);
+			long offset = stripe * blockSize;
+			for (int i = 0; i < dataCount; i++) {
+				long columnPosition = offset;
+				if (i < block)
+					columnPosition += blockSize;
+				else if (i == block)
+					columnPosition += newPosition % blockSize;
+				((SeekableByteChannel)columns[i]).position(columnPosition);
 			}
-			readOpsComplete.acquireUninterruptibly();
 		}
-		return (int)(all - remain);
+		position = newPosition;
+		return this;
+	}
+
+	/** Gets the position in the striped data */
+	@Override
+	public synchronized long position() {
+		return position;
+	}
+
+	/** Gets the size of the striped data */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
 	}
 
 	@Override
 	public boolean isOpen() {
 		for (int i = 0; i < columns.length; i++)
-			if (!columns[i].online && columns[i].channel.isOpen())
+			if (online[i] && !columns[i].isOpen())
 				return false;
 		return true;
 	}
 
 	@Override
 	public void close() throws IOException {
+		StripeStream stream = this.stream;
+		if (stream != null)
+			stream.close();
 		for (int i = 0; i < columns.length; i++)
-			if (columns[i].online)
-				columns[i].channel.close();
+			if (online[i])
+				columns[i].close();
 	}
 
-	@Override
-	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-		// TODO Auto-generated method stub
-		return 0;
-	}
+	/** One read of the striped data: the slices of the destination to be filled from each data column */
+	private class StripeRead {
+		final ByteBuffer[][] slices = new ByteBuffer[dataCount][];
+		final int[] counts = new int[dataCount];
+		/** the offset within each column of its first slice (the rest follow contiguously) */
+		final long[] offsets = new long[dataCount];
+		/** the most slices any one column can get */
+		final int capacity;
+		/** the offline columns which have slices, which are reconstructed */
+		long missingMask;
+		/** the range of rows (i.e. offsets within the columns) to reconstruct */
+		long missingStart = Long.MAX_VALUE, missingEnd;
+		/** true if slow columns may be reconstructed, in which case columns are read into their own buffers first */
+		boolean hedged;
+		/** the columns whose slices have been filled (or failed), by the column read or by a hedge */
+		final AtomicLong claimed = new AtomicLong();
+		final AtomicInteger incomplete = new AtomicInteger();
+		final Semaphore complete = new Semaphore(0);
+		volatile IOException exception;
 
-	@Override
-	public long read(ByteBuffer[] dsts) throws IOException {
-		// TODO Auto-generated method stub
-		return 0;
-	}
-	
-	private class Column {
-		final int index;
-		final ScatteringByteChannel channel;
-		long remaining;
-		ByteBuffer[] buffers;
-		int bufferCount;
-		boolean online;
-		Runnable readOp;
-		Exception exception;
-
-		public Column(int index, boolean online, ScatteringByteChannel channel) {
-			this.online = online;
-			this.index = index;
-			this.channel = channel;
-			if (online)
-				buffers = new ByteBuffer[16];
-		}
-
-		public void start() {
-			if (readOp == null)
-				readOp = new ReadOperation();
-			exception = null;
-			threadPool.execute(readOp);
+		StripeRead(int length) {
+			capacity = (int)(length / ((long)blockSize * dataCount)) + 2;
+		}
+
+		void add(int column, ByteBuffer slice, long offset) throws IOException {
+			if (counts[column] == 0) {
+				if (!online[column]) {
+					if (coder == null || !positional)
+						throw new IOException("Column " + column + " is offline and can't be reconstructed");
+					missingMask |= 1L << column;
+					missingStart = Math.min(missingStart, offset);
+				}
+				slices[column] = new ByteBuffer[capacity];
+				offsets[column] = offset;
+			}
+			slices[column][counts[column]++] = slice;
+			if (!online[column])
+				missingEnd = Math.max(missingEnd, offset + slice.remaining());
+		}
+
+		/** Reads all the columns in parallel, returning once they are complete */
+		void execute() throws IOException {
+			hedged = hedgeFactor > 0 && spares > 0 && positional && coder == null;
+			if (hedged) {
+				executeHedged();
+				return;
+			}
+			int pending = 0;
+			Reconstruction reconstruction = null;
+			if (missingMask != 0) {
+				// the rows cover the whole read, since the online data columns are survivors, read once into their rows
+				long start = missingStart, end = missingEnd;
+				for (int column = 0; column < dataCount; column++) {
+					if (counts[column] == 0)
+						continue;
+					start = Math.min(start, offsets[column]);
+					end = Math.max(end, offsets[column] + length(column));
+				}
+				// whole groups of 16 rows let the native coder use SSE
+				reconstruction = new Reconstruction(this, coder, missingMask, survivors, start, ((int)(end - start) + 15) & ~15, false);
+				pending = survivors.length;
+			}
+			else {
+				for (int column = 0; column < dataCount; column++)
+					if (counts[column] > 0)
+						pending++;
+			}
+			incomplete.set(pending);
+			try {
+				Runnable last = null;
+				for (int column = 0; reconstruction == null && column < dataCount; column++) {
+					if (counts[column] == 0)
+						continue;
+					if (last != null)
+						threadPool.execute(last);
+					last = new ColumnRead(this, column);
+				}
+				if (reconstruction != null) {
+					for (int survivor : survivors) {
+						if (last != null)
+							threadPool.execute(last);
+						last = new RowRead(reconstruction, survivor);
+					}
+				}
+				last.run();
+				complete.acquireUninterruptibly();
+				if (exception != null)
+					throw exception;
+				if (reconstruction != null)
+					reconstruction.reconstruct();
+			}
+			finally {
+				if (reconstruction != null)
+					scratch.offer(reconstruction.rows);
+			}
 		}
 
 		/**
-		 * Takes a slice of <code>size</code> size out of the buffer <code>buffer</code> returning true if there is no more buffer list room.
+		 * Reads all the columns in parallel on the pool, and if some are late, reconstructs them from the others as well,
+		 * returning once every column has been filled by one or the other
 		 */
-		public boolean takeBiteOf(ByteBuffer buffer, int size) {
-			if (bufferCount == buffers.length)
-				return true;
-			remaining += size;
-			int limit = buffer.limit();
-			buffer.limit(buffer.position() + size);
-			ByteBuffer slice = buffer.slice();
-			buffer.limit(limit);
-			buffers[bufferCount++] = slice;
-			return false;
-		}
-		
-		private class ReadOperation implements Runnable {
-			@Override
-			public void run() {
+		private void executeHedged() throws IOException {
+			int pending = 0;
+			for (int column = 0; column < dataCount; column++)
+				if (counts[column] > 0)
+					pending++;
+			incomplete.set(pending);
+			for (int column = 0; column < dataCount; column++)
+				if (counts[column] > 0)
+					threadPool.execute(new ColumnRead(this, column));
+			// if too many columns are late to reconstruct them, wait some more and try again
+			for (;;) {
 				try {
+					if (complete.tryAcquire(hedgeDelay(), TimeUnit.NANOSECONDS))
+						break;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					complete.acquireUninterruptibly();
+					break;
+				}
+				if (startHedge()) {
+					complete.acquireUninterruptibly();
+					break;
+				}
+			}
+			if (exception != null)
+				throw exception;
+		}
+
+		/**
+		 * Starts reconstructing the columns not yet filled from the other columns, if there are few enough of them
+		 * @return true if the late columns are being reconstructed (or there are none)
+		 */
+		private boolean startHedge() {
+			long filled = claimed.get();
+			long lateMask = 0;
+			int lateCount = 0;
+			long start = Long.MAX_VALUE, end = 0;
+			for (int column = 0; column < dataCount; column++) {
+				if (counts[column] == 0 || 0 != (filled & (1L << column)))
+					continue;
+				lateMask |= 1L << column;
+				lateCount++;
+				start = Math.min(start, offsets[column]);
+				end = Math.max(end, offsets[column] + length(column));
+			}
+			if (lateCount == 0)
+				return true;
+			if (lateCount > spares)
+				return false;
+			// reconstruct from the first data columns that aren't late (including those not in this read), then checksum columns
+			int[] using = new int[dataCount];
+			long usingMask = 0;
+			int count = 0;
+			for (int i = 0; i < columns.length && count < dataCount; i++) {
+				if (!online[i] || 0 != (lateMask & (1L << i)))
+					continue;
+				using[count++] = i;
+				usingMask |= 1L << i;
+			}
+			ReedSolomonCodingDomain.Coder hedgeCoder = ReedSolomonCodingDomain.getShared(dataCount, columns.length - dataCount).createCoder(usingMask);
+			Reconstruction reconstruction = new Reconstruction(this, hedgeCoder, lateMask, using, start, ((int)(end - start) + 15) & ~15, true);
+			for (int survivor : using)
+				threadPool.execute(new RowRead(reconstruction, survivor));
+			return true;
+		}
+
+		/** Gets the number of bytes still to be filled in the slices of <code>column</code> */
+		long length(int column) {
+			long length = 0;
+			for (int i = 0; i < counts[column]; i++)
+				length += slices[column][i].remaining();
+			return length;
+		}
+
+		/** Claims the filling of the slices of <code>column</code>, returning false if they have already been claimed */
+		boolean claim(int column) {
+			long bit = 1L << column;
+			for (;;) {
+				long current = claimed.get();
+				if (0 != (current & bit))
+					return false;
+				if (claimed.compareAndSet(current, current | bit))
+					return true;
+			}
+		}
+
+		/** Notes that a column or survivor has been read (or failed), releasing the reader once all have */
+		void completed() {
+			if (incomplete.decrementAndGet() == 0)
+				complete.release();
+		}
+	}
+
+	/**
+	 * Gets how long a hedged read waits for its columns before reconstructing the late ones: the median recent latency
+	 * of the data columns times the hedge factor, but at least the minimum delay
+	 */
+	long hedgeDelay() {
+		long[] recent = new long[dataCount];
+		for (int i = 0; i < dataCount; i++)
+			recent[i] = latencies.get(i);
+		Arrays.sort(recent);
+		return Math.max(hedgeMinNanos, recent[dataCount / 2] * hedgeFactor);
+	}
+
+	/** Adds the time a read of <code>column</code> took to its moving average */
+	private void recordLatency(int column, long nanos) {
+		long average = latencies.get(column);
+		latencies.set(column, average == 0 ? nanos : average + (nanos - average) / 8);
+	}
+
+	/** The rows of some data columns to regenerate for a read, from those of the survivor columns */
+	private class Reconstruction {
+		final StripeRead read;
+		final ReedSolomonCodingDomain.Coder coder;
+		final long missingMask;
+		final int[] survivors;
+		/** the offset in the columns of the first row */
+		final long start;
+		final ByteBuffer[] rows;
+		/**
+		 * true if this races the column reads, in which case it claims each column's slices before filling them, and
+		 * completes the read itself (otherwise each survivor counts toward the read, and the reader reconstructs)
+		 */
+		final boolean hedge;
+		final AtomicInteger incomplete;
+		volatile boolean failed;
+
+		Reconstruction(StripeRead read, ReedSolomonCodingDomain.Coder coder, long missingMask, int[] survivors, long start, int height, boolean hedge) {
+			this.read = read;
+			this.coder = coder;
+			this.missingMask = missingMask;
+			this.survivors = survivors;
+			this.start = start;
+			this.rows = takeScratch(height, missingMask, survivors);
+			this.hedge = hedge;
+			this.incomplete = new AtomicInteger(survivors.length);
+		}
+
+		/** Notes that the rows of a survivor have been read, or failed with <code>e</code> */
+		void survivorRead(IOException e) {
+			if (!hedge) {
+				if (e != null)
+					read.exception = e;
+				read.completed();
+				return;
+			}
+			if (e != null)
+				failed = true;
+			if (incomplete.decrementAndGet() != 0)
+				return;
+			// if the hedge failed, the column reads still fill the read
+			try {
+				if (!failed)
+					reconstruct();
+			}
+			finally {
+				scratch.offer(rows);
+			}
+		}
+
+		/** Regenerates the rows of the missing columns from those read from the survivors, and copies them to their slices */
+		void reconstruct() {
+			coder.calculate(rows, missingMask);
+			for (int column = 0; column < dataCount; column++) {
+				if (0 == (missingMask & (1L << column)))
+					continue;
+				if (hedge && !read.claim(column))
+					continue;
+				fill(column);
+				if (hedge)
+					read.completed();
+			}
+		}
+
+		/** Copies the rows of <code>column</code> to its slices */
+		void fill(int column) {
+			ByteBuffer src = rows[column].duplicate();
+			int offset = (int)(read.offsets[column] - start);
+			for (int i = 0; i < read.counts[column]; i++) {
+				ByteBuffer dst = read.slices[column][i];
+				src.limit(offset + dst.remaining());
+				src.position(offset);
+				offset += dst.remaining();
+				dst.put(src);
+			}
+		}
+	}
+
+	/**
+	 * Takes a set of buffers for reconstructing <code>height</code> rows of the columns in <code>missingMask</code>
+	 * from the <code>survivors</code>, with their limits set to <code>height</code> (except those of columns which
+	 * take no part, which are empty)
+	 */
+	private ByteBuffer[] takeScratch(int height, long missingMask, int[] survivors) {
+		ByteBuffer[] rows = scratch.poll();
+		if (rows == null)
+			rows = new ByteBuffer[columns.length];
+		for (int i = 0; i < rows.length; i++) {
+			boolean used = 0 != (missingMask & (1L << i));
+			for (int survivor : survivors)
+				used |= (i == survivor);
+			if (!used) {
+				rows[i] = EMPTY;
+				continue;
+			}
+			if (rows[i] == null || rows[i].capacity() < height)
+				rows[i] = ByteBuffer.allocateDirect(Math.max(height, blockSize));
+			rows[i].clear();
+			rows[i].limit(height);
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads the rows of a survivor column needed to reconstruct the missing columns for a read, and if it is a data
+	 * column of the read (and not hedging), fills its slices from them
+	 */
+	private class RowRead implements Runnable {
+		final Reconstruction reconstruction;
+		final int column;
+
+		RowRead(Reconstruction reconstruction, int column) {
+			this.reconstruction = reconstruction;
+			this.column = column;
+		}
+
+		@Override
+		public void run() {
+			IOException exception = null;
+			try {
+				FileChannel channel = (FileChannel)columns[column];
+				ByteBuffer buffer = reconstruction.rows[column].duplicate();
+				long offset = reconstruction.start;
+				long started = System.nanoTime();
+				while (buffer.hasRemaining()) {
+					int bytes = channel.read(buffer, offset);
+					if (bytes == -1)
+						break;
+					offset += bytes;
+				}
+				recordLatency(column, System.nanoTime() - started);
+				StripeRead read = reconstruction.read;
+				boolean filling = !reconstruction.hedge && column < dataCount && read.counts[column] > 0;
+				if (filling && offset < read.offsets[column] + read.length(column))
+					throw new IOException("Unexpected EOF in column " + column);
+				// the last stripe's columns are short, and count as zeros beyond their ends
+				while (buffer.hasRemaining())
+					buffer.put((byte)0);
+				if (filling)
+					reconstruction.fill(column);
+			}
+			catch (IOException e) {
+				exception = e;
+			}
+			finally {
+				reconstruction.survivorRead(exception);
+			}
+		}
+	}
+
+	/** Fills the slices of one column for a read */
+	private class ColumnRead implements Runnable {
+		final StripeRead read;
+		final int column;
+
+		ColumnRead(StripeRead read, int column) {
+			this.read = read;
+			this.column = column;
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer[] buffers = read.slices[column];
+			int count = read.counts[column];
+			long started = System.nanoTime();
+			try {
+				if (read.hedged) {
+					readHedged(buffers, count);
+					return;
+				}
+				if (positional) {
+					FileChannel channel = (FileChannel)columns[column];
+					long offset = read.offsets[column];
+					for (int i = 0; i < count; i++) {
+						while (buffers[i].hasRemaining()) {
+							int bytes = channel.read(buffers[i], offset);
+							if (bytes == -1)
+								throw new IOException("Unexpected EOF in column " + column);
+							offset += bytes;
+						}
+					}
+				}
+				else {
+					long remaining = 0;
+					for (int i = 0; i < count; i++)
+						remaining += buffers[i].remaining();
 					while (remaining > 0) {
-						long bytes = channel.read(buffers, 0, bufferCount);
+						long bytes = columns[column].read(buffers, 0, count);
 						if (bytes == -1)
-							throw new IOException("Unexpected EOF in column " + index);
+							throw new IOException("Unexpected EOF in column " + column);
 						remaining -= bytes;
 					}
 				}
-				catch (IOException e) {
-					exception = e;
+				recordLatency(column, System.nanoTime() - started);
+			}
+			catch (IOException e) {
+				read.exception = e;
+			}
+			finally {
+				// a hedged column read completes the read only if it is the one to fill the slices
+				if (!read.hedged)
+					read.completed();
+			}
+		}
+
+		/**
+		 * Reads the column into a buffer of its own, and then fills its slices from that, unless a hedge has filled them
+		 * first (in which case the destination may already be back in the hands of the reader)
+		 */
+		private void readHedged(ByteBuffer[] buffers, int count) {
+			int length = 0;
+			for (int i = 0; i < count; i++)
+				length += buffers[i].remaining();
+			ByteBuffer buffer = columnBuffers.poll();
+			if (buffer == null || buffer.capacity() < length)
+				buffer = ByteBuffer.allocateDirect(Math.max(length, blockSize));
+			try {
+				long started = System.nanoTime();
+				buffer.clear();
+				buffer.limit(length);
+				FileChannel channel = (FileChannel)columns[column];
+				long offset = read.offsets[column];
+				while (buffer.hasRemaining()) {
+					int bytes = channel.read(buffer, offset);
+					if (bytes == -1)
+						throw new IOException("Unexpected EOF in column " + column);
+					offset += bytes;
+				}
+				recordLatency(column, System.nanoTime() - started);
+				if (!read.claim(column))
+					return;
+				buffer.flip();
+				for (int i = 0; i < count; i++) {
+					buffer.limit(buffer.position() + buffers[i].remaining());
+					buffers[i].put(buffer);
 				}
-				finally {
-					for (int i = 0; i < bufferCount; i++)
-						buffers[i] = null;
-					bufferCount = 0;
-					remaining = 0;
-					if (readOpsIncomplete.decrementAndGet() == 0)
-						readOpsComplete.release();
+				read.completed();
+			}
+			catch (IOException e) {
+				if (read.claim(column)) {
+					read.exception = e;
+					read.completed();
 				}
 			}
+			finally {
+				columnBuffers.offer(buffer);
+			}
 		}
 	}
 
@@ -0,0 +1,336 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams sequential reads of striped data from long-lived column readers.
+ * <p>Once a few reads in a row have each started where the last one ended, every data column gets a reader thread of
+ * its own which reads the column ahead of the consumer into a ring of pooled buffers, and reads are assembled from the
+ * rings, without submitting any tasks or waiting on every column for each read.  The readers then stay, blocked when
+ * their rings are full, until the stream is closed; a sequential read anywhere else moves them there.  Other reads
+ * go straight to the channel.</p>
+ * <p>The rings' buffers are taken from the pool when the readers start and kept until the stream is closed.  If the
+ * pool can't provide at least one for every column, the stream isn't used.  The readers' threads come from the given
+ * factory, and a stream only starts while it can take a permit from the shared limit on running streams; until then,
+ * sequential reads go to the channel too.</p>
+ * @author warren
+ */
+public class StripeStream {
+	/** the number of consecutive sequential reads after which streaming starts */
+	final static int SEQUENTIAL_THRESHOLD = 2;
+
+	final StripeChannel channel;
+	final BufferPool pool;
+	final int ringSize;
+	final ThreadFactory threadFactory;
+	/** the permits for running streams, shared by all streams, or null if they aren't limited */
+	final Semaphore streams;
+	final ColumnReader[] readers;
+	/** where the readers will deliver next, or -1 if they haven't been positioned */
+	long position = -1;
+	/** where the reader will be if it is reading sequentially */
+	long expected = -1;
+	int sequentialReads;
+	boolean started;
+	/** true if the stream can't be used, because the pool was exhausted or it was closed */
+	boolean unusable;
+
+	/**
+	 * @param channel the striped data, whose data columns must all be online <code>FileChannel</code>s
+	 * @param pool the buffers for the rings
+	 * @param ringSize the most buffers each column reads ahead into
+	 * @param threadFactory creates the column reader threads
+	 * @param streams the permits for running streams, or null not to limit them
+	 */
+	public StripeStream(StripeChannel channel, BufferPool pool, int ringSize, ThreadFactory threadFactory, Semaphore streams) {
+		this.channel = channel;
+		this.pool = pool;
+		this.ringSize = Math.max(1, ringSize);
+		this.threadFactory = threadFactory;
+		this.streams = streams;
+		this.readers = new ColumnReader[channel.dataCount];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = new ColumnReader(i);
+	}
+
+	/** A buffer of a column's ring, and the part of the column read into it */
+	static class Chunk {
+		final ByteBuffer buffer;
+		/** the restart of the reader when it was read; it is stale if the reader has been restarted since */
+		int generation;
+		IOException error;
+
+		Chunk(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/** Reads one data column ahead of the consumer */
+	final class ColumnReader implements Runnable {
+		final int column;
+		final FileChannel file;
+		final long length;
+		/** chunks waiting to be read into */
+		final ArrayBlockingQueue<Chunk> empty;
+		/** chunks read and waiting for the consumer */
+		final ArrayBlockingQueue<Chunk> full;
+		/** the chunk being consumed */
+		Chunk current;
+		/** changes each time the reader is moved; guarded by this */
+		int generation;
+		/** the offset in the column of the next chunk to read; guarded by this */
+		long next;
+		boolean closed;
+		Thread thread;
+
+		ColumnReader(int column) {
+			this.column = column;
+			this.file = (FileChannel)channel.columns[column];
+			this.length = columnLength(column);
+			this.empty = new ArrayBlockingQueue<Chunk>(ringSize);
+			this.full = new ArrayBlockingQueue<Chunk>(ringSize);
+		}
+
+		@Override
+		public void run() {
+			Chunk chunk = null;
+			try {
+				for (;;) {
+					chunk = empty.take();
+					long offset;
+					synchronized (this) {
+						// at the end of the column, wait to be moved
+						while (!closed && next >= length)
+							wait();
+						if (closed)
+							return;
+						chunk.generation = generation;
+						offset = next;
+						next = Math.min(length, next + chunk.buffer.capacity());
+					}
+					ByteBuffer buffer = chunk.buffer;
+					buffer.clear();
+					buffer.limit((int)Math.min(buffer.capacity(), length - offset));
+					chunk.error = null;
+					try {
+						while (buffer.hasRemaining()) {
+							int bytes = file.read(buffer, offset + buffer.position());
+							if (bytes == -1)
+								throw new IOException("Unexpected EOF in column " + column);
+						}
+					}
+					catch (IOException e) {
+						if (Thread.interrupted())
+							return;
+						chunk.error = e;
+					}
+					buffer.flip();
+					full.put(chunk);
+					chunk = null;
+				}
+			}
+			catch (InterruptedException e) {
+				// closed
+			}
+			finally {
+				// so that closing finds it to give back to the pool
+				if (chunk != null)
+					empty.offer(chunk);
+			}
+		}
+
+		/** Moves the reader to <code>offset</code> in the column, dropping whatever it has read */
+		void restart(long offset) {
+			// drop what has been read first, since anything read after the move is wanted
+			if (current != null)
+				empty.offer(current);
+			current = null;
+			for (Chunk chunk; null != (chunk = full.poll()); )
+				empty.offer(chunk);
+			synchronized (this) {
+				generation++;
+				next = offset;
+				notifyAll();
+			}
+		}
+
+		/** Copies the next <code>count</code> bytes of the column into <code>dst</code>, waiting for them if necessary */
+		void take(ByteBuffer dst, int count) throws IOException {
+			while (count > 0) {
+				if (current == null || !current.buffer.hasRemaining()) {
+					if (current != null)
+						empty.offer(current);
+					current = null;
+					Chunk chunk;
+					try {
+						chunk = full.take();
+					}
+					catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					if (chunk.generation != generation) {
+						// read before the last restart
+						empty.offer(chunk);
+						continue;
+					}
+					current = chunk;
+					if (chunk.error != null)
+						throw chunk.error;
+				}
+				ByteBuffer src = current.buffer;
+				int bytes = Math.min(count, src.remaining());
+				int limit = src.limit();
+				src.limit(src.position() + bytes);
+				dst.put(src);
+				src.limit(limit);
+				count -= bytes;
+			}
+		}
+	}
+
+	/** Gets the length of data column <code>column</code> */
+	private long columnLength(int column) {
+		long stripeBytes = (long)channel.blockSize * channel.dataCount;
+		long tail = channel.size % stripeBytes - (long)column * channel.blockSize;
+		return (channel.size / stripeBytes) * channel.blockSize + Math.max(0, Math.min(channel.blockSize, tail));
+	}
+
+	/**
+	 * Reads into <code>dst</code> from <code>position</code>, from the rings if the reads have been sequential
+	 * @param dst
+	 * @param position
+	 * @return the number of bytes read, or -1 if <code>position</code> is at or beyond the end
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= channel.size)
+			return -1;
+		synchronized (this) {
+			if (position == expected)
+				sequentialReads++;
+			else
+				sequentialReads = 0;
+			expected = position + Math.min(dst.remaining(), channel.size - position);
+			if (sequentialReads >= SEQUENTIAL_THRESHOLD && !unusable && (started || start()))
+				return stream(dst, position);
+		}
+		return channel.transfer(dst, position);
+	}
+
+	/** Fills <code>dst</code> from the rings, moving the readers first if they aren't at <code>position</code> */
+	private int stream(ByteBuffer dst, long position) throws IOException {
+		if (position != this.position)
+			restart(position);
+		int blockSize = channel.blockSize, dataCount = channel.dataCount;
+		int length = (int)Math.min(dst.remaining(), channel.size - position);
+		int start = dst.position();
+		// claim the whole read up front, so if it fails part way, the readers are moved before the next
+		this.position = -1;
+		for (long at = position; at < position + length; ) {
+			int column = (int)((at / blockSize) % dataCount);
+			int bite = (int)Math.min(position + length - at, blockSize - at % blockSize);
+			readers[column].take(dst, bite);
+			at += bite;
+		}
+		dst.position(start + length);
+		this.position = position + length;
+		return length;
+	}
+
+	/** Moves every reader to where its column holds the data at <code>position</code> */
+	private void restart(long position) {
+		int blockSize = channel.blockSize, dataCount = channel.dataCount;
+		long stripe = position / ((long)blockSize * dataCount);
+		int block = (int)((position / blockSize) % dataCount);
+		for (int i = 0; i < dataCount; i++) {
+			long offset = stripe * blockSize;
+			if (i < block)
+				offset += blockSize;
+			else if (i == block)
+				offset += position % blockSize;
+			readers[i].restart(offset);
+		}
+		this.position = position;
+	}
+
+	/**
+	 * Fills the rings from the pool and starts the readers, returning false if the pool couldn't spare enough, or if
+	 * too many streams are running (in which case it is tried again on a later read)
+	 */
+	private boolean start() {
+		if (streams != null && !streams.tryAcquire())
+			return false;
+		for (ColumnReader reader : readers) {
+			for (int i = 0; i < ringSize; i++) {
+				ByteBuffer buffer = pool.acquire();
+				if (buffer == null)
+					break;
+				reader.empty.offer(new Chunk(buffer));
+			}
+			if (reader.empty.isEmpty()) {
+				releaseAll();
+				if (streams != null)
+					streams.release();
+				unusable = true;
+				return false;
+			}
+		}
+		for (ColumnReader reader : readers) {
+			// nothing to read until the first restart
+			reader.next = reader.length;
+			reader.thread = threadFactory.newThread(reader);
+			reader.thread.setName("stripe-reader-" + reader.column);
+			reader.thread.setDaemon(true);
+			reader.thread.start();
+		}
+		started = true;
+		return true;
+	}
+
+	private void releaseAll() {
+		for (ColumnReader reader : readers) {
+			for (Chunk chunk; null != (chunk = reader.empty.poll()); )
+				pool.release(chunk.buffer);
+			for (Chunk chunk; null != (chunk = reader.full.poll()); )
+				pool.release(chunk.buffer);
+			if (reader.current != null)
+				pool.release(reader.current.buffer);
+			reader.current = null;
+		}
+	}
+
+	/** Stops the readers and returns their buffers to the pool */
+	public synchronized void close() {
+		unusable = true;
+		if (!started)
+			return;
+		started = false;
+		boolean interrupted = false;
+		for (ColumnReader reader : readers) {
+			synchronized (reader) {
+				reader.closed = true;
+				reader.notifyAll();
+			}
+			reader.thread.interrupt();
+		}
+		for (ColumnReader reader : readers) {
+			try {
+				reader.thread.join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		releaseAll();
+		if (streams != null)
+			streams.release();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,236 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files which have been striped, i.e. replaced by column files in the <code>.stripe</code> region of the sources.
+ * <p>Column <i>c</i> of striped file <code>vdir/name</code> is stored on some source as
+ * <code>.stripe/vdir/name_[R<i>blockSize</i>,<i>size</i>,<i>c</i>,<i>dataCount</i>,<i>checksumCount</i>)</code>,
+ * with the numbers in hex, so everything needed to read the file back is in the column names.</p>
+ * <p>The striped files of a directory are found by listing its copy in the stripe region of every source.  The
+ * listing is kept, and is read again only when the modification time of one of those copies has changed, and that
+ * is checked at most once per time to live.</p>
+ * @author warren
+ */
+public class StripedFiles {
+	/** the directory at the root of each source holding the stripe region */
+	public final static String DIRECTORY = ".stripe";
+	/** appended to the name of a column while it is being renamed, which keeps it from being listed */
+	public final static String STAGING_SUFFIX = ".renaming";
+	final static Pattern COLUMN_NAME = Pattern.compile("(.+)_\\[R([0-9a-f]+),([0-9a-f]+),([0-9a-f]+),([0-9a-f]+),([0-9a-f]+)\\)");
+
+	final SourceFs[] sources;
+	final Path rootPath;
+	final int maxDirectories;
+	final long ttlNanos;
+	final ConcurrentHashMap<Path,Listing> listings = new ConcurrentHashMap<Path,Listing>();
+
+	/**
+	 * @param sources
+	 * @param rootPath the virtual path of the root directory
+	 * @param maxDirectories the number of directory listings to keep
+	 * @param ttlMillis how long a listing is used before the stripe directories are checked for changes
+	 */
+	public StripedFiles(SourceFs[] sources, Path rootPath, int maxDirectories, long ttlMillis) {
+		this.sources = sources;
+		this.rootPath = rootPath;
+		this.maxDirectories = maxDirectories;
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	/** A striped file, as described by the names of its columns */
+	public static class Striped {
+		final long size;
+		final int blockSize;
+		final int dataCount;
+		final int checksumCount;
+		/** the real path of each column, or null where the column is missing */
+		final Path[] columns;
+		/** the index of the source holding each column, or -1 where the column is missing */
+		final int[] columnSources;
+
+		Striped(long size, int blockSize, int dataCount, int checksumCount) {
+			this.size = size;
+			this.blockSize = blockSize;
+			this.dataCount = dataCount;
+			this.checksumCount = checksumCount;
+			this.columns = new Path[dataCount + checksumCount];
+			this.columnSources = new int[columns.length];
+			Arrays.fill(columnSources, -1);
+		}
+
+		/** Gets the size of the original file */
+		public long getSize() {
+			return size;
+		}
+
+		/** Returns the index of the first column found (data columns first), or -1 if none were */
+		public int getAnyColumn() {
+			for (int i = 0; i < columns.length; i++)
+				if (columns[i] != null)
+					return i;
+			return -1;
+		}
+
+		/** Returns true if every data column is present, so the file can be read without reconstruction */
+		public boolean isComplete() {
+			for (int i = 0; i < dataCount; i++)
+				if (columns[i] == null)
+					return false;
+			return true;
+		}
+
+		boolean matches(long size, int blockSize, int dataCount, int checksumCount) {
+			return this.size == size && this.blockSize == blockSize && this.dataCount == dataCount && this.checksumCount == checksumCount;
+		}
+	}
+
+	/** The striped files of one directory */
+	static class Listing {
+		/** the modification time of the directory's copy in the stripe region of each source */
+		final long[] modTimes;
+		final Map<String,Striped> files;
+		final long checked;
+
+		Listing(long[] modTimes, Map<String,Striped> files, long checked) {
+			this.modTimes = modTimes;
+			this.files = files;
+			this.checked = checked;
+		}
+	}
+
+	/** Gets the striped file at <code>vpath</code>, or null if there is none */
+	public Striped get(Path vpath) {
+		Path name = vpath.getFileName();
+		if (name == null)
+			return null;
+		return listing(parentOf(vpath)).files.get(name.toString());
+	}
+
+	/** Gets the names of the striped files in directory <code>vdir</code> */
+	public Set<String> names(Path vdir) {
+		return listing(vdir).files.keySet();
+	}
+
+	/** Drops the listing of the directory containing <code>vpath</code> so that it is read again */
+	public void invalidate(Path vpath) {
+		listings.remove(parentOf(vpath));
+	}
+
+	/** Drops the listings of directory <code>vdir</code>, of every directory beneath it, and of the directory containing it */
+	public void invalidateTree(Path vdir) {
+		invalidate(vdir);
+		for (Iterator<Path> i = listings.keySet().iterator(); i.hasNext(); )
+			if (i.next().startsWith(vdir))
+				i.remove();
+	}
+
+	/** Drops all listings */
+	public void clear() {
+		listings.clear();
+	}
+
+	/** Parses the name of a column file, returning the original name, or null if it isn't one */
+	static String parse(String columnName, long[] fields) {
+		Matcher m = COLUMN_NAME.matcher(columnName);
+		if (!m.matches())
+			return null;
+		try {
+			for (int i = 0; i < fields.length; i++)
+				fields[i] = Long.parseLong(m.group(i + 2), 16);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return m.group(1);
+	}
+
+	private Listing listing(Path vdir) {
+		long now = System.nanoTime();
+		Listing listing = listings.get(vdir);
+		if (listing != null && now - listing.checked < ttlNanos)
+			return listing;
+		long[] modTimes = new long[sources.length];
+		for (int i = 0; i < sources.length; i++)
+			modTimes[i] = modTime(stripeDir(i, vdir));
+		if (listing != null && Arrays.equals(modTimes, listing.modTimes))
+			listing = new Listing(modTimes, listing.files, now);
+		else
+			listing = new Listing(modTimes, scan(vdir, modTimes), now);
+		if (listings.size() >= maxDirectories)
+			listings.clear();
+		listings.put(vdir, listing);
+		return listing;
+	}
+
+	private Path parentOf(Path vpath) {
+		Path parent = vpath.getParent();
+		return parent == null ? rootPath : parent;
+	}
+
+	private Path stripeDir(int index, Path vdir) {
+		return sources[index].root.resolve(DIRECTORY).resolve(vdir);
+	}
+
+	private static long modTime(Path dir) {
+		try {
+			return Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+		}
+		catch (IOException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	private Map<String,Striped> scan(Path vdir, long[] modTimes) {
+		HashMap<String,Striped> files = new HashMap<String,Striped>();
+		long[] fields = new long[5];
+		for (int i = 0; i < sources.length; i++) {
+			if (modTimes[i] == Long.MIN_VALUE)
+				continue;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(stripeDir(i, vdir))) {
+				for (Path column : stream) {
+					String name = parse(column.getFileName().toString(), fields);
+					if (name == null)
+						continue;
+					// at most 64 columns, since columns are tracked in a bit mask
+					if (fields[0] == 0 || fields[0] > Integer.MAX_VALUE || fields[3] == 0 || fields[3] > 64 || fields[4] > 64 || fields[3] + fields[4] > 64 || fields[2] >= fields[3] + fields[4])
+						continue;
+					long size = fields[1];
+					int blockSize = (int)fields[0], index = (int)fields[2], dataCount = (int)fields[3], checksumCount = (int)fields[4];
+					Striped striped = files.get(name);
+					if (striped == null)
+						files.put(name, striped = new Striped(size, blockSize, dataCount, checksumCount));
+					else if (!striped.matches(size, blockSize, dataCount, checksumCount))
+						continue;
+					striped.columns[index] = column;
+					striped.columnSources[index] = i;
+				}
+			}
+			catch (NoSuchFileException e) {
+				// removed since its modification time was read
+			}
+			catch (IOException e) {
+				sources[i].handleReadException(e);
+			}
+			catch (DirectoryIteratorException e) {
+				sources[i].handleReadException(e.getCause());
+			}
+		}
+		return files.isEmpty() ? Collections.<String,Striped>emptyMap() : files;
+	}
+}
@@ -0,0 +1,60 @@
+package warrenfalk.meldfs;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads on runtimes which have them (Java 21+).
+ * <p>This is done reflectively so that the project still builds for, and runs on, older runtimes.</p>
+ * @author warren
+ */
+final class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Returns true if the running JVM supports virtual threads.
+	 * <p>This creates (but doesn't start) a virtual thread and an executor, since on runtimes where they are a preview
+	 * feature the methods exist but throw unless previews are enabled.</p>
+	 */
+	static boolean isSupported() {
+		try {
+			newThreadFactory().newThread(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+			newExecutor().shutdown();
+			return true;
+		}
+		catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/** Creates an executor that starts a new virtual thread for each task */
+	static ExecutorService newExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		}
+		catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+
+	/** Creates a thread factory for virtual threads */
+	static ThreadFactory newThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+		}
+	}
+}
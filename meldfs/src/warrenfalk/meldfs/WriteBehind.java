@@ -0,0 +1,136 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A write-behind buffer for one open file, coalescing small contiguous writes into large aligned ones.
+ * <p>Writes are copied into a pooled buffer until it is full, a write lands anywhere but just after the buffered data,
+ * or the file is read, truncated, synced or closed; then the buffer is written out in one go.  The first buffer of a
+ * run ends on a buffer-size boundary of the file so that the rest line up with it.  Buffers which sit too long are
+ * flushed in the background by the <code>WriteBehindPool</code>.  Writes as big as a buffer, and writes made when the
+ * pool's dirty-memory cap has been reached, go straight to the file.</p>
+ * <p>An error writing out the buffer in the background is reported by the next call on this file, which at the
+ * latest is the flush when it is closed.</p>
+ * @author warren
+ */
+public class WriteBehind {
+	final FileChannel channel;
+	final WriteBehindPool pool;
+	/** the virtual path the file is known by, which follows renames; changed by the pool */
+	volatile Path vpath;
+	final int bufferSize;
+	/** the buffered data, or null if nothing is buffered */
+	ByteBuffer buffer;
+	/** the position in the file of the start of the buffer */
+	long start;
+	/** when the buffer was first written to, in nanoseconds */
+	long dirtySince;
+	IOException error;
+
+	public WriteBehind(FileChannel channel, WriteBehindPool pool, Path vpath) {
+		this.channel = channel;
+		this.pool = pool;
+		this.vpath = vpath;
+		this.bufferSize = pool.getBufferSize();
+		pool.opened(this);
+	}
+
+	/**
+	 * Writes all of <code>src</code> at <code>position</code>, buffering it if possible
+	 * @return the number of bytes written
+	 */
+	public synchronized int write(ByteBuffer src, long position) throws IOException {
+		checkError();
+		int total = src.remaining();
+		if (buffer != null && position != start + buffer.position())
+			flush();
+		if (buffer == null && total >= bufferSize)
+			return writeFully(src, position);
+		while (src.hasRemaining()) {
+			if (buffer == null) {
+				buffer = pool.acquire();
+				if (buffer == null)
+					return (total - src.remaining()) + writeFully(src, position);
+				start = position;
+				// end the first buffer on a boundary so that the ones after it are aligned
+				buffer.limit(bufferSize - (int)(position % bufferSize));
+				dirtySince = System.nanoTime();
+				pool.dirty(this);
+			}
+			int count = Math.min(src.remaining(), buffer.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + count);
+			buffer.put(part);
+			src.position(src.position() + count);
+			position += count;
+			if (!buffer.hasRemaining())
+				flush();
+		}
+		return total;
+	}
+
+	/** Writes out the buffered data, if any */
+	public synchronized void flush() throws IOException {
+		checkError();
+		if (buffer == null)
+			return;
+		ByteBuffer data = buffer;
+		buffer = null;
+		pool.clean(this);
+		try {
+			data.flip();
+			writeFully(data, start);
+		}
+		finally {
+			pool.release(data);
+		}
+	}
+
+	/** Writes out the buffered data, giving up the buffer even if that fails */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			if (buffer != null) {
+				pool.clean(this);
+				pool.release(buffer);
+				buffer = null;
+			}
+			pool.closed(this);
+		}
+	}
+
+	/** Flushes from the background, keeping any error for the next call */
+	synchronized void flushQuietly() {
+		try {
+			flush();
+		}
+		catch (IOException ioe) {
+			error = ioe;
+		}
+	}
+
+	/** Returns true if the buffer was first written to at least <code>ageNanos</code> ago */
+	synchronized boolean isOlderThan(long ageNanos, long now) {
+		return buffer != null && now - dirtySince >= ageNanos;
+	}
+
+	private void checkError() throws IOException {
+		IOException error = this.error;
+		if (error != null) {
+			this.error = null;
+			throw error;
+		}
+	}
+
+	private int writeFully(ByteBuffer src, long position) throws IOException {
+		int total = 0;
+		while (src.hasRemaining())
+			total += channel.write(src, position + total);
+		return total;
+	}
+}
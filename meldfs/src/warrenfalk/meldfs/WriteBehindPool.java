@@ -0,0 +1,133 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The buffers shared by all <code>WriteBehind</code> files, with a cap on the total dirty memory, the set of files
+ * holding dirty data so that it can be flushed in the background, and the open files by virtual path so that they
+ * can be flushed on demand by path and follow their paths when renamed.
+ * @author warren
+ */
+public class WriteBehindPool {
+	final BufferPool buffers;
+	final long delayNanos;
+	final ConcurrentHashMap<WriteBehind,Boolean> dirty = new ConcurrentHashMap<WriteBehind,Boolean>();
+	/** the open files by the virtual path they are known by; only changed while holding the map */
+	final ConcurrentHashMap<Path,Set<WriteBehind>> open = new ConcurrentHashMap<Path,Set<WriteBehind>>();
+
+	/**
+	 * @param bufferSize the size of each file's buffer, which is the size of the writes it coalesces into
+	 * @param budget the most dirty data to hold in total
+	 * @param delayMillis how long data may stay buffered before it is written out in the background
+	 */
+	public WriteBehindPool(int bufferSize, long budget, long delayMillis) {
+		this.buffers = new BufferPool(bufferSize, budget);
+		this.delayNanos = delayMillis * 1000000L;
+	}
+
+	/** Starts a background thread which writes out buffers once they have been dirty for the delay */
+	public void start() {
+		Thread thread = new Thread("MeldFs Write-behind") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(Math.max(1, delayNanos / 2000000L));
+						long now = System.nanoTime();
+						for (WriteBehind file : dirty.keySet())
+							if (file.isOlderThan(delayNanos, now))
+								file.flushQuietly();
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getBufferSize() {
+		return buffers.getBufferSize();
+	}
+
+	ByteBuffer acquire() {
+		return buffers.acquire();
+	}
+
+	void release(ByteBuffer buffer) {
+		buffers.release(buffer);
+	}
+
+	void dirty(WriteBehind file) {
+		dirty.put(file, Boolean.TRUE);
+	}
+
+	void clean(WriteBehind file) {
+		dirty.remove(file);
+	}
+
+	void opened(WriteBehind file) {
+		synchronized (open) {
+			Set<WriteBehind> files = open.get(file.vpath);
+			if (files == null)
+				open.put(file.vpath, files = Collections.newSetFromMap(new ConcurrentHashMap<WriteBehind,Boolean>()));
+			files.add(file);
+		}
+	}
+
+	void closed(WriteBehind file) {
+		synchronized (open) {
+			Set<WriteBehind> files = open.get(file.vpath);
+			if (files != null && files.remove(file) && files.isEmpty())
+				open.remove(file.vpath);
+		}
+	}
+
+	/** Writes out the buffered data of every file open by <code>vpath</code>, so that it can be read or stat'ed elsewhere */
+	public void flush(Path vpath) {
+		Set<WriteBehind> files = open.get(vpath);
+		if (files == null)
+			return;
+		for (WriteBehind file : files)
+			file.flushQuietly();
+	}
+
+	/** Records that <code>from</code> was renamed to <code>to</code>, so that the files open by it, or by paths beneath it, are known by their new paths */
+	public void moved(Path from, Path to) {
+		synchronized (open) {
+			if (open.isEmpty())
+				return;
+			ArrayList<WriteBehind> moved = new ArrayList<WriteBehind>();
+			for (Iterator<Map.Entry<Path,Set<WriteBehind>>> i = open.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<Path,Set<WriteBehind>> entry = i.next();
+				if (!entry.getKey().startsWith(from))
+					continue;
+				Path target = to.resolve(from.relativize(entry.getKey()));
+				for (WriteBehind file : entry.getValue()) {
+					file.vpath = target;
+					moved.add(file);
+				}
+				i.remove();
+			}
+			for (WriteBehind file : moved) {
+				Set<WriteBehind> files = open.get(file.vpath);
+				if (files == null)
+					open.put(file.vpath, files = Collections.newSetFromMap(new ConcurrentHashMap<WriteBehind,Boolean>()));
+				files.add(file);
+			}
+		}
+	}
+
+	/** Returns the number of bytes of buffers currently holding dirty data */
+	public long getDirtyBytes() {
+		return (long)buffers.getInUse() * buffers.getBufferSize();
+	}
+}
@@ -0,0 +1,66 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares sequential 128KB reads of a striped file through <code>StripeChannel</code> with all columns online, with
+ * one data column offline, and with two data columns offline (reconstructed from the checksum columns).
+ * <p>Usage: DegradedReadBenchmark [file size in MB] [data columns] [checksum columns] [block size]</p>
+ * <p>The columns are temporary files which are read once first, so all cases start from a warm page cache.</p>
+ */
+public class DegradedReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 128) * 1024 * 1024;
+		int dataCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int checksumCount = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int blockSize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = TestStripeChannel.stripe(file, blockSize, dataCount, checksumCount);
+		Files.delete(file);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		long all = (1L << columns.length) - 1;
+		long[] validMasks = { all, all & ~1L, all & ~3L };
+		String[] names = { "healthy", "1 offline", "2 offline" };
+		System.out.println((size >> 20) + " MB, " + dataCount + "+" + checksumCount + " columns, " + blockSize + " byte blocks");
+		try {
+			for (int round = 0; round < 3; round++) {
+				for (int m = 0; m < validMasks.length; m++) {
+					if (m > checksumCount)
+						break;
+					long nanos = readAll(pool, columns, size, dataCount, blockSize, validMasks[m]);
+					if (round > 0)
+						System.out.printf("%-10s %8.1f ms  %7.1f MB/s%n", names[m], nanos / 1e6, size / 1048576.0 / (nanos / 1e9));
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	static long readAll(ExecutorService pool, Path[] columns, long size, int dataCount, int blockSize, long validMask) throws Exception {
+		ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			if (0 != (validMask & (1L << i)))
+				channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+		try (StripeChannel channel = new StripeChannel(pool, size, dataCount, blockSize, channels, validMask)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(128 * 1024);
+			long start = System.nanoTime();
+			for (long position = 0; position < size; ) {
+				buffer.clear();
+				position += channel.read(buffer, position);
+			}
+			return System.nanoTime() - start;
+		}
+	}
+}
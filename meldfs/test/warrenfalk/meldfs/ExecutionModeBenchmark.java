@@ -0,0 +1,124 @@
+package warrenfalk.meldfs;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import warrenfalk.fuselaj.FilesystemException;
+
+/**
+ * Compares throughput, resident memory and platform thread count of the execution modes when many clients
+ * issue fan-outs whose source operations block (simulating slow disks).
+ * <p>Usage: ExecutionModeBenchmark &lt;pool|virtual|fanout&gt; [clients] [sources] [seconds] [blocking ms]</p>
+ * <p>Run each mode in its own JVM so that the resident set size is comparable.</p>
+ */
+public class ExecutionModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		ExecutionMode mode = ExecutionMode.parse(args.length > 0 ? args[0] : "pool");
+		int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		int sourceCount = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		final int blockMillis = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+
+		if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+			System.out.println("virtual threads are not supported by this JVM (" + System.getProperty("java.version") + ")");
+			return;
+		}
+
+		Path[] dirs = new Path[sourceCount];
+		for (int i = 0; i < sourceCount; i++)
+			dirs[i] = Files.createTempDirectory("meldfs-bench-" + i);
+		final SourceFs[] sources = SourceFs.fromPaths(dirs);
+		final Path vpath = dirs[0].getFileSystem().getPath("file");
+
+		ExecutorService pool = null;
+		final SourceOpDispatcher dispatcher;
+		switch (mode) {
+		case VIRTUAL:
+			pool = VirtualThreads.newExecutor();
+			dispatcher = new ExecutorSourceOpDispatcher(sources, pool);
+			break;
+		case POOL:
+			pool = Executors.newCachedThreadPool();
+			dispatcher = new ExecutorSourceOpDispatcher(sources, pool);
+			break;
+		default:
+			dispatcher = new FanoutSourceOpDispatcher(sources, 2, 256);
+			break;
+		}
+
+		final AtomicLong completed = new AtomicLong();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		Thread[] clients = new Thread[clientCount];
+		for (int c = 0; c < clientCount; c++) {
+			clients[c] = new Thread() {
+				public void run() {
+					FilesystemException[] errors = new FilesystemException[sources.length];
+					SourceOp op = new SourceOp() {
+						@Override
+						public void run(int index, SourceFs source) {
+							Files.exists(source.root.resolve(vpath), LinkOption.NOFOLLOW_LINKS);
+							try {
+								Thread.sleep(blockMillis);
+							}
+							catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					};
+					try {
+						while (System.nanoTime() < deadline) {
+							dispatcher.dispatch(null, op, errors);
+							completed.incrementAndGet();
+						}
+					}
+					catch (FilesystemException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			clients[c].setDaemon(true);
+		}
+		for (Thread client : clients)
+			client.start();
+		long rssPeak = 0;
+		while (System.nanoTime() < deadline) {
+			Thread.sleep(200);
+			rssPeak = Math.max(rssPeak, rssKilobytes());
+		}
+		for (Thread client : clients)
+			client.join();
+
+		System.out.println("mode: " + mode.name().toLowerCase() + ", clients: " + clientCount + ", sources: " + sourceCount + ", blocking: " + blockMillis + "ms");
+		System.out.println("  throughput:      " + (completed.get() / seconds) + " fan-outs/s");
+		System.out.println("  peak RSS:        " + (rssPeak / 1024) + " MB");
+		System.out.println("  peak JVM threads: " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+		if (pool != null)
+			pool.shutdown();
+		if (dispatcher instanceof FanoutSourceOpDispatcher)
+			((FanoutSourceOpDispatcher)dispatcher).shutdown();
+		for (Path dir : dirs)
+			Files.delete(dir);
+	}
+
+	/** Reads the resident set size of this process from /proc (Linux only) */
+	static long rssKilobytes() throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while (null != (line = reader.readLine())) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+			}
+		}
+		return 0;
+	}
+}
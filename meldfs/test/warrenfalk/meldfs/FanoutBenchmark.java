@@ -0,0 +1,98 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import warrenfalk.fuselaj.FilesystemException;
+
+/**
+ * Compares the latency of a small metadata fan-out (one lstat per source) through the executor/monitor
+ * dispatcher and the pinned-worker fan-out dispatcher.
+ * <p>Usage: FanoutBenchmark [sources] [caller threads] [calls per thread]</p>
+ */
+public class FanoutBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sourceCount = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int calls = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+		Path[] dirs = new Path[sourceCount];
+		for (int i = 0; i < sourceCount; i++) {
+			dirs[i] = Files.createTempDirectory("meldfs-bench-" + i);
+			if (i % 2 == 0)
+				Files.createFile(dirs[i].resolve("file"));
+		}
+		SourceFs[] sources = SourceFs.fromPaths(dirs);
+		final Path vpath = dirs[0].getFileSystem().getPath("file");
+
+		ExecutorService pool = Executors.newCachedThreadPool();
+		SourceOpDispatcher pooled = new ExecutorSourceOpDispatcher(sources, pool);
+		FanoutSourceOpDispatcher fanout = new FanoutSourceOpDispatcher(sources, 2, 256);
+
+		System.out.println(sourceCount + " sources, " + threadCount + " caller threads, " + calls + " calls per thread");
+		for (int round = 0; round < 3; round++) {
+			boolean warmup = round == 0;
+			report("executor", run(pooled, sourceCount, vpath, threadCount, calls), warmup);
+			report("fanout  ", run(fanout, sourceCount, vpath, threadCount, calls), warmup);
+		}
+
+		fanout.shutdown();
+		pool.shutdown();
+		for (Path dir : dirs) {
+			Files.deleteIfExists(dir.resolve("file"));
+			Files.delete(dir);
+		}
+	}
+
+	static long[] run(final SourceOpDispatcher dispatcher, final int sourceCount, final Path vpath, int threadCount, final int calls) throws InterruptedException {
+		final long[] latencies = new long[threadCount * calls];
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int offset = t * calls;
+			threads[t] = new Thread() {
+				public void run() {
+					final FilesystemException[] errors = new FilesystemException[sourceCount];
+					final boolean[] found = new boolean[sourceCount];
+					SourceOp op = new SourceOp() {
+						@Override
+						public void run(int index, SourceFs source) {
+							found[index] = Files.exists(source.root.resolve(vpath), LinkOption.NOFOLLOW_LINKS);
+						}
+					};
+					try {
+						for (int i = 0; i < calls; i++) {
+							long start = System.nanoTime();
+							dispatcher.dispatch(null, op, errors);
+							latencies[offset + i] = System.nanoTime() - start;
+						}
+					}
+					catch (FilesystemException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		return latencies;
+	}
+
+	static void report(String name, long[] latencies, boolean warmup) throws IOException {
+		if (warmup)
+			return;
+		Arrays.sort(latencies);
+		System.out.println(name + "  p50: " + micros(latencies[latencies.length / 2]) + "us  p99: " + micros(latencies[(int)(latencies.length * 0.99)]) + "us  p99.9: " + micros(latencies[(int)(latencies.length * 0.999)]) + "us");
+	}
+
+	static String micros(long nanos) {
+		return "" + (Math.floor(nanos / 100.0) / 10.0);
+	}
+}
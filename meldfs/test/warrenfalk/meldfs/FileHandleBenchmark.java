@@ -0,0 +1,92 @@
+package warrenfalk.meldfs;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares handle lookups under contention: a <code>HashMap</code> guarded by one lock (as the handle table used to
+ * be) against the lock-free <code>FuseFileHandle</code> table.  Each thread looks up handles from a shared set of open
+ * ones, as the fuse threads do on every read and write.
+ * <p>Usage: FileHandleBenchmark [threads] [open handles] [lookups per thread]</p>
+ */
+public class FileHandleBenchmark {
+
+	interface Table {
+		Object get(long number);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int handleCount = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+
+		final HashMap<Long,Object> map = new HashMap<Long,Object>();
+		final long[] numbers = new long[handleCount];
+		for (int i = 0; i < handleCount; i++) {
+			FuseFileHandle handle = FuseFileHandle.open(new Object());
+			numbers[i] = handle.number;
+			map.put(handle.number, handle);
+		}
+		Table locked = new Table() {
+			@Override
+			public Object get(long number) {
+				synchronized (map) {
+					return map.get(number);
+				}
+			}
+		};
+		Table lockFree = new Table() {
+			@Override
+			public Object get(long number) {
+				return FuseFileHandle.get(number);
+			}
+		};
+
+		System.out.println(threadCount + " threads, " + handleCount + " open handles, " + lookups + " lookups per thread");
+		for (int round = 0; round < 3; round++) {
+			boolean warmup = round == 0;
+			report("synchronized map", run(locked, numbers, threadCount, lookups), threadCount * (long)lookups, warmup);
+			report("lock-free table", run(lockFree, numbers, threadCount, lookups), threadCount * (long)lookups, warmup);
+		}
+		for (long number : numbers)
+			FuseFileHandle.release(number);
+	}
+
+	static long run(final Table table, final long[] numbers, int threadCount, final int lookups) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threadCount);
+		for (int t = 0; t < threadCount; t++) {
+			final int seed = t;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int misses = 0;
+						for (int i = 0; i < lookups; i++)
+							if (table.get(numbers[(i + seed) % numbers.length]) == null)
+								misses++;
+						if (misses > 0)
+							System.err.println(misses + " lookups missed");
+					}
+					catch (InterruptedException e) {
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			};
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - begin;
+	}
+
+	static void report(String name, long nanos, long lookups, boolean warmup) {
+		if (warmup)
+			return;
+		System.out.printf("%-18s %8.1f ms  %6.1f ns/lookup%n", name, nanos / 1e6, (double)nanos / lookups);
+	}
+}
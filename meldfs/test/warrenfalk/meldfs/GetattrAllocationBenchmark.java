@@ -0,0 +1,87 @@
+package warrenfalk.meldfs;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import warrenfalk.fuselaj.Stat;
+
+/**
+ * Measures the bytes allocated (on all threads) per multi-source getattr, with and without interned paths.
+ * <p>The namespace index and attribute cache are disabled so that every call fans out to every source.
+ * The virtual paths are created up front, since in a mount they come from fuselaj either way.</p>
+ * <p>Usage: GetattrAllocationBenchmark [sources] [calls]</p>
+ * <p>This relies on <code>com.sun.management.ThreadMXBean</code> (HotSpot) for per-thread allocation counters.</p>
+ */
+public class GetattrAllocationBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sourceCount = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		Path[] dirs = new Path[sourceCount];
+		for (int i = 0; i < sourceCount; i++) {
+			dirs[i] = Files.createTempDirectory("meldfs-bench-" + i);
+			Files.createDirectories(dirs[i].resolve("dir"));
+			for (int f = 0; f < 100; f++)
+				if (f % sourceCount == i)
+					Files.createFile(dirs[i].resolve("dir").resolve("file" + f));
+		}
+		Path[] vpaths = new Path[calls];
+		for (int i = 0; i < calls; i++)
+			vpaths[i] = FileSystems.getDefault().getPath("dir", "file" + (i % 100));
+
+		long before = measure(dirs, 0, vpaths);
+		long after = measure(dirs, 65536, vpaths);
+		System.out.println(sourceCount + " sources, " + calls + " calls");
+		System.out.println("  bytes per getattr without interned paths: " + (before / calls));
+		System.out.println("  bytes per getattr with interned paths:    " + (after / calls));
+
+		for (Path dir : dirs) {
+			for (int f = 0; f < 100; f++)
+				Files.deleteIfExists(dir.resolve("dir").resolve("file" + f));
+			Files.delete(dir.resolve("dir"));
+			Files.delete(dir);
+		}
+	}
+
+	static long measure(Path[] dirs, int internSize, Path[] vpaths) throws Exception {
+		Path config = Files.createTempFile("meldfs-bench", ".conf");
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(config, RecordLog.UTF8))) {
+			for (Path dir : dirs)
+				writer.println("source = " + dir);
+			writer.println("execution_mode = fanout");
+			writer.println("index_max_entries = 0");
+			writer.println("negative_cache_size = 0");
+			writer.println("attr_prefetch = false");
+			writer.println("catalog = false");
+			writer.println("path_intern_size = " + internSize);
+		}
+		MeldFs meldfs = new MeldFs(new MeldFsProperties(config));
+		Files.delete(config);
+		Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+
+		// warm up
+		for (int i = 0; i < vpaths.length; i++)
+			meldfs.statFreshest(vpaths[i], stat);
+
+		long start = allocatedBytes();
+		for (int i = 0; i < vpaths.length; i++)
+			meldfs.statFreshest(vpaths[i], stat);
+		return allocatedBytes() - start;
+	}
+
+	/** Returns the total bytes allocated so far by all live threads */
+	static long allocatedBytes() throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if (bytes > 0)
+				total += bytes;
+		return total;
+	}
+}
@@ -0,0 +1,70 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Compares random 4KB reads of a large file through <code>FileChannel.read</code> and through <code>MappedFile</code>.
+ * <p>Usage: MappedReadBenchmark [file size in MB] [reads] [file]</p>
+ * <p>Without a file, a temporary one is created (and read once first, so both paths start from a warm page cache).</p>
+ */
+public class MappedReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+		int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		Path file;
+		boolean temporary = args.length <= 2;
+		if (temporary) {
+			file = Files.createTempFile("meldfs-mapped", null);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ByteBuffer chunk = ByteBuffer.allocateDirect(1024 * 1024);
+				for (long written = 0; written < size; written += chunk.capacity()) {
+					chunk.clear();
+					channel.write(chunk, written);
+				}
+			}
+		}
+		else {
+			file = FileSystems.getDefault().getPath(args[2]);
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			MappedReads mappings = new MappedReads(1024L * 1024 * 1024, Long.MAX_VALUE, 0);
+			MappedFile mapped = mappings.open(channel, file, size);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+			System.out.println((size >> 20) + " MB file, " + reads + " random 4KB reads");
+			for (int round = 0; round < 3; round++) {
+				boolean warmup = round == 0;
+				Random random = new Random(round);
+				long start = System.nanoTime();
+				for (int i = 0; i < reads; i++) {
+					buffer.clear();
+					channel.read(buffer, (random.nextLong() & Long.MAX_VALUE) % (size - 4096));
+				}
+				long channelNanos = System.nanoTime() - start;
+				random = new Random(round);
+				start = System.nanoTime();
+				for (int i = 0; i < reads; i++) {
+					buffer.clear();
+					mapped.read(buffer, (random.nextLong() & Long.MAX_VALUE) % (size - 4096));
+				}
+				long mappedNanos = System.nanoTime() - start;
+				if (!warmup) {
+					System.out.printf("channel read  %8.1f ms  %6.0f ns/read%n", channelNanos / 1e6, (double)channelNanos / reads);
+					System.out.printf("mapped read   %8.1f ms  %6.0f ns/read%n", mappedNanos / 1e6, (double)mappedNanos / reads);
+				}
+			}
+		}
+		finally {
+			if (temporary)
+				Files.delete(file);
+		}
+	}
+}
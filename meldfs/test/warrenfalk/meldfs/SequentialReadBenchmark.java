@@ -0,0 +1,44 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the same file from start to end several times and reports the throughput of each pass.
+ * <p>Point it at a file on a mounted meldfs, once mounted with the default <code>-o meld_cache=direct</code> and once
+ * with <code>-o meld_cache=kernel</code>.  With direct I/O every pass goes to the sources through userspace; with the
+ * kernel cache the first pass benefits from kernel readahead and later passes are served from the page cache.</p>
+ * <p>Usage: SequentialReadBenchmark file [passes] [buffer size]</p>
+ */
+public class SequentialReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: SequentialReadBenchmark file [passes] [buffer size]");
+			System.exit(1);
+		}
+		Path file = FileSystems.getDefault().getPath(args[0]);
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 128 * 1024;
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+		for (int pass = 0; pass < passes; pass++) {
+			long bytes = 0;
+			long start = System.nanoTime();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				for (;;) {
+					buffer.clear();
+					int read = channel.read(buffer);
+					if (read < 0)
+						break;
+					bytes += read;
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			System.out.printf("pass %d: %d bytes in %.1f ms, %.1f MiB/s%n", pass + 1, bytes, nanos / 1e6, (bytes / 1048576.0) / (nanos / 1e9));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package warrenfalk.meldfs;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares sequential 128KB reads of a striped file through <code>StripeChannel</code> with per-read column tasks and
+ * with streaming column readers.
+ * <p>Usage: StreamingReadBenchmark [file size in MB] [data columns] [block size] [ring buffers per column]</p>
+ * <p>The columns are temporary files which are read once first, so both cases start from a warm page cache.</p>
+ */
+public class StreamingReadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024 * 1024;
+		int dataCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+		int ringSize = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = TestStripeChannel.stripe(file, blockSize, dataCount, 1);
+		Files.delete(file);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		BufferPool buffers = new BufferPool(1024 * 1024, 256L * 1024 * 1024);
+		System.out.println((size >> 20) + " MB, " + dataCount + " data columns, " + blockSize + " byte blocks, " + ringSize + " ring buffers");
+		try {
+			for (int round = 0; round < 3; round++) {
+				for (int streamed = 0; streamed < 2; streamed++) {
+					long nanos = readAll(pool, columns, size, dataCount, blockSize, streamed == 1 ? buffers : null, ringSize);
+					if (round > 0)
+						System.out.printf("%-10s %8.1f ms  %7.1f MB/s%n", streamed == 1 ? "streamed" : "tasks", nanos / 1e6, size / 1048576.0 / (nanos / 1e9));
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	static long readAll(ExecutorService pool, Path[] columns, long size, int dataCount, int blockSize, BufferPool buffers, int ringSize) throws Exception {
+		ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+		for (int i = 0; i < dataCount; i++)
+			channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+		try (StripeChannel channel = new StripeChannel(pool, size, dataCount, blockSize, channels, (1L << dataCount) - 1)) {
+			if (buffers != null)
+				channel.stream(buffers, ringSize);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(128 * 1024);
+			long start = System.nanoTime();
+			for (long position = 0; position < size; ) {
+				buffer.clear();
+				position += channel.read(buffer, position);
+			}
+			return System.nanoTime() - start;
+		}
+	}
+}
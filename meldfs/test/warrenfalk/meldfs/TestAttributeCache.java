@@ -0,0 +1,116 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+import warrenfalk.fuselaj.Stat;
+
+public class TestAttributeCache {
+
+	@Test
+	public void testLoad() throws Exception {
+		Path file = Files.createTempFile("meldfs-attributes", null);
+		try {
+			Files.write(file, new byte[123]);
+			AttributeCache cache = new AttributeCache(4, 60000);
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			Path vpath = path("file");
+			cache.load(vpath, 1, file, cache.getStamp(vpath));
+			assertEquals("source", 1, cache.get(vpath, stat));
+			assertEquals("size", 123, stat.getSize());
+			cache.invalidate(vpath);
+			assertEquals("invalidated", -1, cache.get(vpath, stat));
+
+			// the ring of slots is reused once full
+			for (int i = 0; i < 6; i++)
+				cache.load(path("file" + i), 0, file, cache.getStamp(path("file" + i)));
+			assertEquals("oldest replaced", -1, cache.get(path("file0"), stat));
+			assertEquals("newest kept", 0, cache.get(path("file5"), stat));
+
+			AttributeCache expiring = new AttributeCache(4, 50);
+			expiring.load(vpath, 0, file, expiring.getStamp(vpath));
+			Thread.sleep(100);
+			assertEquals("expired", -1, expiring.get(vpath, stat));
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testStaleLoad() throws Exception {
+		Path file = Files.createTempFile("meldfs-attributes", null);
+		try {
+			AttributeCache cache = new AttributeCache(4, 60000);
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			Path vpath = path("dir/file");
+			// invalidated while the attributes were being read
+			long stamp = cache.getStamp(vpath);
+			cache.invalidate(vpath);
+			cache.load(vpath, 0, file, stamp);
+			assertEquals("discarded", -1, cache.get(vpath, stat));
+			stamp = cache.getStamp(vpath);
+			cache.invalidateTree(path("dir"));
+			cache.load(vpath, 0, file, stamp);
+			assertEquals("discarded after a tree invalidation", -1, cache.get(vpath, stat));
+			assertEquals("counted", 2, cache.discarded.get());
+			assertEquals("not counted as prefetched", 0, cache.prefetched.get());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	/** The getattr calls following a listing are answered from the attributes prefetched by the listing */
+	@Test
+	public void testPrefetchHitRate() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		try {
+			final int count = 200;
+			for (SourceFs source : sources)
+				Files.createDirectories(source.root.resolve("dir"));
+			for (int i = 0; i < count; i++) {
+				Path name = path("dir/file" + i);
+				Files.write(sources[i % 2].root.resolve(name), new byte[i]);
+				// on both sources, with the newer copy to be picked
+				if (i % 10 == 0) {
+					Path older = sources[(i + 1) % 2].root.resolve(name);
+					Files.write(older, new byte[1000]);
+					Files.setLastModifiedTime(older, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+				}
+			}
+			try (DirectoryCursor cursor = new DirectoryCursor(meldfs, path("dir"))) {
+				assertEquals("listed", count + 2, TestDirectoryCursor.list(cursor, 0, Integer.MAX_VALUE).size());
+			}
+			assertEquals("prefetched", count, meldfs.attributes.prefetched.get());
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			for (int i = 0; i < count; i++) {
+				assertEquals("from the freshest copy", i % 2, meldfs.statFreshest(path("dir/file" + i), stat));
+				assertEquals("size of the freshest copy", i, stat.getSize());
+			}
+			assertEquals("every getattr hit", count, meldfs.attributes.hits.get());
+			assertEquals("no misses", 0, meldfs.attributes.misses.get());
+			NamespaceIndex.Entry entry = meldfs.namespace.get(path("dir/file10"));
+			assertNotNull("indexed by the listing", entry);
+			assertTrue("on both sources", entry.isOn(0) && entry.isOn(1));
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			meldfs.attributes.printStatistics(new PrintStream(out, true));
+			assertTrue("hit rate reported", out.toString().contains("100.0% of lookups hit"));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+}
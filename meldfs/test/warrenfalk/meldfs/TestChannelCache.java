@@ -0,0 +1,86 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestChannelCache {
+	final static Set<OpenOption> READ = Collections.<OpenOption>singleton(StandardOpenOption.READ);
+
+	@Test
+	public void testReferenceCounting() throws IOException {
+		Path file = Files.createTempFile("meldfs-channels", null);
+		try {
+			ChannelCache cache = new ChannelCache(1, 60000, 60000);
+			Path a = path("a"), b = path("b");
+			assertNull("empty", cache.acquire(a, READ));
+			ChannelCache.Entry first = cache.add(a, READ, FileChannel.open(file, READ));
+			ChannelCache.Entry again = cache.acquire(a, READ);
+			assertSame("hit", first, again);
+			cache.release(again);
+			cache.release(first);
+			assertTrue("kept open while cached", first.getChannel().isOpen());
+
+			// adding another evicts the unreferenced least recently used entry
+			ChannelCache.Entry second = cache.add(b, READ, FileChannel.open(file, READ));
+			assertFalse("evicted and closed", first.getChannel().isOpen());
+			assertNull("evicted", cache.acquire(a, READ));
+
+			// an entry in use is closed only once it is released
+			cache.invalidate(b);
+			assertTrue("still in use", second.getChannel().isOpen());
+			assertNull("invalidated", cache.acquire(b, READ));
+			cache.release(second);
+			assertFalse("closed on release", second.getChannel().isOpen());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testInvalidateTree() throws IOException {
+		Path file = Files.createTempFile("meldfs-channels", null);
+		try {
+			ChannelCache cache = new ChannelCache(10, 60000, 60000);
+			String[] names = { "a/b", "a/b/c", "a/b/c/d", "a/b.x", "a/bc", "a/a" };
+			for (String name : names)
+				cache.release(cache.add(path(name), READ, FileChannel.open(file, READ)));
+			cache.invalidateTree(path("a/b"));
+			assertNull("the path", cache.acquire(path("a/b"), READ));
+			assertNull("beneath", cache.acquire(path("a/b/c"), READ));
+			assertNull("deeper", cache.acquire(path("a/b/c/d"), READ));
+			for (String name : new String[] { "a/b.x", "a/bc", "a/a" }) {
+				ChannelCache.Entry entry = cache.acquire(path(name), READ);
+				assertNotNull("sibling " + name + " kept", entry);
+				cache.release(entry);
+			}
+			cache.invalidateAll();
+			assertNull("all", cache.acquire(path("a/a"), READ));
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testCacheableOptions() {
+		assertTrue("read", ChannelCache.isCacheable(READ));
+		assertFalse("truncate", ChannelCache.isCacheable(Collections.<OpenOption>singleton(StandardOpenOption.TRUNCATE_EXISTING)));
+		assertFalse("append", ChannelCache.isCacheable(Collections.<OpenOption>singleton(StandardOpenOption.APPEND)));
+	}
+
+	static Path path(String vpath) {
+		return FileSystems.getDefault().getPath(vpath);
+	}
+}
@@ -0,0 +1,101 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestDirectoryCursor {
+	final static int NAMES = 1500;
+
+	@Test
+	public void testMergedListing() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(3);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		try {
+			HashSet<String> expected = createNames(sources);
+			check(meldfs, expected, NAMES * 4);
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testProbedListing() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(3);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		try {
+			HashSet<String> expected = createNames(sources);
+			// too many names to merge, so the copies are streamed and probed
+			check(meldfs, expected, 100);
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	/** Lists the directory whole, then resumes at an arbitrary offset, both on the same cursor and on a new one */
+	private static void check(MeldFs meldfs, HashSet<String> expected, int maxNames) throws Exception {
+		Path dir = path("dir");
+		List<String> listing;
+		try (DirectoryCursor cursor = new DirectoryCursor(meldfs, dir, maxNames)) {
+			listing = list(cursor, 0, Integer.MAX_VALUE);
+			assertEquals("dot entries first", ".", listing.get(0));
+			assertEquals("dot entries first", "..", listing.get(1));
+			HashSet<String> names = new HashSet<String>(listing.subList(2, listing.size()));
+			assertEquals("no duplicates", listing.size() - 2, names.size());
+			assertEquals("every name listed", expected, names);
+
+			// the kernel may come back for an earlier offset
+			int offset = 777;
+			assertEquals("resumed on the same cursor", listing.subList(offset, offset + 50), list(cursor, offset, 50));
+			assertEquals("continued on the same cursor", listing.subList(offset + 50, offset + 60), list(cursor, offset + 50, 10));
+		}
+		try (DirectoryCursor cursor = new DirectoryCursor(meldfs, dir, maxNames)) {
+			int offset = 1234;
+			assertEquals("resumed on a new cursor", listing.subList(offset, listing.size()), list(cursor, offset, Integer.MAX_VALUE));
+		}
+	}
+
+	/** Creates names spread over the copies of a directory on three sources, some on more than one */
+	private static HashSet<String> createNames(SourceFs[] sources) throws Exception {
+		HashSet<String> names = new HashSet<String>();
+		for (SourceFs source : sources)
+			Files.createDirectories(source.root.resolve("dir"));
+		for (int i = 0; i < NAMES; i++) {
+			String name = "file" + i;
+			names.add(name);
+			Files.createFile(sources[i % 3].root.resolve("dir").resolve(name));
+			if (i % 5 == 0)
+				Files.createFile(sources[(i + 1) % 3].root.resolve("dir").resolve(name));
+			if (i % 7 == 0)
+				Files.createFile(sources[(i + 2) % 3].root.resolve("dir").resolve(name));
+		}
+		return names;
+	}
+
+	/** Lists up to <code>count</code> entries starting at <code>offset</code>, as a fill from a buffer at that position would */
+	static List<String> list(DirectoryCursor cursor, long offset, int count) throws Exception {
+		ArrayList<String> names = new ArrayList<String>();
+		if (offset != cursor.position)
+			cursor.seek(offset);
+		for (int i = 0; i < count; i++) {
+			String name = cursor.peek();
+			if (name == null)
+				break;
+			names.add(name);
+			cursor.pending = null;
+			cursor.position++;
+		}
+		return names;
+	}
+}
@@ -0,0 +1,237 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import warrenfalk.fuselaj.Errno;
+import warrenfalk.fuselaj.FilesystemException;
+
+public class TestFanoutSourceOpDispatcher {
+	final static int SOURCES = 3;
+
+	@Test
+	public void testQueue() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		try {
+			final FanoutSourceOpDispatcher dispatcher = new FanoutSourceOpDispatcher(sources, 0, 8);
+			final FanoutSourceOpDispatcher.SourceQueue queue = dispatcher.queues[0];
+			int size = queue.mask + 1;
+			FanoutSourceOpDispatcher.Call[] calls = new FanoutSourceOpDispatcher.Call[size + 1];
+			for (int i = 0; i < calls.length; i++)
+				calls[i] = dispatcher.new Call();
+			for (int i = 0; i < size; i++)
+				assertTrue("offered", queue.offer(calls[i]));
+			assertFalse("full", queue.offer(calls[size]));
+			for (int i = 0; i < size; i++)
+				assertSame("first in, first out", calls[i], queue.poll());
+			assertNull("empty", queue.poll());
+
+			// many producers and consumers, each call taken exactly once
+			final int producers = 4, perProducer = 10000;
+			final FanoutSourceOpDispatcher.Call[] items = new FanoutSourceOpDispatcher.Call[producers * perProducer];
+			final IdentityHashMap<FanoutSourceOpDispatcher.Call,Integer> ids = new IdentityHashMap<FanoutSourceOpDispatcher.Call,Integer>();
+			for (int i = 0; i < items.length; i++) {
+				items[i] = dispatcher.new Call();
+				ids.put(items[i], i);
+			}
+			final AtomicIntegerArray taken = new AtomicIntegerArray(items.length);
+			final CountDownLatch produced = new CountDownLatch(producers);
+			Thread[] threads = new Thread[producers * 2];
+			for (int p = 0; p < producers; p++) {
+				final int first = p * perProducer;
+				threads[p] = new Thread() {
+					public void run() {
+						for (int i = first; i < first + perProducer; i++)
+							while (!queue.offer(items[i]))
+								Thread.yield();
+						produced.countDown();
+					}
+				};
+				threads[producers + p] = new Thread() {
+					public void run() {
+						for (;;) {
+							boolean done = produced.getCount() == 0;
+							FanoutSourceOpDispatcher.Call call = queue.poll();
+							if (call != null)
+								taken.incrementAndGet(ids.get(call));
+							else if (done)
+								return;
+							else
+								Thread.yield();
+						}
+					}
+				};
+			}
+			for (Thread thread : threads)
+				thread.start();
+			for (Thread thread : threads)
+				thread.join();
+			for (int i = 0; i < items.length; i++)
+				assertEquals("taken once", 1, taken.get(i));
+		}
+		finally {
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(SOURCES);
+		final FanoutSourceOpDispatcher dispatcher = new FanoutSourceOpDispatcher(sources, 2, 16);
+		try {
+			final AtomicIntegerArray runs = new AtomicIntegerArray(SOURCES);
+			final Thread caller = Thread.currentThread();
+			final boolean[] onCaller = new boolean[1];
+			SourceOp op = new SourceOp() {
+				public void run(int index, SourceFs source) throws FilesystemException {
+					if (Thread.currentThread() == caller)
+						onCaller[0] = true;
+					runs.incrementAndGet(index);
+					if (index == 1)
+						throw new FilesystemException(Errno.NoSuchFileOrDirectory);
+				}
+			};
+			for (int i = 0; i < 50; i++) {
+				FilesystemException[] errors = new FilesystemException[SOURCES];
+				dispatcher.dispatch(null, op, errors);
+				assertNull("no error", errors[0]);
+				assertNotNull("error reported", errors[1]);
+				// let the workers park so that the next call has to wake them
+				if (i % 10 == 0)
+					Thread.sleep(20);
+			}
+			for (int i = 0; i < SOURCES; i++)
+				assertEquals("run on every source", 50, runs.get(i));
+			assertFalse("run on the workers", onCaller[0]);
+
+			FilesystemException[] errors = new FilesystemException[SOURCES];
+			dispatcher.dispatch(new Object[] { null, null, "x" }, op, errors);
+			assertEquals("only on selected sources", 50, runs.get(0));
+			assertEquals("on selected sources", 51, runs.get(2));
+		}
+		finally {
+			dispatcher.shutdown();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFullQueue() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		final FanoutSourceOpDispatcher dispatcher = new FanoutSourceOpDispatcher(sources, 1, 2);
+		try {
+			final CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+			final SourceOp blocking = new SourceOp() {
+				public void run(int index, SourceFs source) {
+					entered.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			};
+			Thread blocked = new Thread() {
+				public void run() {
+					try {
+						dispatcher.dispatch(null, blocking, new FilesystemException[1]);
+					}
+					catch (FilesystemException e) {
+					}
+				}
+			};
+			blocked.start();
+			assertTrue("worker busy", entered.await(5, TimeUnit.SECONDS));
+			// fill the queue behind the busy worker
+			SourceOp nothing = new SourceOp() {
+				public void run(int index, SourceFs source) {
+				}
+			};
+			int queued = 0;
+			for (;;) {
+				FanoutSourceOpDispatcher.Call call = dispatcher.new Call();
+				call.operation = nothing;
+				call.errors = new FilesystemException[1];
+				call.waiter = Thread.currentThread();
+				call.pending = 1;
+				if (!dispatcher.queues[0].offer(call))
+					break;
+				queued++;
+			}
+			assertEquals("queue filled", dispatcher.queues[0].mask + 1, queued);
+
+			final Thread[] ranOn = new Thread[1];
+			dispatcher.dispatch(null, new SourceOp() {
+				public void run(int index, SourceFs source) {
+					ranOn[0] = Thread.currentThread();
+				}
+			}, new FilesystemException[1]);
+			assertSame("run on the caller when the queue is full", Thread.currentThread(), ranOn[0]);
+			release.countDown();
+			blocked.join(5000);
+			assertFalse("blocked call completed", blocked.isAlive());
+		}
+		finally {
+			dispatcher.shutdown();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testNested() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(SOURCES);
+		final FanoutSourceOpDispatcher dispatcher = new FanoutSourceOpDispatcher(sources, 1, 16);
+		try {
+			final AtomicIntegerArray inner = new AtomicIntegerArray(SOURCES * SOURCES);
+			dispatcher.dispatch(null, new SourceOp() {
+				public void run(final int outer, SourceFs source) throws FilesystemException {
+					final Thread worker = Thread.currentThread();
+					dispatcher.dispatch(null, new SourceOp() {
+						public void run(int index, SourceFs source) {
+							if (Thread.currentThread() == worker)
+								inner.incrementAndGet(outer * SOURCES + index);
+						}
+					}, new FilesystemException[SOURCES]);
+				}
+			}, new FilesystemException[SOURCES]);
+			for (int i = 0; i < SOURCES * SOURCES; i++)
+				assertEquals("nested fan-out run inline on the worker", 1, inner.get(i));
+		}
+		finally {
+			dispatcher.shutdown();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(SOURCES);
+		FanoutSourceOpDispatcher dispatcher = new FanoutSourceOpDispatcher(sources, 2, 16);
+		try {
+			dispatcher.shutdown();
+			for (FanoutSourceOpDispatcher.Worker[] workers : dispatcher.workers) {
+				for (FanoutSourceOpDispatcher.Worker worker : workers) {
+					worker.join(5000);
+					assertFalse("worker stopped", worker.isAlive());
+				}
+			}
+			final AtomicIntegerArray runs = new AtomicIntegerArray(SOURCES);
+			dispatcher.dispatch(null, new SourceOp() {
+				public void run(int index, SourceFs source) {
+					runs.incrementAndGet(index);
+				}
+			}, new FilesystemException[SOURCES]);
+			for (int i = 0; i < SOURCES; i++)
+				assertEquals("run on the caller after shutdown", 1, runs.get(i));
+		}
+		finally {
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+}
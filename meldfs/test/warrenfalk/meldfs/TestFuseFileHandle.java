@@ -0,0 +1,37 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestFuseFileHandle {
+
+	@Test
+	public void testReleasedNumberNotReused() {
+		Object data = new Object();
+		FuseFileHandle first = FuseFileHandle.open(data);
+		assertSame("lookup", first, FuseFileHandle.get(first.number));
+		assertSame("release", first, FuseFileHandle.release(first.number));
+		assertNull("released", FuseFileHandle.get(first.number));
+		assertNull("released twice", FuseFileHandle.release(first.number));
+
+		FuseFileHandle second = FuseFileHandle.open(data);
+		assertEquals("slot is reused", (int)first.number, (int)second.number);
+		assertTrue("number is not reused", first.number != second.number);
+		assertNull("stale number", FuseFileHandle.get(first.number));
+		assertSame("new number", second, FuseFileHandle.get(second.number));
+		FuseFileHandle.release(second.number);
+	}
+
+	@Test
+	public void testGrowsBeyondOneChunk() {
+		FuseFileHandle[] handles = new FuseFileHandle[FuseFileHandle.CHUNK_SIZE * 3];
+		for (int i = 0; i < handles.length; i++)
+			handles[i] = FuseFileHandle.open(Integer.valueOf(i));
+		for (int i = 0; i < handles.length; i++)
+			assertEquals("handle " + i, Integer.valueOf(i), FuseFileHandle.get(handles[i].number).data);
+		for (FuseFileHandle handle : handles)
+			assertSame("release", handle, FuseFileHandle.release(handle.number));
+		assertNull("unknown slot", FuseFileHandle.get(Integer.MAX_VALUE));
+	}
+}
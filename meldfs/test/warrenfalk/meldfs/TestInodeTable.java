@@ -0,0 +1,175 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.createSources;
+import static warrenfalk.meldfs.TestNamespaceCatalog.deleteSources;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class TestInodeTable {
+	final static Path root = path(".").normalize();
+
+	@Test
+	public void testStableAcrossRenameAndReload() throws IOException {
+		SourceFs[] sources = createSources(2);
+		try {
+			InodeTable table = new InodeTable(sources, root, 100, 0x10000);
+			assertEquals("paths loaded from empty table", 0, table.load());
+			assertEquals("root", InodeTable.ROOT_INODE, table.assign(root, 0, true, 1, 0, 0));
+			long dir = table.assign(path("a"), 0, true, 1, 0, 0);
+			long file = table.assign(path("a/file"), 1, false, 1, 0, 0);
+			long gone = table.assign(path("gone"), 0, false, 1, 0, 0);
+			assertTrue("distinct numbers", dir != file);
+			assertEquals("same number again", file, table.assign(path("a/file"), 1, false, 1, 0, 0));
+			table.checkpoint();
+			table.moved(path("a"), path("b"));
+			table.unlinked(path("gone"));
+			assertEquals("renamed directory", dir, table.byPath.get(path("b")).longValue());
+			assertEquals("moved with directory", file, table.byPath.get(path("b/file")).longValue());
+			table.close();
+
+			table = new InodeTable(sources, root, 100, 0x10000);
+			assertEquals("paths loaded", 2, table.load());
+			assertEquals("renamed directory after reload", dir, table.byPath.get(path("b")).longValue());
+			assertEquals("moved file after reload", file, table.byPath.get(path("b/file")).longValue());
+			assertNull("unlinked", table.byPath.get(path("gone")));
+			long fresh = table.assign(path("new"), 0, false, 1, 0, 0);
+			assertTrue("numbers are not reused", fresh > gone);
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testHardLinksShareNumber() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 100, 0x10000);
+			table.load();
+			long first = table.assign(path("x"), 0, false, 2, 7, 1234);
+			assertEquals("second name of same file", first, table.assign(path("y"), 0, false, 2, 7, 1234));
+			assertTrue("same real inode on another source", first != table.assign(path("z"), 1, false, 2, 7, 1234));
+			table.linked(path("x"), path("w"), 0, 7, 1234);
+			assertEquals("new link", first, table.byPath.get(path("w")).longValue());
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testUnlinkForgetsRealFile() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 100, 0x10000);
+			table.load();
+			long first = table.assign(path("x"), 0, false, 2, 7, 1234);
+			table.assign(path("y"), 0, false, 2, 7, 1234);
+			table.unlinked(path("x"));
+			assertEquals("other name keeps the real file", first, table.links.get(new InodeTable.LinkKey(0, 7, 1234)).longValue());
+			table.unlinked(path("y"));
+			assertTrue("real file forgotten with its last name", table.links.isEmpty());
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testMoveTreeWithUnnumberedDirectories() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 100, 0x10000);
+			table.load();
+			long dir = table.assign(path("a"), 0, true, 1, 0, 0);
+			long deep = table.assign(path("a/b/c/file"), 0, false, 1, 0, 0);
+			long other = table.assign(path("ab"), 0, false, 1, 0, 0);
+			table.moved(path("a"), path("z"));
+			assertEquals("renamed directory", dir, table.byPath.get(path("z")).longValue());
+			assertEquals("moved beneath unnumbered directories", deep, table.byPath.get(path("z/b/c/file")).longValue());
+			assertNull("old path", table.byPath.get(path("a/b/c/file")));
+			assertEquals("path sharing a prefix", other, table.byPath.get(path("ab")).longValue());
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFullLogKeepsNumbersStable() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 1000, 0x200);
+			table.load();
+			long[] numbers = new long[100];
+			for (int i = 0; i < numbers.length; i++)
+				numbers[i] = table.assign(path("f" + i), 0, false, 1, 0, 0);
+			table.close();
+
+			table = new InodeTable(sources, root, 1000, 0x200);
+			table.load();
+			for (int i = 0; i < numbers.length; i++)
+				assertEquals("number of f" + i + " after reload", numbers[i], table.assign(path("f" + i), 0, false, 1, 0, 0));
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFullLogWaitsForCheckpoint() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 10000, 0x200);
+			table.load();
+			long dir = table.assign(path("dir"), 0, true, 1, 0, 0);
+			long[] numbers = new long[200];
+			for (int i = 0; i < numbers.length; i++)
+				numbers[i] = table.assign(path("dir/sub" + (i % 10) + "/f" + i), 0, false, 1, 0, 0);
+			assertTrue("records wait rather than checkpoint on the caller", table.waiting.size() > 0);
+			assertTrue("checkpoint wanted", table.checkpointWanted);
+			table.moved(path("dir"), path("moved"));
+			table.checkpoint();
+			assertEquals("waiting records appended", 0, table.waiting.size());
+			table.close();
+
+			table = new InodeTable(sources, root, 10000, 0x200);
+			assertEquals("paths loaded", numbers.length + 1, table.load());
+			assertEquals("moved directory", dir, table.byPath.get(path("moved")).longValue());
+			for (int i = 0; i < numbers.length; i++)
+				assertEquals("moved with the directory", numbers[i], table.byPath.get(path("moved/sub" + (i % 10) + "/f" + i)).longValue());
+			assertNull("old path", table.byPath.get(path("dir/sub0/f0")));
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFullTableHashes() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			InodeTable table = new InodeTable(sources, root, 1, 0x10000);
+			table.load();
+			table.assign(path("one"), 0, false, 1, 0, 0);
+			long hashed = table.assign(path("two"), 0, false, 1, 0, 0);
+			assertEquals("hashed number is stable", hashed, table.assign(path("two"), 0, false, 1, 0, 0));
+			assertTrue("hashed numbers are outside the sequence", hashed >= InodeTable.HASHED);
+			table.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+}
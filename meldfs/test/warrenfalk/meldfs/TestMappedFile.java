@@ -0,0 +1,86 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class TestMappedFile {
+	final static int SEGMENT = 4096;
+
+	@Test
+	public void testReadsAcrossSegments() throws IOException {
+		int size = SEGMENT * 5 + 321;
+		Path file = TestReadahead.createFile(size);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedReads mappings = new MappedReads(SEGMENT, SEGMENT * 2, 0);
+			MappedFile mapped = mappings.open(channel, file, size);
+			ByteBuffer buffer = ByteBuffer.allocate(3000);
+			long position = 0;
+			for (;;) {
+				buffer.clear();
+				int read = mapped.read(buffer, position);
+				if (read < 0)
+					break;
+				assertEquals("buffer position", read, buffer.position());
+				TestReadahead.check(buffer, position);
+				position += read;
+			}
+			assertEquals("read to end", size, position);
+			assertTrue("mapped bytes bounded", mappings.mappedBytes <= SEGMENT * 2);
+
+			// the file is unmapped before it can be truncated, and not mapped again until that is done
+			mappings.writing(file);
+			assertEquals("segments dropped", 0, mappings.mappedBytes);
+			channel.truncate(SEGMENT * 2);
+			buffer.clear();
+			assertEquals("unmapped", MappedFile.UNMAPPED, mapped.read(buffer, SEGMENT * 3));
+			assertNull("not mapped while open for writing", mappings.open(channel, file, SEGMENT * 2));
+			mappings.written(file);
+			mapped.close();
+			MappedFile again = mappings.open(channel, file, SEGMENT * 2);
+			assertNotNull("mapped once written", again);
+			buffer.clear();
+			assertEquals("read to truncated end", 100, again.read(buffer, SEGMENT * 2 - 100));
+			again.close();
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testTruncatedOutsideMount() throws IOException {
+		int size = SEGMENT * 5;
+		Path file = TestReadahead.createFile(size);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedReads mappings = new MappedReads(SEGMENT * 8, SEGMENT * 8, 0);
+			MappedFile mapped = mappings.open(channel, file, size);
+			ByteBuffer buffer = ByteBuffer.allocate(SEGMENT);
+			assertEquals("read mapped", SEGMENT, mapped.read(buffer, 0));
+			assertTrue("mapped", mappings.mappedBytes > 0);
+
+			try (FileChannel other = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				other.truncate(SEGMENT * 2);
+			}
+			buffer.clear();
+			assertEquals("unmapped rather than read past the end", MappedFile.UNMAPPED, mapped.read(buffer, SEGMENT * 3));
+			assertEquals("nothing copied", 0, buffer.position());
+			assertEquals("counted", 1, mappings.truncations.get());
+			assertEquals("segments dropped", 0, mappings.mappedBytes);
+			buffer.clear();
+			assertEquals("stays unmapped", MappedFile.UNMAPPED, mapped.read(buffer, 0));
+			assertEquals("counted once", 1, mappings.truncations.get());
+			mapped.close();
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+}
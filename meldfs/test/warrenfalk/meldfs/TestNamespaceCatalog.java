@@ -0,0 +1,226 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.Test;
+
+public class TestNamespaceCatalog {
+
+	@Test
+	public void testReloadFromLog() throws IOException {
+		SourceFs[] sources = createSources(3);
+		try {
+			NamespaceCatalog catalog = new NamespaceCatalog(sources, 0x10000, 100);
+			assertEquals("entries loaded from empty catalog", 0, catalog.load(new NamespaceIndex(100)));
+			catalog.placed(path("a/file"), 0x5, 2, 1000);
+			catalog.placed(path("a/gone"), 0x1, 0, 1000);
+			catalog.removed(path("a/gone"));
+			catalog.striped(path("b/big"), 1, "big_[R1000,5,0,1,1)");
+			catalog.close();
+
+			NamespaceIndex index = new NamespaceIndex(100);
+			catalog = new NamespaceCatalog(sources, 0x10000, 100);
+			assertEquals("entries loaded", 1, catalog.load(index));
+			NamespaceIndex.Entry entry = index.get(path("a/file"));
+			assertNotNull("entry for a/file", entry);
+			assertEquals("source mask", 0x5, entry.sourceMask);
+			assertEquals("freshest", 2, entry.freshest);
+			assertEquals("modification time", 1000, entry.modTime);
+			assertFalse("loaded entry is unverified", entry.verified);
+			assertNull("removed entry", index.get(path("a/gone")));
+			assertEquals("stripe column", "big_[R1000,5,0,1,1)", catalog.getStripeColumns(path("b/big"))[1]);
+			assertNull("no stripe column", catalog.getStripeColumns(path("b/big"))[0]);
+			catalog.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testReloadAfterCheckpoint() throws IOException {
+		SourceFs[] sources = createSources(2);
+		try {
+			NamespaceCatalog catalog = new NamespaceCatalog(sources, 0x10000, 100);
+			catalog.load(new NamespaceIndex(100));
+			catalog.placed(path("d/one"), 0x3, 1, 1000);
+			catalog.placed(path("d/two"), 0x1, 0, 2000);
+			catalog.placed(path("e/three"), 0x2, 1, 3000);
+			catalog.checkpoint();
+			catalog.removedTree(path("d"));
+			catalog.placed(path("d/four"), 0x1, 0, 4000);
+			catalog.close();
+
+			NamespaceIndex index = new NamespaceIndex(100);
+			catalog = new NamespaceCatalog(sources, 0x10000, 100);
+			assertEquals("entries loaded", 2, catalog.load(index));
+			assertNull("removed tree", index.get(path("d/one")));
+			assertNull("removed tree", index.get(path("d/two")));
+			assertEquals("from checkpoint", 3000, index.get(path("e/three")).modTime);
+			assertEquals("from log after checkpoint", 4000, index.get(path("d/four")).modTime);
+			catalog.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testTreeRemovals() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			for (int checkpoint = 0; checkpoint < 2; checkpoint++) {
+				NamespaceCatalog catalog = new NamespaceCatalog(sources, 0x10000, 100);
+				catalog.load(new NamespaceIndex(100));
+				catalog.placed(path("d/old"), 0x1, 0, 1000);
+				catalog.placed(path("d/sub/old"), 0x1, 0, 1000);
+				catalog.placed(path("dd/kept"), 0x1, 0, 1000);
+				catalog.striped(path("d/big"), 0, "big_[R1000,5,0,1,1)");
+				catalog.removedTree(path("d"));
+				catalog.placed(path("d/new"), 0x1, 0, 2000);
+				catalog.placed(path("d/sub/old"), 0x1, 0, 2000);
+				catalog.removedTree(path("d/sub"));
+				catalog.placed(path("d/sub/new"), 0x1, 0, 3000);
+				// replayed either from the log or from a checkpoint
+				if (checkpoint == 1)
+					catalog.checkpoint();
+				catalog.close();
+
+				NamespaceIndex index = new NamespaceIndex(100);
+				catalog = new NamespaceCatalog(sources, 0x10000, 100);
+				assertEquals("entries loaded", 3, catalog.load(index));
+				assertNull("removed with its tree", index.get(path("d/old")));
+				assertNull("removed with a subtree after being placed again", index.get(path("d/sub/old")));
+				assertNotNull("a sibling with a common prefix", index.get(path("dd/kept")));
+				assertEquals("placed after the removal", 2000, index.get(path("d/new")).modTime);
+				assertEquals("placed after the subtree removal", 3000, index.get(path("d/sub/new")).modTime);
+				String[] columns = catalog.getStripeColumns(path("d/big"));
+				assertTrue("stripe column removed with its tree", columns == null || columns[0] == null);
+				catalog.close();
+				deleteSources(sources);
+				sources = createSources(1);
+			}
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testCheckpointEviction() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			NamespaceCatalog catalog = new NamespaceCatalog(sources, 0x10000, 10);
+			catalog.load(new NamespaceIndex(10));
+			for (int i = 0; i < 15; i++)
+				catalog.placed(path("f/" + i), 0x1, 0, i);
+			catalog.checkpoint();
+			assertEquals("paths beyond the index size counted", 5, catalog.getEvicted());
+			catalog.close();
+
+			NamespaceIndex index = new NamespaceIndex(10);
+			catalog = new NamespaceCatalog(sources, 0x10000, 10);
+			assertEquals("entries loaded", 10, catalog.load(index));
+			assertNull("least recently placed dropped", index.get(path("f/0")));
+			assertNotNull("most recently placed kept", index.get(path("f/14")));
+			catalog.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFullLogDropsRecords() throws IOException {
+		SourceFs[] sources = createSources(1);
+		try {
+			NamespaceCatalog catalog = new NamespaceCatalog(sources, 0x100, 100);
+			catalog.load(new NamespaceIndex(100));
+			for (int i = 0; i < 100; i++)
+				catalog.placed(path("f/" + i), 0x1, 0, i);
+			catalog.close();
+
+			NamespaceIndex index = new NamespaceIndex(100);
+			catalog = new NamespaceCatalog(sources, 0x100, 100);
+			int loaded = catalog.load(index);
+			assertTrue("some entries loaded", loaded > 0);
+			assertTrue("some entries dropped", loaded < 100);
+			assertEquals("first entry", 0, index.get(path("f/0")).modTime);
+			catalog.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testPendingRecordsFromAnotherWriter() throws IOException {
+		SourceFs[] sources = createSources(2);
+		try {
+			NamespaceIndex index = new NamespaceIndex(100);
+			NamespaceCatalog owner = new NamespaceCatalog(sources, 0x10000, 100);
+			owner.load(index);
+			owner.placed(path("g/file"), 0x3, 0, 1000);
+			owner.flush();
+
+			// the owner holds the catalog, so this one leaves its records in the pending logs
+			NamespaceCatalog other = new NamespaceCatalog(sources, 0x10000, 100);
+			other.load(new NamespaceIndex(100));
+			other.removed(path("g/file"));
+			other.striped(path("g/file"), 1, "file_[R1000,5,0,1,1)");
+			other.close();
+
+			index.put(path("g/file"), 0, 1000);
+			owner.absorb(index);
+			assertNull("removal applied to the index", index.get(path("g/file")));
+			assertEquals("stripe column", "file_[R1000,5,0,1,1)", owner.getStripeColumns(path("g/file"))[1]);
+			owner.close();
+
+			NamespaceIndex reloaded = new NamespaceIndex(100);
+			owner = new NamespaceCatalog(sources, 0x10000, 100);
+			assertEquals("entries loaded", 0, owner.load(reloaded));
+			assertNull("removal kept in the catalog", reloaded.get(path("g/file")));
+			owner.close();
+		}
+		finally {
+			deleteSources(sources);
+		}
+	}
+
+	static Path path(String vpath) {
+		return FileSystems.getDefault().getPath(vpath);
+	}
+
+	static SourceFs[] createSources(int count) throws IOException {
+		Path[] dirs = new Path[count];
+		for (int i = 0; i < count; i++)
+			dirs[i] = Files.createTempDirectory("meldfs-catalog-" + i);
+		return SourceFs.fromPaths(dirs);
+	}
+
+	static void deleteSources(SourceFs[] sources) throws IOException {
+		for (SourceFs source : sources) {
+			Files.walkFileTree(source.root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+	}
+}
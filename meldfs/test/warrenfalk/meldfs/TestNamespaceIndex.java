@@ -0,0 +1,42 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class TestNamespaceIndex {
+
+	@Test
+	public void testEviction() {
+		NamespaceIndex index = new NamespaceIndex(32);
+		for (int i = 0; i < 32; i++)
+			index.put(path("file" + i), 0, 1000);
+		// keep using one entry, so it survives eviction
+		for (int i = 32; i < 100; i++) {
+			assertNotNull("used entry", index.get(path("file0")));
+			Path vpath = path("file" + i);
+			assertTrue("filled once full", index.fill(vpath, 1, 0, 1000, index.getStamp(vpath)));
+			assertTrue("bounded", index.size() <= 32);
+		}
+		assertNotNull("used entry kept", index.get(path("file0")));
+		assertNotNull("newest entry kept", index.get(path("file99")));
+	}
+
+	@Test
+	public void testStamps() {
+		NamespaceIndex index = new NamespaceIndex(100);
+		Path a = path("a"), b = path("b");
+		assertTrue("a and b have separate stamps", (a.hashCode() & (NamespaceIndex.STAMPS - 1)) != (b.hashCode() & (NamespaceIndex.STAMPS - 1)));
+		long stampA = index.getStamp(a), stampB = index.getStamp(b);
+		index.remove(a);
+		assertFalse("fill after a mutation of the path", index.fill(a, 1, 0, 1000, stampA));
+		assertTrue("fill unaffected by a mutation of another path", index.fill(b, 1, 0, 1000, stampB));
+		Path d = path("d");
+		long stampD = index.getStamp(d);
+		index.removeTree(path("c"));
+		assertFalse("fill after a tree mutation", index.fill(d, 1, 0, 1000, stampD));
+	}
+}
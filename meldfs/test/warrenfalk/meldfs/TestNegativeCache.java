@@ -0,0 +1,88 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class TestNegativeCache {
+
+	@Test
+	public void testExpiry() throws Exception {
+		NegativeCache cache = new NegativeCache(10, 50);
+		cache.put(path("a"));
+		assertTrue("cached", cache.contains(path("a")));
+		Thread.sleep(100);
+		assertFalse("expired", cache.contains(path("a")));
+		assertFalse("expired entry removed", cache.expirations.containsKey(path("a")));
+
+		NegativeCache disabled = new NegativeCache(10, 0);
+		disabled.put(path("a"));
+		assertFalse("no ttl, no caching", disabled.contains(path("a")));
+	}
+
+	@Test
+	public void testBound() throws Exception {
+		NegativeCache cache = new NegativeCache(4, 50);
+		for (int i = 0; i < 8; i++)
+			cache.put(path("file" + i));
+		assertEquals("bounded", 4, cache.expirations.size());
+		assertTrue("first entries kept", cache.contains(path("file0")));
+		assertFalse("new entries not cached while full", cache.contains(path("file7")));
+		// once the old entries expire, they are swept out to make room
+		Thread.sleep(100);
+		cache.put(path("late"));
+		assertTrue("cached after the sweep", cache.contains(path("late")));
+		assertEquals("expired entries swept", 1, cache.expirations.size());
+	}
+
+	@Test
+	public void testInvalidate() {
+		NegativeCache cache = new NegativeCache(10, 60000);
+		cache.put(path("dir"));
+		cache.put(path("dir/file"));
+		cache.put(path("dir/sub/file"));
+		cache.put(path("other"));
+		cache.invalidate(path("dir/file"));
+		assertFalse("path invalidated", cache.contains(path("dir/file")));
+		assertFalse("parent invalidated", cache.contains(path("dir")));
+		assertTrue("other paths kept", cache.contains(path("dir/sub/file")));
+		cache.invalidateTree(path("dir"));
+		assertFalse("everything beneath invalidated", cache.contains(path("dir/sub/file")));
+		assertTrue("other paths kept", cache.contains(path("other")));
+	}
+
+	/** Each way of creating a name through the mount must make a cached absence of it disappear */
+	@Test
+	public void testCreationThroughMount() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		try {
+			Files.createDirectories(sources[0].root.resolve("dir"));
+			Files.createFile(sources[0].root.resolve("dir/existing"));
+			String[] names = { "created", "made", "symlinked", "linked", "renamed", "renamedDir" };
+			for (String name : names)
+				assertEquals(name + " absent", -1, meldfs.getFreshestSource(path("dir/" + name)));
+			for (String name : names)
+				assertTrue(name + " cached as absent", meldfs.negatives.contains(path("dir/" + name)));
+
+			meldfs.create(path("dir/created"), true, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)).close();
+			meldfs.mkdir(path("dir/made"), 0755);
+			meldfs.symlink(path("existing"), path("dir/symlinked"));
+			meldfs.link(path("dir/existing"), path("dir/linked"));
+			meldfs.rename(path("dir/created"), path("dir/renamed"));
+			meldfs.rename(path("dir/made"), path("dir/renamedDir"));
+			for (String name : new String[] { "symlinked", "linked", "renamed", "renamedDir" })
+				assertTrue(name + " found", meldfs.getFreshestSource(path("dir/" + name)) != -1);
+			assertFalse("parent not cached as absent", meldfs.negatives.contains(path("dir")));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import org.junit.Test;
+
+public class TestPathIntern {
+
+	@Test
+	public void testEviction() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		try {
+			PathIntern paths = new PathIntern(sources, path(""), 32);
+			PathIntern.Node used = null;
+			for (int i = 0; i < 200; i++) {
+				// keep using one path, so it survives eviction
+				assertEquals("resolved", sources[1].root.resolve("dir/used"), paths.resolve(1, path("dir/used")));
+				if (used == null)
+					used = paths.nodes.get(path("dir/used"));
+				assertEquals("resolved", sources[0].root.resolve("dir/file" + i), paths.resolve(0, path("dir/file" + i)));
+				assertTrue("bounded", paths.size() <= 32 + 1);
+			}
+			assertSame("used path kept", used, paths.nodes.get(path("dir/used")));
+			assertNotNull("newest path kept", paths.nodes.get(path("dir/file199")));
+		}
+		finally {
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class TestPlacementPolicies {
+
+	@Test
+	public void testFreshestAvoidsFullSource() {
+		SourceCapacity capacity = createCapacity(new long[] { 100, 100, 100 }, new long[] { 50, 2, 40 });
+		PlacementPolicy policy = PlacementPolicies.create("freshest", capacity, 5);
+		assertEquals("freshest parent with room", 0, policy.choose(path("f"), parents(3, 0, 1), new long[] { 20, 10, 0 }));
+		assertEquals("freshest parent is full", 0, policy.choose(path("f"), parents(3, 0, 1), new long[] { 10, 20, 0 }));
+		assertEquals("no parent", -1, policy.choose(path("f"), parents(3), new long[3]));
+	}
+
+	@Test
+	public void testMostFree() {
+		SourceCapacity capacity = createCapacity(new long[] { 100, 100, 100 }, new long[] { 50, 2, 70 });
+		PlacementPolicy policy = PlacementPolicies.create("most_free", capacity, 5);
+		assertEquals("most free", 2, policy.choose(path("f"), parents(3, 0), new long[3]));
+	}
+
+	@Test
+	public void testAllFull() {
+		SourceCapacity capacity = createCapacity(new long[] { 100, 100, 100 }, new long[] { 1, 3, 2 });
+		PlacementPolicy policy = PlacementPolicies.create("round_robin", capacity, 5);
+		assertEquals("most free when all are full", 1, policy.choose(path("f"), parents(3, 0), new long[3]));
+	}
+
+	@Test
+	public void testWeightedRoundRobin() {
+		SourceCapacity capacity = createCapacity(new long[] { 4000L << 20, 4000L << 20, 4000L << 20 }, new long[] { 3000L << 20, 1000L << 20, 10L << 20 });
+		PlacementPolicy policy = PlacementPolicies.create("round_robin", capacity, 5);
+		int[] counts = new int[3];
+		for (int i = 0; i < 400; i++)
+			counts[policy.choose(path("f"), parents(3, 0), new long[3])]++;
+		assertEquals("share of source 0", 300, counts[0]);
+		assertEquals("share of source 1", 100, counts[1]);
+		assertEquals("share of full source", 0, counts[2]);
+	}
+
+	@Test
+	public void testLeastRecent() {
+		SourceCapacity capacity = createCapacity(new long[] { 100, 100, 100 }, new long[] { 50, 50, 50 });
+		PlacementPolicy policy = PlacementPolicies.create("least_recent", capacity, 5);
+		for (int i = 0; i < 6; i++)
+			assertEquals("choice " + i, i % 3, policy.choose(path("f"), parents(3, 0), new long[3]));
+	}
+
+	static SourceCapacity createCapacity(long[] total, long[] usable) {
+		SourceFs[] sources = new SourceFs[total.length];
+		for (int i = 0; i < sources.length; i++)
+			sources[i] = new SourceFs(path("source" + i));
+		SourceCapacity capacity = new SourceCapacity(sources);
+		for (int i = 0; i < sources.length; i++)
+			capacity.snapshots[i] = new SourceCapacity.Snapshot(total[i], usable[i], usable[i]);
+		return capacity;
+	}
+
+	static Path[] parents(int count, int... present) {
+		Path[] parents = new Path[count];
+		for (int i : present)
+			parents[i] = path("source" + i + "/dir");
+		return parents;
+	}
+
+	static Path path(String path) {
+		return FileSystems.getDefault().getPath(path);
+	}
+}
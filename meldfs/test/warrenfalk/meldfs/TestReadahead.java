@@ -0,0 +1,109 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class TestReadahead {
+	final static int BLOCK = 4096;
+
+	@Test
+	public void testSequentialAndRandomReads() throws IOException {
+		int size = BLOCK * 10 + 123;
+		Path file = createFile(size);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		BufferPool pool = new BufferPool(BLOCK, BLOCK * 4);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Readahead readahead = new Readahead(channel, pool, executor, BLOCK * 3);
+			ByteBuffer buffer = ByteBuffer.allocate(1000);
+			long position = 0;
+			for (;;) {
+				buffer.clear();
+				int read = readahead.read(buffer, position, 0);
+				if (read < 0)
+					break;
+				assertEquals("buffer position", read, buffer.position());
+				check(buffer, position);
+				position += read;
+			}
+			assertEquals("read to end", size, position);
+			assertTrue("read ahead", pool.allocated.get() > 0);
+
+			// random access
+			buffer.clear();
+			assertEquals("random read", 1000, readahead.read(buffer, BLOCK * 5 + 17, 0));
+			check(buffer, BLOCK * 5 + 17);
+
+			// a write after blocks were read ahead must be seen
+			for (position = 0; position < BLOCK * 3; position += 1000) {
+				buffer.clear();
+				readahead.read(buffer, position, 0);
+			}
+			channel.write(ByteBuffer.wrap(new byte[] { 99 }), position + 10);
+			buffer.clear();
+			readahead.read(buffer, position, 1);
+			assertEquals("written byte", 99, buffer.get(10));
+
+			readahead.close();
+		}
+		finally {
+			executor.shutdown();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testOutOfOrderReadsKeepWindow() throws IOException {
+		int size = BLOCK * 10;
+		Path file = createFile(size);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		BufferPool pool = new BufferPool(BLOCK, BLOCK * 8);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Readahead readahead = new Readahead(channel, pool, executor, BLOCK * 4);
+			ByteBuffer buffer = ByteBuffer.allocate(1000);
+			long position;
+			for (position = 0; position < 3000; position += 1000) {
+				buffer.clear();
+				readahead.read(buffer, position, 0);
+			}
+			assertFalse("reading ahead", readahead.blocks.isEmpty());
+			// the next two reads arrive the wrong way round
+			buffer.clear();
+			assertEquals("later read", 1000, readahead.read(buffer, position + 1000, 0));
+			check(buffer, position + 1000);
+			buffer.clear();
+			assertEquals("earlier read", 1000, readahead.read(buffer, position, 0));
+			check(buffer, position);
+			assertTrue("still sequential", readahead.sequentialReads >= Readahead.SEQUENTIAL_THRESHOLD);
+			assertFalse("window kept", readahead.blocks.isEmpty());
+			readahead.close();
+		}
+		finally {
+			executor.shutdown();
+			Files.delete(file);
+		}
+	}
+
+	static Path createFile(int size) throws IOException {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte)(i % 251);
+		Path file = Files.createTempFile("meldfs-readahead", null);
+		Files.write(file, data);
+		return file;
+	}
+
+	static void check(ByteBuffer buffer, long position) {
+		for (int i = 0; i < buffer.position(); i++)
+			assertEquals("byte at " + (position + i), (byte)((position + i) % 251), buffer.get(i));
+	}
+}
@@ -0,0 +1,227 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import warrenfalk.fuselaj.Stat;
+
+public class TestSourceWatcher {
+
+	@Test
+	public void testInvalidation() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		final MeldFs meldfs = TestStripedNamespace.open(sources);
+		final SourceWatcher watcher = new SourceWatcher(meldfs, sources, 100, 500);
+		try {
+			Path dir = sources[1].root.resolve("dir");
+			Files.createDirectories(dir);
+			Files.createFile(dir.resolve("file"));
+			watcher.registerAll();
+			assertTrue("existing directory watched", watcher.keys.containsKey(dir));
+
+			// a path cached as absent appears
+			assertEquals("absent", -1, meldfs.getFreshestSource(path("dir/new")));
+			Files.createFile(dir.resolve("new"));
+			processUntil(watcher, new Check() {
+				public boolean done() {
+					return !meldfs.negatives.contains(path("dir/new"));
+				}
+			});
+			assertEquals("created file found", 1, meldfs.getFreshestSource(path("dir/new")));
+
+			// an indexed path disappears
+			assertEquals("found", 1, meldfs.getFreshestSource(path("dir/file")));
+			assertNotNull("indexed", meldfs.namespace.get(path("dir/file")));
+			Files.delete(dir.resolve("file"));
+			processUntil(watcher, new Check() {
+				public boolean done() {
+					return meldfs.namespace.get(path("dir/file")) == null;
+				}
+			});
+
+			// a new directory is watched along with whatever was put in it already
+			final Path sub = dir.resolve("sub");
+			Files.createDirectories(sub.resolve("deeper"));
+			processUntil(watcher, new Check() {
+				public boolean done() {
+					return watcher.keys.containsKey(sub.resolve("deeper"));
+				}
+			});
+			assertTrue("new directory watched", watcher.keys.containsKey(sub));
+		}
+		finally {
+			watcher.close();
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testDirectoryBound() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		SourceWatcher watcher = new SourceWatcher(meldfs, sources, 3, 500);
+		try {
+			for (int i = 0; i < 5; i++)
+				Files.createDirectories(sources[0].root.resolve("dir" + i));
+			watcher.registerAll();
+			assertEquals("bounded", 3, watcher.watched.size());
+			assertTrue("warned", watcher.warnedFull);
+		}
+		finally {
+			watcher.close();
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testOverflowRescans() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		SourceWatcher watcher = new SourceWatcher(meldfs, sources, 100, 500);
+		try {
+			Files.createDirectories(sources[0].root.resolve("dir"));
+			Files.createFile(sources[0].root.resolve("dir/file"));
+			watcher.registerAll();
+			meldfs.getFreshestSource(path("dir/file"));
+			meldfs.getFreshestSource(path("dir/missing"));
+			// created while events were being lost
+			Files.createDirectories(sources[0].root.resolve("lost"));
+			watcher.process(new FakeKey(event(StandardWatchEventKinds.OVERFLOW, null)));
+			assertEquals("index cleared", 0, meldfs.namespace.size());
+			assertFalse("negative cache cleared", meldfs.negatives.contains(path("dir/missing")));
+			assertTrue("directories registered again", watcher.keys.containsKey(sources[0].root.resolve("dir")));
+			assertTrue("directory created meanwhile registered", watcher.keys.containsKey(sources[0].root.resolve("lost")));
+		}
+		finally {
+			watcher.close();
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testOwnChangesIgnored() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		MeldFs meldfs = TestStripedNamespace.open(sources);
+		SourceWatcher watcher = new SourceWatcher(meldfs, sources, 100, 60000);
+		try {
+			Path dir = sources[0].root.resolve("dir");
+			Files.createDirectories(dir);
+			Files.write(dir.resolve("a"), new byte[1]);
+			Files.write(dir.resolve("b"), new byte[1]);
+			Files.write(dir.resolve("mine"), new byte[1]);
+			FakeKey key = new FakeKey();
+			watcher.watched.put(key, new SourceWatcher.Watched(0, dir, path("dir")));
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			long[] stamps = new long[3];
+			String[] names = { "a", "b", "mine" };
+			for (int i = 0; i < names.length; i++) {
+				meldfs.statFreshest(path("dir/" + names[i]), stat);
+				stamps[i] = meldfs.attributes.getStamp(path("dir/" + names[i]));
+			}
+
+			// repeated modifications of a path reported together are handled once
+			key.events.addAll(Arrays.asList(modify("a"), modify("b"), modify("a"), modify("a")));
+			watcher.process(key);
+			assertEquals("coalesced", 2, watcher.coalesced);
+			assertTrue("a invalidated", meldfs.attributes.getStamp(path("dir/a")) != stamps[0]);
+			assertTrue("b invalidated", meldfs.attributes.getStamp(path("dir/b")) != stamps[1]);
+
+			// a path changed through meldfs is left alone
+			watcher.changing(path("dir/mine"));
+			long stamp = meldfs.attributes.getStamp(path("dir/mine"));
+			meldfs.getFreshestSource(path("dir/mine"));
+			key.events.addAll(Arrays.asList(modify("mine"), event(StandardWatchEventKinds.ENTRY_CREATE, path("mine"))));
+			watcher.process(key);
+			assertEquals("ignored", 2, watcher.ignored);
+			assertEquals("attributes left alone", stamp, meldfs.attributes.getStamp(path("dir/mine")));
+			assertNotNull("index entry left alone", meldfs.namespace.get(path("dir/mine")));
+		}
+		finally {
+			watcher.close();
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	/** A condition to wait for while processing events */
+	interface Check {
+		boolean done() throws Exception;
+	}
+
+	private static void processUntil(SourceWatcher watcher, Check check) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!check.done()) {
+			assertTrue("events arrived in time", System.currentTimeMillis() < deadline);
+			WatchKey key = watcher.service.poll(100, TimeUnit.MILLISECONDS);
+			if (key != null)
+				watcher.process(key);
+		}
+	}
+
+	static WatchEvent<Path> modify(String name) {
+		return event(StandardWatchEventKinds.ENTRY_MODIFY, path(name));
+	}
+
+	static <T> WatchEvent<T> event(final WatchEvent.Kind<T> kind, final T context) {
+		return new WatchEvent<T>() {
+			public Kind<T> kind() {
+				return kind;
+			}
+
+			public int count() {
+				return 1;
+			}
+
+			public T context() {
+				return context;
+			}
+		};
+	}
+
+	/** A watch key whose events are supplied by the test */
+	static class FakeKey implements WatchKey {
+		final ArrayList<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>();
+
+		FakeKey(WatchEvent<?>...events) {
+			this.events.addAll(Arrays.asList(events));
+		}
+
+		public boolean isValid() {
+			return true;
+		}
+
+		public List<WatchEvent<?>> pollEvents() {
+			ArrayList<WatchEvent<?>> polled = new ArrayList<WatchEvent<?>>(events);
+			events.clear();
+			return polled;
+		}
+
+		public boolean reset() {
+			return true;
+		}
+
+		public void cancel() {
+		}
+
+		public Watchable watchable() {
+			return null;
+		}
+	}
+}
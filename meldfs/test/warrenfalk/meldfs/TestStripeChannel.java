@@ -4,19 +4,34 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import warrenfalk.reedsolomon.ReedSolomonCodingDomain;
+
 public class TestStripeChannel {
 
 	@Test
@@ -83,6 +98,360 @@ public class TestStripeChannel {
 		assertEquals("return value of read() after EOF", -1, returnVal);
 	}
 	
+	@Test
+	public void testReadByteBufferArray() throws IOException {
+		long testSize = 26;
+		ExecutorService pool = Executors.newCachedThreadPool();
+		TestColumn[] testColumns = createTestColumns(testSize, 3, 5, 5);
+		StripeChannel subject = new StripeChannel(pool, testSize, 3, 5, testColumns, -1);
+		ByteBuffer[] dsts = { ByteBuffer.allocate(7), ByteBuffer.allocate(0), ByteBuffer.allocate(12), ByteBuffer.allocate(10) };
+		assertEquals("return value of read()", testSize, subject.read(dsts));
+		assertEquals("dsts[0] position after read()", 7, dsts[0].position());
+		assertEquals("dsts[2] position after read()", 12, dsts[2].position());
+		assertEquals("dsts[3] position after read()", 7, dsts[3].position());
+		assertEquals("channel position after read()", testSize, subject.position());
+		assertEquals("column[2] position after read()", testColumns[2].offset, 6);
+		assertEquals("return value of read() after EOF", -1, subject.read(dsts));
+	}
+	
+	@Test
+	public void testDegradedReads() throws Exception {
+		int blockSize = 64, dataCount = 4, checksumCount = 2;
+		int size = blockSize * dataCount * 30 + 77;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = stripe(file, blockSize, dataCount, checksumCount);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			// lose one data column, then two
+			long[] validMasks = { 0x3D, 0x39 };
+			for (long validMask : validMasks) {
+				ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+				CountedColumn[] counted = new CountedColumn[dataCount];
+				for (int i = 0; i < columns.length; i++) {
+					if (0 == (validMask & (1L << i)))
+						continue;
+					channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+					if (i < dataCount)
+						channels[i] = counted[i] = new CountedColumn((FileChannel)channels[i]);
+				}
+				try (StripeChannel subject = new StripeChannel(pool, size, dataCount, blockSize, channels, validMask)) {
+					ByteBuffer dst = ByteBuffer.allocate(blockSize * 5 + 3);
+					Random random = new Random(validMask);
+					for (int i = 0; i < 200; i++) {
+						long position = random.nextInt(size);
+						dst.clear();
+						int read = subject.read(dst, position);
+						assertEquals("read at " + position, Math.min(dst.capacity(), size - position), read);
+						TestReadahead.check(dst, position);
+					}
+				}
+				// the surviving data columns are read once for both the read and the reconstruction
+				for (CountedColumn column : counted)
+					if (column != null)
+						assertTrue("surviving data column read once per read", column.reads.get() <= 200);
+			}
+		}
+		finally {
+			pool.shutdown();
+			Files.delete(file);
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	@Test
+	public void testHedgedReads() throws Exception {
+		final int blockSize = 64, dataCount = 4, checksumCount = 2;
+		final int size = blockSize * dataCount * 30 + 77;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = stripe(file, blockSize, dataCount, checksumCount);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		CountDownLatch stall = new CountDownLatch(1);
+		try {
+			ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+			for (int i = 0; i < columns.length; i++)
+				channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+			// column 1 doesn't answer until the end of the test
+			channels[1] = new StalledColumn((FileChannel)channels[1], stall);
+			try (final StripeChannel subject = new StripeChannel(pool, size, dataCount, blockSize, channels, -1).hedge(4, 5)) {
+				Future<Void> reads = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						ByteBuffer dst = ByteBuffer.allocate(blockSize * 5 + 3);
+						Random random = new Random(0);
+						for (int i = 0; i < 50; i++) {
+							long position = random.nextInt(size);
+							dst.clear();
+							int read = subject.read(dst, position);
+							assertEquals("read at " + position, Math.min(dst.capacity(), size - position), read);
+							TestReadahead.check(dst, position);
+						}
+						return null;
+					}
+				});
+				try {
+					reads.get(10, TimeUnit.SECONDS);
+				}
+				catch (TimeoutException e) {
+					fail("reads waited for the stalled column");
+				}
+				stall.countDown();
+			}
+		}
+		finally {
+			stall.countDown();
+			pool.shutdown();
+			Files.delete(file);
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	@Test
+	public void testStreamedReads() throws Exception {
+		int blockSize = 64, dataCount = 3, checksumCount = 1;
+		int size = blockSize * dataCount * 40 + 77;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = stripe(file, blockSize, dataCount, checksumCount);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			// buffers that don't line up with blocks, and a pool too small to stream
+			long[] budgets = { 100 * dataCount * 3, 0 };
+			for (long budget : budgets) {
+				BufferPool buffers = new BufferPool(100, budget);
+				ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+				for (int i = 0; i < dataCount; i++)
+					channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+				try (StripeChannel subject = new StripeChannel(pool, size, dataCount, blockSize, channels, -1).stream(buffers, 3)) {
+					ByteBuffer dst = ByteBuffer.allocate(77);
+					// from the start to the end, then again from the middle
+					long[] starts = { 0, size / 2 + 5 };
+					for (long start : starts) {
+						for (long position = start; position < size; ) {
+							dst.clear();
+							int read = subject.read(dst, position);
+							assertEquals("read at " + position, Math.min(dst.capacity(), size - position), read);
+							TestReadahead.check(dst, position);
+							position += read;
+						}
+					}
+					dst.clear();
+					assertEquals("end of file", -1, subject.read(dst, size));
+					assertEquals("streamed", budget > 0, buffers.getInUse() > 0);
+				}
+				assertEquals("buffers returned to the pool", 0, buffers.getInUse());
+			}
+		}
+		finally {
+			pool.shutdown();
+			Files.delete(file);
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	@Test
+	public void testStreamLimit() throws Exception {
+		int blockSize = 64, dataCount = 3, checksumCount = 1;
+		int size = blockSize * dataCount * 40 + 77;
+		Path file = TestReadahead.createFile(size);
+		Path[] columns = stripe(file, blockSize, dataCount, checksumCount);
+		ExecutorService pool = Executors.newCachedThreadPool();
+		final AtomicInteger threads = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				threads.incrementAndGet();
+				return new Thread(r);
+			}
+		};
+		Semaphore streams = new Semaphore(1);
+		try {
+			BufferPool buffers = new BufferPool(100, 100 * dataCount * 3 * 2);
+			StripeChannel[] subjects = new StripeChannel[2];
+			for (int s = 0; s < subjects.length; s++) {
+				ScatteringByteChannel[] channels = new ScatteringByteChannel[columns.length];
+				for (int i = 0; i < dataCount; i++)
+					channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+				subjects[s] = new StripeChannel(pool, size, dataCount, blockSize, channels, -1).stream(buffers, 3, factory, streams);
+			}
+			ByteBuffer dst = ByteBuffer.allocate(77);
+			for (int s = 0; s < subjects.length; s++) {
+				for (long position = 0; position < size; ) {
+					dst.clear();
+					int read = subjects[s].read(dst, position);
+					assertEquals("read at " + position, Math.min(dst.capacity(), size - position), read);
+					TestReadahead.check(dst, position);
+					position += read;
+				}
+			}
+			assertEquals("only one stream started, with threads from the factory", dataCount, threads.get());
+			assertEquals("no permits left", 0, streams.availablePermits());
+			subjects[0].close();
+			assertEquals("permit returned on close", 1, streams.availablePermits());
+			for (long position = 0; position < 77 * 3; position += 77) {
+				dst.clear();
+				subjects[1].read(dst, position);
+			}
+			assertEquals("second stream started once the first closed", dataCount * 2, threads.get());
+			subjects[1].close();
+			assertEquals("buffers returned to the pool", 0, buffers.getInUse());
+		}
+		finally {
+			pool.shutdown();
+			Files.delete(file);
+			for (Path column : columns)
+				Files.delete(column);
+		}
+	}
+
+	/** Counts the positional reads of a column that return data */
+	static class CountedColumn extends StalledColumn {
+		final AtomicInteger reads = new AtomicInteger();
+
+		CountedColumn(FileChannel channel) {
+			super(channel, new CountDownLatch(0));
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			int bytes = super.read(dst, position);
+			if (bytes > 0)
+				reads.incrementAndGet();
+			return bytes;
+		}
+	}
+
+	/** A column whose positional reads wait for a latch */
+	static class StalledColumn extends FileChannel {
+		final FileChannel channel;
+		final CountDownLatch stall;
+
+		StalledColumn(FileChannel channel, CountDownLatch stall) {
+			this.channel = channel;
+			this.stall = stall;
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			try {
+				stall.await();
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			return channel.read(dst, position);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return channel.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return channel.write(srcs, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return channel.transferFrom(src, position, count);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return channel.write(src, position);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+
+	/** Stripes <code>file</code> into temporary column files, with Reed-Solomon checksums */
+	static Path[] stripe(Path file, int blockSize, int dataCount, int checksumCount) throws IOException, InterruptedException {
+		final ReedSolomonCodingDomain.Coder coder = new ReedSolomonCodingDomain(dataCount, checksumCount).getChecksumCoder();
+		ChannelStriper striper = new ChannelStriper(new StripeCoder() {
+			@Override
+			public int calculate(ByteBuffer[] columns, int calcMask) {
+				return coder.calculate(columns, calcMask);
+			}
+		}, blockSize, dataCount, checksumCount, 8);
+		Path[] columns = new Path[dataCount + checksumCount];
+		FileChannel[] outputs = new FileChannel[columns.length];
+		try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = Files.createTempFile("meldfs-column-" + i, null);
+				outputs[i] = FileChannel.open(columns[i], StandardOpenOption.WRITE);
+			}
+			striper.stripe(input, outputs);
+		}
+		finally {
+			for (FileChannel output : outputs)
+				if (output != null)
+					output.close();
+		}
+		return columns;
+	}
+
 	TestColumn[] createTestColumns(long totalSize, int dataSize, int blockSize, int count) {
 		long fullBlockCount = totalSize / blockSize;
 		long blocksMin = fullBlockCount / dataSize;
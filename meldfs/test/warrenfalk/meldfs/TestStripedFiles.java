@@ -0,0 +1,132 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TestStripedFiles {
+	final static int BLOCK = 16;
+	final static int DATA = 3;
+	final static int CHECKSUM = 1;
+
+	@Test
+	public void testFindAndReadStripedFile() throws IOException {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			int size = BLOCK * DATA * 20 + 21;
+			Path vdir = TestNamespaceCatalog.path("dir");
+			Path[] columns = createColumns(sources, vdir, "file", size);
+			Files.createFile(columns[0].resolveSibling("other_[R10,5,0,3,1"));
+
+			StripedFiles stripes = new StripedFiles(sources, TestNamespaceCatalog.path(""), 16, 60000);
+			StripedFiles.Striped striped = stripes.get(vdir.resolve("file"));
+			assertNotNull("found", striped);
+			assertEquals("size", size, striped.getSize());
+			assertTrue("complete", striped.isComplete());
+			assertEquals("column source", 1, striped.columnSources[1]);
+			assertEquals("names", 1, stripes.names(vdir).size());
+			assertNull("not striped", stripes.get(vdir.resolve("other")));
+
+			// positioned reads, out of order, of the reassembled file
+			ScatteringByteChannel[] channels = new ScatteringByteChannel[DATA + CHECKSUM];
+			for (int i = 0; i < DATA; i++)
+				channels[i] = FileChannel.open(striped.columns[i], StandardOpenOption.READ);
+			try (StripeChannel channel = new StripeChannel(executor, size, DATA, BLOCK, channels, (1L << DATA) - 1)) {
+				ByteBuffer buffer = ByteBuffer.allocate(100);
+				long[] positions = { 500, 0, 7, 100, size - 50, BLOCK * DATA, 499 };
+				for (long position : positions) {
+					buffer.clear();
+					channel.position(position);
+					int read = channel.read(buffer);
+					assertEquals("read at " + position, Math.min(100, size - position), read);
+					TestReadahead.check(buffer, position);
+				}
+				buffer.clear();
+				assertEquals("end of file", -1, channel.position(size).read(buffer));
+			}
+
+			// the listing is kept until the stripe directories change
+			Files.delete(columns[2]);
+			assertTrue("still complete", stripes.get(vdir.resolve("file")).isComplete());
+			stripes.invalidate(vdir.resolve("file"));
+			assertFalse("incomplete", stripes.get(vdir.resolve("file")).isComplete());
+		}
+		finally {
+			executor.shutdown();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testConcurrentPositionalReads() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			final int size = BLOCK * DATA * 100 + 5;
+			Path[] columns = createColumns(sources, TestNamespaceCatalog.path(""), "file", size);
+			ScatteringByteChannel[] channels = new ScatteringByteChannel[DATA + CHECKSUM];
+			for (int i = 0; i < DATA; i++)
+				channels[i] = FileChannel.open(columns[i], StandardOpenOption.READ);
+			try (final StripeChannel channel = new StripeChannel(executor, size, DATA, BLOCK, channels, (1L << DATA) - 1)) {
+				ArrayList<Future<?>> readers = new ArrayList<Future<?>>();
+				for (int t = 0; t < 4; t++) {
+					final Random random = new Random(t);
+					readers.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							ByteBuffer buffer = ByteBuffer.allocate(BLOCK * 7);
+							for (int i = 0; i < 500; i++) {
+								long position = random.nextInt(size);
+								buffer.clear();
+								int read = channel.read(buffer, position);
+								assertEquals("read at " + position, Math.min(buffer.capacity(), size - position), read);
+								TestReadahead.check(buffer, position);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<?> reader : readers)
+					reader.get();
+				assertEquals("positional reads leave the position alone", 0, channel.position());
+			}
+		}
+		finally {
+			executor.shutdown();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	/** Writes the data columns of a file of <code>size</code> bytes, and an empty checksum column, alternating between sources */
+	static Path[] createColumns(SourceFs[] sources, Path vdir, String name, int size) throws IOException {
+		ByteArrayOutputStream[] data = new ByteArrayOutputStream[DATA + CHECKSUM];
+		for (int i = 0; i < data.length; i++)
+			data[i] = new ByteArrayOutputStream();
+		for (int i = 0; i < size; i++)
+			data[(i / BLOCK) % DATA].write(i % 251);
+		Path[] columns = new Path[data.length];
+		for (int i = 0; i < data.length; i++) {
+			Path dir = sources[i % sources.length].root.resolve(StripedFiles.DIRECTORY).resolve(vdir);
+			Files.createDirectories(dir);
+			String hex = Integer.toHexString(BLOCK) + "," + Integer.toHexString(size) + "," + i + "," + DATA + "," + CHECKSUM;
+			columns[i] = Files.write(dir.resolve(name + "_[R" + hex + ")"), data[i].toByteArray());
+		}
+		return columns;
+	}
+}
@@ -0,0 +1,218 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+import static warrenfalk.meldfs.TestNamespaceCatalog.path;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Test;
+
+import warrenfalk.fuselaj.FilesystemException;
+import warrenfalk.fuselaj.Stat;
+
+public class TestStripedNamespace {
+	final static int SIZE = TestStripedFiles.BLOCK * TestStripedFiles.DATA * 4 + 5;
+
+	@Test
+	public void testGetattrRenameAndUnlink() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = open(sources);
+		try {
+			Path dir = path("dir"), other = path("other");
+			for (SourceFs source : sources) {
+				Files.createDirectories(source.root.resolve(dir));
+				Files.createDirectories(source.root.resolve(other));
+			}
+			TestStripedFiles.createColumns(sources, dir, "file", SIZE);
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			assertTrue("striped file found", meldfs.statFreshest(dir.resolve("file"), stat) != -1);
+			assertEquals("size of the original", SIZE, stat.getSize());
+			assertEquals("absent", -1, meldfs.statFreshest(dir.resolve("missing"), stat));
+			assertEquals("still absent", -1, meldfs.statFreshest(dir.resolve("missing"), stat));
+
+			// every column moves, and is listed under the new name only
+			meldfs.rename(dir.resolve("file"), other.resolve("moved"));
+			assertEquals("old name gone", -1, meldfs.statFreshest(dir.resolve("file"), stat));
+			assertTrue("new name found", meldfs.statFreshest(other.resolve("moved"), stat) != -1);
+			assertFalse("old name not listed", meldfs.stripes.names(dir).contains("file"));
+			assertTrue("new name listed", meldfs.stripes.names(other).contains("moved"));
+			assertTrue("all columns moved", meldfs.getStriped(other.resolve("moved")).isComplete());
+
+			// renaming over another striped file replaces it
+			TestStripedFiles.createColumns(sources, dir, "second", SIZE + 1);
+			meldfs.rename(other.resolve("moved"), dir.resolve("second"));
+			assertEquals("replaced", SIZE, meldfs.getStriped(dir.resolve("second")).getSize());
+			assertEquals("columns of the replaced file deleted", TestStripedFiles.DATA + TestStripedFiles.CHECKSUM, countColumns(sources, dir));
+			assertTrue("nothing left behind", meldfs.stripes.names(other).isEmpty());
+
+			// renaming a directory takes its striped files along
+			meldfs.rename(dir, path("renamed"));
+			assertEquals("gone with the directory", -1, meldfs.statFreshest(dir.resolve("second"), stat));
+			assertTrue("found in the renamed directory", meldfs.statFreshest(path("renamed/second"), stat) != -1);
+			assertTrue("listed in the renamed directory", meldfs.stripes.names(path("renamed")).contains("second"));
+
+			meldfs.rm(path("renamed/second"));
+			assertEquals("unlinked", -1, meldfs.statFreshest(path("renamed/second"), stat));
+			assertTrue("not listed once unlinked", meldfs.stripes.names(path("renamed")).isEmpty());
+			assertEquals("columns deleted", 0, countColumns(sources, path("renamed")));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFailedRenameRollsBack() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = open(sources);
+		try {
+			Path dir = path("dir");
+			for (SourceFs source : sources)
+				Files.createDirectories(source.root.resolve(dir));
+			TestStripedFiles.createColumns(sources, dir, "file", SIZE);
+			// the columns on the second source can't be moved there
+			Files.createDirectories(sources[1].root.resolve(StripedFiles.DIRECTORY));
+			Files.createFile(sources[1].root.resolve(StripedFiles.DIRECTORY).resolve("blocked"));
+			try {
+				meldfs.rename(dir.resolve("file"), path("blocked/file"));
+				fail("rename should fail");
+			}
+			catch (FilesystemException expected) {
+			}
+			StripedFiles.Striped striped = meldfs.getStriped(dir.resolve("file"));
+			assertNotNull("still there", striped);
+			assertTrue("columns moved back", striped.isComplete());
+			assertEquals("every column moved back", TestStripedFiles.DATA + TestStripedFiles.CHECKSUM, countColumns(sources, dir));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testFileRenameKeepsIndex() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = open(sources);
+		try {
+			Files.createDirectories(sources[0].root.resolve("dir"));
+			Files.createFile(sources[0].root.resolve("dir/file"));
+			Files.createFile(sources[0].root.resolve("dir/other"));
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			assertTrue("other found", meldfs.statFreshest(path("dir/other"), stat) != -1);
+			assertNotNull("other indexed", meldfs.namespace.get(path("dir/other")));
+			meldfs.rename(path("dir/file"), path("dir/moved"));
+			assertNotNull("other still indexed", meldfs.namespace.get(path("dir/other")));
+			assertEquals("old name gone", -1, meldfs.statFreshest(path("dir/file"), stat));
+			assertTrue("new name found", meldfs.statFreshest(path("dir/moved"), stat) != -1);
+
+			meldfs.rename(path("dir"), path("renamed"));
+			assertNull("directory rename drops the entries beneath", meldfs.namespace.get(path("dir/other")));
+			assertTrue("found in the renamed directory", meldfs.statFreshest(path("renamed/moved"), stat) != -1);
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testStripedLookupSkipsSources() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = open(sources);
+		try {
+			Path dir = path("dir");
+			for (SourceFs source : sources)
+				Files.createDirectories(source.root.resolve(dir));
+			TestStripedFiles.createColumns(sources, dir, "file", SIZE);
+			Stat stat = new Stat(ByteBuffer.allocateDirect(0x100));
+			assertTrue("striped file found", meldfs.statFreshest(dir.resolve("file"), stat) != -1);
+			assertTrue("marked as striped", meldfs.negatives.isStriped(dir.resolve("file")));
+
+			// a regular copy appearing behind the mount's back isn't seen until the path is invalidated
+			Files.write(sources[0].root.resolve("dir/file"), new byte[3]);
+			assertTrue("still striped", meldfs.statFreshest(dir.resolve("file"), stat) != -1);
+			assertEquals("sources not searched", SIZE, stat.getSize());
+			meldfs.invalidate(dir.resolve("file"));
+			assertEquals("regular copy found", 0, meldfs.statFreshest(dir.resolve("file"), stat));
+			assertEquals("size of the regular copy", 3, stat.getSize());
+			assertFalse("no longer marked", meldfs.negatives.isStriped(dir.resolve("file")));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	@Test
+	public void testRenameCopiesDirectoryMode() throws Exception {
+		SourceFs[] sources = TestNamespaceCatalog.createSources(2);
+		MeldFs meldfs = open(sources);
+		try {
+			Path dir = path("dir");
+			for (SourceFs source : sources)
+				Files.createDirectories(source.root.resolve(dir));
+			Files.createDirectories(sources[0].root.resolve("private/deeper"));
+			Files.setPosixFilePermissions(sources[0].root.resolve("private"), PosixFilePermissions.fromString("rwx------"));
+			Files.setPosixFilePermissions(sources[0].root.resolve("private/deeper"), PosixFilePermissions.fromString("rwxr-x---"));
+			TestStripedFiles.createColumns(sources, dir, "file", SIZE);
+			meldfs.rename(dir.resolve("file"), path("private/deeper/file"));
+			assertTrue("moved", meldfs.getStriped(path("private/deeper/file")).isComplete());
+			for (SourceFs source : sources) {
+				Path stripeDir = source.root.resolve(StripedFiles.DIRECTORY).resolve("private");
+				assertEquals("mode of the directory", "rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(stripeDir)));
+				assertEquals("mode of its subdirectory", "rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(stripeDir.resolve("deeper"))));
+			}
+
+			// the copies of a renamed directory's parents in the stripe region get the mode too
+			Files.createDirectories(sources[1].root.resolve("shared"));
+			Files.setPosixFilePermissions(sources[1].root.resolve("shared"), PosixFilePermissions.fromString("rwxrwx---"));
+			meldfs.rename(path("private/deeper"), path("shared/deeper"));
+			assertTrue("moved with the directory", meldfs.getStriped(path("shared/deeper/file")).isComplete());
+			for (SourceFs source : sources)
+				assertEquals("mode of the new parent", "rwxrwx---", PosixFilePermissions.toString(Files.getPosixFilePermissions(source.root.resolve(StripedFiles.DIRECTORY).resolve("shared"))));
+		}
+		finally {
+			meldfs.close();
+			TestNamespaceCatalog.deleteSources(sources);
+		}
+	}
+
+	static MeldFs open(SourceFs[] sources) throws IOException {
+		Path config = Files.createTempFile("meldfs-striped", ".conf");
+		try {
+			try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(config, RecordLog.UTF8))) {
+				for (SourceFs source : sources)
+					writer.println("source = " + source.root);
+				writer.println("catalog = false");
+				writer.println("stripe_cache_ttl = 0");
+			}
+			return new MeldFs(new MeldFsProperties(config), false);
+		}
+		finally {
+			Files.delete(config);
+		}
+	}
+
+	/** Counts the files in the stripe region copies of <code>vdir</code> */
+	static int countColumns(SourceFs[] sources, Path vdir) throws IOException {
+		int count = 0;
+		for (SourceFs source : sources) {
+			Path dir = source.root.resolve(StripedFiles.DIRECTORY).resolve(vdir);
+			if (!Files.isDirectory(dir))
+				continue;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (@SuppressWarnings("unused") Path column : stream)
+					count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,79 @@
+package warrenfalk.meldfs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class TestWriteBehind {
+	final static int BUFFER = 16384;
+
+	@Test
+	public void testCoalescedWrites() throws IOException {
+		Path file = Files.createTempFile("meldfs-writebehind", null);
+		WriteBehindPool pool = new WriteBehindPool(BUFFER, BUFFER * 2, 60000);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			WriteBehind buffer = new WriteBehind(channel, pool, FileSystems.getDefault().getPath("file"));
+			byte[] expected = new byte[BUFFER * 6];
+			// contiguous small writes, starting off a boundary
+			long position = 100;
+			for (int i = 0; i < 20; i++) {
+				byte[] chunk = fill(expected, position, 4096, i);
+				assertEquals("written", chunk.length, buffer.write(ByteBuffer.wrap(chunk), position));
+				position += chunk.length;
+			}
+			assertTrue("buffered", channel.size() < position);
+			assertEquals("flushed up to the last boundary", (position / BUFFER) * BUFFER, channel.size());
+			// a write elsewhere flushes what is buffered
+			byte[] chunk = fill(expected, 10, 50, 99);
+			buffer.write(ByteBuffer.wrap(chunk), 10);
+			assertEquals("flushed by non-contiguous write", position, channel.size());
+			buffer.close();
+			assertTrue("buffers returned", pool.dirty.isEmpty());
+
+			byte[] actual = Files.readAllBytes(file);
+			assertEquals("length", position, actual.length);
+			for (int i = 0; i < actual.length; i++)
+				assertEquals("byte " + i, expected[i], actual[i]);
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testFlushByPathFollowsRename() throws IOException {
+		Path file = Files.createTempFile("meldfs-writebehind", null);
+		WriteBehindPool pool = new WriteBehindPool(BUFFER, BUFFER * 2, 60000);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			WriteBehind buffer = new WriteBehind(channel, pool, TestNamespaceCatalog.path("dir/file"));
+			buffer.write(ByteBuffer.wrap(new byte[100]), 0);
+			pool.moved(TestNamespaceCatalog.path("dir"), TestNamespaceCatalog.path("other"));
+			pool.flush(TestNamespaceCatalog.path("dir/file"));
+			assertEquals("not flushed by the old path", 0, channel.size());
+			pool.flush(TestNamespaceCatalog.path("other/file"));
+			assertEquals("flushed by the new path", 100, channel.size());
+			buffer.close();
+			assertTrue("forgotten when closed", pool.open.isEmpty());
+		}
+		finally {
+			Files.delete(file);
+		}
+	}
+
+	static byte[] fill(byte[] expected, long position, int length, int seed) {
+		byte[] chunk = new byte[length];
+		for (int i = 0; i < length; i++) {
+			chunk[i] = (byte)(seed * 31 + i);
+			expected[(int)position + i] = chunk[i];
+		}
+		return chunk;
+	}
+}